@@ -0,0 +1,257 @@
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Bundle;
+import android.test.ProviderTestCase2;
+import android.test.mock.MockContentResolver;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests the backup and restore methods of {@link NotePadProvider}: a restore brings back the
+ * notes and bodies of the backup, even while notes are being written, and readers keep going
+ * while a backup is made. The time a
+ * backup takes and the longest a reader waited meanwhile are written to the log.
+ */
+public class NoteBackupTest extends ProviderTestCase2<NotePadProvider> {
+
+    private static final String TAG = "NoteBackupTest";
+
+    // Enough notes that copying the database takes a measurable time
+    private static final int NOTE_COUNT = 2000;
+
+    private MockContentResolver mMockResolver;
+    private File mBackupDirectory;
+
+    public NoteBackupTest() {
+        super(NotePadProvider.class, NotePad.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMockResolver = getMockContentResolver();
+        mBackupDirectory = new File(getContext().getCacheDir(), "backup-test");
+        deleteDirectory(mBackupDirectory);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteDirectory(mBackupDirectory);
+        super.tearDown();
+    }
+
+    /*
+     * Tests that a restore puts back the notes as they were when the backup was made, with the
+     * bodies stored in files, and undoes the changes made since.
+     */
+    public void testBackupAndRestore() throws IOException {
+        String body = largeBody();
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Large");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, body);
+        Uri largeUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Small");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Small note");
+        Uri smallUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        backup();
+        assertTrue(mBackupDirectory.isDirectory());
+
+        // Changes made after the backup, including one that deletes the body file
+        assertEquals(1, mMockResolver.delete(largeUri, null, null));
+        values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Changed");
+        assertEquals(1, mMockResolver.update(smallUri, values, null, null));
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        Bundle result = mMockResolver.call(NotePad.Notes.CONTENT_URI,
+                NotePad.Backups.METHOD_RESTORE, mBackupDirectory.getPath(), null);
+        assertNotNull(result);
+
+        SQLiteDatabase db = getProvider().getOpenHelperForTest().getReadableDatabase();
+        assertEquals(2, DatabaseUtils.queryNumEntries(db, NotePad.Notes.TABLE_NAME));
+        assertEquals(body, readBody(largeUri));
+        assertEquals("Small note", readBody(smallUri));
+
+        // The restored database takes writes.
+        assertNotNull(mMockResolver.insert(NotePad.Notes.CONTENT_URI, values));
+    }
+
+    /*
+     * Tests a restore while another thread keeps inserting notes. The writes the restore waited
+     * for go to the restored database or are lost with the old one, but none of them may reach
+     * the restored file through the old connection: the database must pass an integrity check
+     * and hold the backed up note and only writes that came after the restore.
+     */
+    public void testRestoreDuringWrites() throws Exception {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Backed up");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "In the backup");
+        Uri backedUp = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        backup();
+
+        final AtomicBoolean stop = new AtomicBoolean();
+        final AtomicInteger writes = new AtomicInteger();
+        final Throwable[] failure = new Throwable[1];
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (!stop.get()) {
+                        ContentValues note = new ContentValues();
+                        note.put(NotePad.Notes.COLUMN_NAME_TITLE, "Burst " + writes.get());
+                        note.put(NotePad.Notes.COLUMN_NAME_NOTE, "Written during the restore");
+                        mMockResolver.insert(NotePad.Notes.CONTENT_URI, note);
+                        writes.incrementAndGet();
+                    }
+                } catch (Throwable t) {
+                    failure[0] = t;
+                }
+            }
+        });
+        writer.start();
+        int writesBefore;
+        try {
+            // The restore has to come in the middle of the burst
+            while (writes.get() < 50 && writer.isAlive()) {
+                Thread.sleep(1);
+            }
+            writesBefore = writes.get();
+            mMockResolver.call(NotePad.Notes.CONTENT_URI, NotePad.Backups.METHOD_RESTORE,
+                    mBackupDirectory.getPath(), null);
+        } finally {
+            stop.set(true);
+            writer.join(5000);
+        }
+        assertFalse("The writer is stuck", writer.isAlive());
+        if (failure[0] != null) {
+            throw new AssertionError(failure[0]);
+        }
+
+        SQLiteDatabase db = getProvider().getOpenHelperForTest().getReadableDatabase();
+        assertEquals("ok", DatabaseUtils.stringForQuery(db, "PRAGMA integrity_check", null));
+        Cursor c = mMockResolver.query(backedUp, null, null, null, null);
+        try {
+            assertEquals(1, c.getCount());
+        } finally {
+            c.close();
+        }
+        long notes = DatabaseUtils.queryNumEntries(db, NotePad.Notes.TABLE_NAME);
+        assertTrue(notes - 1 <= writes.get() - writesBefore);
+
+        // The restored database still takes writes.
+        assertNotNull(mMockResolver.insert(NotePad.Notes.CONTENT_URI, values));
+    }
+
+    /*
+     * Tests that a backup can't overwrite an existing directory.
+     */
+    public void testBackupNeedsNewDirectory() {
+        assertTrue(mBackupDirectory.mkdirs());
+        try {
+            backup();
+            fail();
+        } catch (IllegalStateException e) {
+            // continue
+        }
+    }
+
+    /*
+     * Times a backup while another thread keeps querying the notes, and logs how long the
+     * backup took, how long writes waited, and the longest single query of the reader.
+     */
+    public void testSnapshotTiming() throws Exception {
+        ContentValues[] notes = new ContentValues[NOTE_COUNT];
+        for (int i = 0; i < NOTE_COUNT; i++) {
+            notes[i] = new ContentValues();
+            notes[i].put(NotePad.Notes.COLUMN_NAME_TITLE, "Note " + i);
+            notes[i].put(NotePad.Notes.COLUMN_NAME_NOTE, "Text of note " + i + " for the backup");
+        }
+        assertEquals(NOTE_COUNT, mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, notes));
+
+        final AtomicBoolean stop = new AtomicBoolean();
+        final long[] reads = { 0 };
+        final long[] longestRead = { 0 };
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!stop.get()) {
+                    long start = System.nanoTime();
+                    Cursor c = mMockResolver.query(NotePad.Notes.CONTENT_URI,
+                            new String[] { NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_TITLE },
+                            null, null, null);
+                    c.getCount();
+                    c.close();
+                    longestRead[0] = Math.max(longestRead[0], System.nanoTime() - start);
+                    reads[0]++;
+                }
+            }
+        });
+        reader.start();
+        Bundle result;
+        try {
+            result = backup();
+        } finally {
+            stop.set(true);
+            reader.join(5000);
+        }
+        assertFalse("The reader is stuck", reader.isAlive());
+        assertTrue(reads[0] > 0);
+
+        Log.i(TAG, "Backup of " + NOTE_COUNT + " notes: "
+                + result.getLong(NotePad.Backups.KEY_MILLIS) + " ms, writes waited "
+                + result.getLong(NotePad.Backups.KEY_LOCK_MILLIS) + " ms; "
+                + reads[0] + " reads meanwhile, the longest "
+                + longestRead[0] / 1000000 + " ms");
+    }
+
+    private Bundle backup() {
+        return mMockResolver.call(NotePad.Notes.CONTENT_URI, NotePad.Backups.METHOD_BACKUP,
+                mBackupDirectory.getPath(), null);
+    }
+
+    private static String largeBody() {
+        StringBuilder builder = new StringBuilder();
+        for (int index = 0; builder.length() <= NotePadProvider.EXTERNAL_BODY_LENGTH * 4; index++) {
+            builder.append("Line ").append(index).append(" of a very long note\n");
+        }
+        return builder.toString();
+    }
+
+    private String readBody(Uri noteUri) throws IOException {
+        Reader reader = new InputStreamReader(mMockResolver.openInputStream(noteUri), "UTF-8");
+        try {
+            StringBuilder text = new StringBuilder();
+            char[] buffer = new char[8 * 1024];
+            int count;
+            while ((count = reader.read(buffer)) != -1) {
+                text.append(buffer, 0, count);
+            }
+            return text.toString();
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                deleteDirectory(file);
+            }
+        }
+        directory.delete();
+    }
+}
@@ -0,0 +1,175 @@
+package com.example.android.notepad;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.ProviderTestCase2;
+import android.test.mock.MockContentResolver;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Tests {@link NoteImporter} against the provider: categories are matched by name, the notes
+ * keep their columns, and an interrupted import carries on without adding notes twice.
+ */
+public class NoteImporterTest extends ProviderTestCase2<NotePadProvider> {
+
+    // More than two batches
+    private static final int NOTE_COUNT = NoteImporter.BATCH_SIZE * 2 + 50;
+
+    private static final String SOURCE = "content://test/notes.ndjson";
+
+    private MockContentResolver mMockResolver;
+    private SQLiteDatabase mDb;
+
+    public NoteImporterTest() {
+        super(NotePadProvider.class, NotePad.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMockResolver = getMockContentResolver();
+        mDb = getProvider().getOpenHelperForTest().getWritableDatabase();
+    }
+
+    /*
+     * Tests that every valid line becomes a note, in a category with the same name.
+     */
+    public void testImportJson() throws IOException {
+        NoteImporter importer = new NoteImporter(mMockResolver, SOURCE, null);
+        assertEquals(NOTE_COUNT, importer.importJson(jsonSource()));
+
+        assertEquals(NOTE_COUNT, DatabaseUtils.queryNumEntries(mDb, NotePad.Notes.TABLE_NAME));
+        assertEquals(1, DatabaseUtils.queryNumEntries(mDb, NotePad.Categories.TABLE_NAME,
+                NotePad.Categories.COLUMN_NAME_CATEGORY_NAME + " = '工作'", null));
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, NotePad.ImportCheckpoints.TABLE_NAME));
+
+        Cursor cursor = mMockResolver.query(NotePad.Notes.WITH_CATEGORY_URI, new String[] {
+                        NotePad.Notes.COLUMN_NAME_TITLE,
+                        NotePad.Notes.COLUMN_NAME_NOTE,
+                        NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+                        NotePad.Notes.COLUMN_NAME_IS_TODO,
+                        NotePad.Notes.COLUMN_NAME_CATEGORY_NAME },
+                null, null, NotePad.Notes.TABLE_NAME + "." + NotePad.Notes._ID);
+        try {
+            int i = 0;
+            while (cursor.moveToNext()) {
+                assertEquals("Note " + i, cursor.getString(0));
+                assertEquals("Line \"" + i + "\"\n第二行", cursor.getString(1));
+                assertEquals(1000L + i, cursor.getLong(2));
+                assertEquals(i % 3 == 0 ? 1 : 0, cursor.getInt(3));
+                assertEquals(i % 2 == 0 ? NotePad.Categories.DEFAULT_CATEGORY_NAME : "工作",
+                        cursor.getString(4));
+                i++;
+            }
+            assertEquals(NOTE_COUNT, i);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /*
+     * Tests that an import stopped after its first batch keeps that batch, and that running it
+     * again imports the rest.
+     */
+    public void testImportResumes() throws IOException {
+        NoteImporter.ProgressListener interrupt = new NoteImporter.ProgressListener() {
+            @Override
+            public void onProgress(long position, int imported) {
+                throw new IllegalStateException("Interrupted");
+            }
+        };
+        try {
+            new NoteImporter(mMockResolver, SOURCE, interrupt).importJson(jsonSource());
+            fail();
+        } catch (IllegalStateException e) {
+            // continue
+        }
+        assertEquals(NoteImporter.BATCH_SIZE,
+                DatabaseUtils.queryNumEntries(mDb, NotePad.Notes.TABLE_NAME));
+        assertEquals(1, DatabaseUtils.queryNumEntries(mDb, NotePad.ImportCheckpoints.TABLE_NAME));
+
+        int imported = new NoteImporter(mMockResolver, SOURCE, null).importJson(jsonSource());
+        assertEquals(NOTE_COUNT - NoteImporter.BATCH_SIZE, imported);
+        assertEquals(NOTE_COUNT, DatabaseUtils.queryNumEntries(mDb, NotePad.Notes.TABLE_NAME));
+        assertEquals(NOTE_COUNT, DatabaseUtils.longForQuery(mDb, "SELECT COUNT(DISTINCT "
+                + NotePad.Notes.COLUMN_NAME_TITLE + ") FROM " + NotePad.Notes.TABLE_NAME, null));
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, NotePad.ImportCheckpoints.TABLE_NAME));
+    }
+
+    /*
+     * Tests that the text files of a directory become notes titled after the files.
+     */
+    public void testImportDirectory() throws IOException {
+        File directory = new File(getContext().getCacheDir(), "import-test");
+        directory.mkdirs();
+        try {
+            writeFile(new File(directory, "b.txt"), "Second");
+            writeFile(new File(directory, "a.md"), "# First\n文本");
+            writeFile(new File(directory, "image.png"), "Not a note");
+
+            int imported = new NoteImporter(mMockResolver, directory.getPath(), null)
+                    .importDirectory(directory);
+            assertEquals(2, imported);
+
+            Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, new String[] {
+                            NotePad.Notes.COLUMN_NAME_TITLE, NotePad.Notes.COLUMN_NAME_NOTE },
+                    null, null, NotePad.Notes._ID);
+            try {
+                assertTrue(cursor.moveToNext());
+                assertEquals("a", cursor.getString(0));
+                assertEquals("# First\n文本", cursor.getString(1));
+                assertTrue(cursor.moveToNext());
+                assertEquals("b", cursor.getString(0));
+                assertEquals("Second", cursor.getString(1));
+                assertFalse(cursor.moveToNext());
+            } finally {
+                cursor.close();
+            }
+        } finally {
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    /*
+     * Returns NOTE_COUNT notes as exported, with a line that isn't JSON and an empty line
+     * among them.
+     */
+    private static ByteArrayInputStream jsonSource() throws IOException {
+        StringBuilder json = new StringBuilder();
+        for (int i = 0; i < NOTE_COUNT; i++) {
+            json.append("{\"_id\":").append(i + 100)
+                    .append(",\"title\":\"Note ").append(i)
+                    .append("\",\"note\":\"Line \\\"").append(i).append("\\\"\\n第二行\"")
+                    .append(",\"created\":").append(1000 + i)
+                    .append(",\"modified\":").append(1000 + i)
+                    .append(",\"category_name\":\"")
+                    .append(i % 2 == 0 ? NotePad.Categories.DEFAULT_CATEGORY_NAME : "工作")
+                    .append("\",\"category_color\":-16711936")
+                    .append(",\"is_todo\":").append(i % 3 == 0 ? 1 : 0)
+                    .append(",\"is_completed\":0,\"due_date\":null}\n");
+            if (i == 10) {
+                json.append("not json\n\n");
+            }
+        }
+        return new ByteArrayInputStream(json.toString().getBytes("UTF-8"));
+    }
+
+    private static void writeFile(File file, String text) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(text);
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.ProviderTestCase2;
+import android.test.mock.MockContentResolver;
+
+/**
+ * Tests {@link NoteMaintenance}: the first idle run switches the database to incremental
+ * auto-vacuum, later runs give back the pages deletes left free, and the maintenance URI
+ * reports both.
+ */
+public class NoteMaintenanceTest extends ProviderTestCase2<NotePadProvider> {
+
+    // Enough notes to fill a good number of pages
+    private static final int NOTE_COUNT = 1000;
+
+    private MockContentResolver mMockResolver;
+    private SQLiteDatabase mDb;
+
+    public NoteMaintenanceTest() {
+        super(NotePadProvider.class, NotePad.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMockResolver = getMockContentResolver();
+        mDb = getProvider().getOpenHelperForTest().getWritableDatabase();
+    }
+
+    /*
+     * Tests that deleted notes leave free pages, and that a maintenance run gives them back to
+     * the file system.
+     */
+    public void testVacuumGivesSpaceBack() {
+        NoteMaintenance.run(mDb, true);
+        Cursor stats = queryStats();
+        assertEquals(1, stats.getInt(stats.getColumnIndex(
+                NotePad.Maintenance.COLUMN_NAME_INCREMENTAL_VACUUM)));
+        assertTrue(stats.getLong(stats.getColumnIndex(
+                NotePad.Maintenance.COLUMN_NAME_LAST_ANALYZE)) > 0);
+        stats.close();
+
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            text.append("A line of text that takes some room. ");
+        }
+        ContentValues[] notes = new ContentValues[NOTE_COUNT];
+        for (int i = 0; i < NOTE_COUNT; i++) {
+            notes[i] = new ContentValues();
+            notes[i].put(NotePad.Notes.COLUMN_NAME_TITLE, "Note " + i);
+            notes[i].put(NotePad.Notes.COLUMN_NAME_NOTE, text.toString() + i);
+        }
+        assertEquals(NOTE_COUNT, mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, notes));
+
+        stats = queryStats();
+        long fullPages = stats.getLong(stats.getColumnIndex(
+                NotePad.Maintenance.COLUMN_NAME_PAGE_COUNT));
+        stats.close();
+
+        assertEquals(NOTE_COUNT, mMockResolver.delete(NotePad.Notes.CONTENT_URI, null, null));
+        stats = queryStats();
+        long freePages = stats.getLong(stats.getColumnIndex(
+                NotePad.Maintenance.COLUMN_NAME_FREE_PAGES));
+        assertTrue(freePages > NoteMaintenance.VACUUM_STEP_PAGES);
+        assertTrue(stats.getDouble(stats.getColumnIndex(
+                NotePad.Maintenance.COLUMN_NAME_FRAGMENTATION)) > 0);
+        stats.close();
+
+        // The free pages go in several steps.
+        assertEquals(freePages, NoteMaintenance.run(mDb, true));
+        stats = queryStats();
+        assertEquals(0, stats.getLong(stats.getColumnIndex(
+                NotePad.Maintenance.COLUMN_NAME_FREE_PAGES)));
+        assertEquals(0.0, stats.getDouble(stats.getColumnIndex(
+                NotePad.Maintenance.COLUMN_NAME_FRAGMENTATION)));
+        assertTrue(stats.getLong(stats.getColumnIndex(
+                NotePad.Maintenance.COLUMN_NAME_PAGE_COUNT)) <= fullPages - freePages);
+        assertTrue(stats.getLong(stats.getColumnIndex(
+                NotePad.Maintenance.COLUMN_NAME_LAST_VACUUM)) > 0);
+        stats.close();
+    }
+
+    /*
+     * Tests that the VACUUM that switches to incremental auto-vacuum waits for an idle device,
+     * and that the statistics are refreshed anyway.
+     */
+    public void testSwitchWaitsForIdle() {
+        assertEquals(0, NoteMaintenance.run(mDb, false));
+        Cursor stats = queryStats();
+        assertEquals(0, stats.getInt(stats.getColumnIndex(
+                NotePad.Maintenance.COLUMN_NAME_INCREMENTAL_VACUUM)));
+        assertTrue(stats.getLong(stats.getColumnIndex(
+                NotePad.Maintenance.COLUMN_NAME_LAST_ANALYZE)) > 0);
+        stats.close();
+
+        NoteMaintenance.run(mDb, true);
+        stats = queryStats();
+        assertEquals(1, stats.getInt(stats.getColumnIndex(
+                NotePad.Maintenance.COLUMN_NAME_INCREMENTAL_VACUUM)));
+        stats.close();
+    }
+
+    /*
+     * Tests that the maintenance URI is read-only.
+     */
+    public void testStatsAreReadOnly() {
+        assertEquals(NotePad.Maintenance.CONTENT_ITEM_TYPE,
+                mMockResolver.getType(NotePad.Maintenance.CONTENT_URI));
+        try {
+            mMockResolver.delete(NotePad.Maintenance.CONTENT_URI, null, null);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // continue
+        }
+    }
+
+    private Cursor queryStats() {
+        Cursor cursor = mMockResolver.query(NotePad.Maintenance.CONTENT_URI, null, null, null,
+                null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(1, cursor.getCount());
+        return cursor;
+    }
+}
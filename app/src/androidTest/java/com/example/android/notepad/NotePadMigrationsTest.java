@@ -0,0 +1,365 @@
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tests that {@link NotePadMigrations} upgrades a database from every past version to the
+ * schema a new database gets, without losing notes.
+ *
+ * The old schemas are written out here as each version created them, so the test doesn't
+ * change when the current code does.
+ */
+public class NotePadMigrationsTest extends AndroidTestCase {
+
+    // The versions an installed app can have. 1 and 2 share the schema of the original sample.
+    private static final int[] PAST_VERSIONS = { 1, 2, 3, 4, 5, 6, 7 };
+
+    // The number of notes in each old database. It is more than one backfill chunk, so the
+    // chunk boundaries are covered.
+    private static final int NOTE_COUNT = NotePadMigrations.ROWS_PER_CHUNK + 10;
+
+    private static final String LONG_NOTE =
+            "This note is longer than a preview, so its preview is cut and ends with dots.";
+
+    private SQLiteDatabase mCurrent;
+
+    // The files the backfills move large bodies to
+    private File mBodyDirectory;
+    private NoteBodyStore mBodies;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mBodyDirectory = new File(getContext().getCacheDir(), "migration-bodies");
+        deleteDirectory(mBodyDirectory);
+        mBodies = new NoteBodyStore(mBodyDirectory);
+        mCurrent = SQLiteDatabase.create(null);
+        new NotePadProvider.DatabaseHelper(getContext(), mBodies).onCreate(mCurrent);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mCurrent.close();
+        deleteDirectory(mBodyDirectory);
+        super.tearDown();
+    }
+
+    /*
+     * Tests that each past version upgrades to the current schema.
+     */
+    public void testSchemaMatchesNewDatabase() {
+        for (int version : PAST_VERSIONS) {
+            SQLiteDatabase db = createDatabase(version);
+            try {
+                migrate(db, version);
+
+                assertEquals("Schema objects after upgrading from " + version,
+                        readSchemaObjects(mCurrent), readSchemaObjects(db));
+                assertEquals("Note columns after upgrading from " + version,
+                        readColumns(mCurrent, NotePad.Notes.TABLE_NAME),
+                        readColumns(db, NotePad.Notes.TABLE_NAME));
+                assertEquals("Category columns after upgrading from " + version,
+                        readColumns(mCurrent, NotePad.Categories.TABLE_NAME),
+                        readColumns(db, NotePad.Categories.TABLE_NAME));
+            } finally {
+                db.close();
+            }
+        }
+    }
+
+    /*
+     * Tests that each past version keeps its notes, and that the new columns get their values.
+     */
+    public void testDataIsKept() {
+        for (int version : PAST_VERSIONS) {
+            SQLiteDatabase db = createDatabase(version);
+            try {
+                migrate(db, version);
+                NotePadMigrations.runBackfills(db, mBodies);
+                String message = "Upgrading from " + version;
+
+                assertEquals(message, NOTE_COUNT, DatabaseUtils.queryNumEntries(db,
+                        NotePad.Notes.TABLE_NAME));
+                assertEquals(message, 1, DatabaseUtils.queryNumEntries(db,
+                        NotePad.Categories.TABLE_NAME, NotePad.Categories._ID + " = 1", null));
+
+                Cursor cursor = db.query(NotePad.Notes.TABLE_NAME, new String[] {
+                        NotePad.Notes._ID,
+                        NotePad.Notes.COLUMN_NAME_TITLE,
+                        NotePad.Notes.COLUMN_NAME_NOTE,
+                        NotePad.Notes.COLUMN_NAME_PREVIEW,
+                        NotePad.Notes.COLUMN_NAME_CATEGORY_ID,
+                        NotePad.Notes.COLUMN_NAME_IS_TODO },
+                        null, null, null, null, NotePad.Notes._ID);
+                try {
+                    while (cursor.moveToNext()) {
+                        int i = cursor.getInt(0);
+                        assertEquals(message, "Note " + i, cursor.getString(1));
+                        assertEquals(message, noteText(i), cursor.getString(2));
+                        assertEquals(message, previewOf(noteText(i)), cursor.getString(3));
+                        assertEquals(message, 1, cursor.getLong(4));
+                        assertEquals(message, 0, cursor.getInt(5));
+                    }
+                } finally {
+                    cursor.close();
+                }
+
+                // The notes are counted in the stats of their category.
+                assertEquals(message, NOTE_COUNT, DatabaseUtils.longForQuery(db,
+                        "SELECT note_count FROM category_stats WHERE category_id = 1", null));
+
+                // Notes from before the trigram index are queued for indexing.
+                if (version < 6) {
+                    assertEquals(message, NOTE_COUNT, DatabaseUtils.queryNumEntries(db,
+                            "notes_trigram_pending"));
+                }
+                assertFalse(message, NotePadMigrations.hasPendingBackfills(db));
+            } finally {
+                db.close();
+            }
+        }
+    }
+
+    /*
+     * Tests that the preview backfill, which an upgrade queues first, moves its checkpoint one
+     * chunk at a time and leaves rows written since the upgrade alone.
+     */
+    public void testBackfillResumes() {
+        SQLiteDatabase db = createDatabase(7);
+        try {
+            migrate(db, 7);
+            assertTrue(NotePadMigrations.hasPendingBackfills(db));
+            assertEquals(NOTE_COUNT, countNotesWithoutPreview(db));
+
+            // A note saved by the provider after the upgrade already has its preview.
+            db.execSQL("UPDATE notes SET preview = 'Saved' WHERE _id = ?",
+                    new Object[] { NOTE_COUNT });
+
+            assertTrue(NotePadMigrations.runBackfillChunk(db, mBodies));
+            assertEquals(NotePadMigrations.ROWS_PER_CHUNK, DatabaseUtils.longForQuery(db,
+                    "SELECT last_id FROM " + NotePadMigrations.BACKFILL_TABLE_NAME, null));
+            assertEquals(NOTE_COUNT - NotePadMigrations.ROWS_PER_CHUNK - 1,
+                    countNotesWithoutPreview(db));
+
+            // The checkpoint is all the state there is, so a new run picks up from it.
+            NotePadMigrations.runBackfills(db, mBodies);
+            assertFalse(NotePadMigrations.hasPendingBackfills(db));
+            assertFalse(NotePadMigrations.runBackfillChunk(db, mBodies));
+            assertEquals(0, countNotesWithoutPreview(db));
+            assertEquals("Saved", DatabaseUtils.stringForQuery(db,
+                    "SELECT preview FROM notes WHERE _id = " + NOTE_COUNT, null));
+        } finally {
+            db.close();
+        }
+    }
+
+    /*
+     * Tests that note bodies too long for a row, saved before bodies were stored in files, are
+     * moved to files by the backfill, and that their rows keep the start of the body.
+     */
+    public void testLargeBodiesMoveToFiles() throws IOException {
+        StringBuilder text = new StringBuilder();
+        while (text.length() <= NotePadProvider.EXTERNAL_BODY_LENGTH * 3) {
+            text.append("很长的正文 long body ").append(text.length()).append('\n');
+        }
+        String body = text.toString();
+
+        SQLiteDatabase db = createDatabase(7);
+        try {
+            db.execSQL("UPDATE notes SET note = ? WHERE _id = 1", new Object[] { body });
+            db.execSQL("DELETE FROM " + TrigramIndex.PENDING_TABLE_NAME);
+            migrate(db, 7);
+            NotePadMigrations.runBackfills(db, mBodies);
+
+            Cursor cursor = db.query(NotePad.Notes.TABLE_NAME, new String[] {
+                    NotePadProvider.COLUMN_NAME_NOTE_FILE, NotePad.Notes.COLUMN_NAME_NOTE },
+                    NotePad.Notes._ID + " = 1", null, null, null, null);
+            try {
+                assertTrue(cursor.moveToFirst());
+                assertEquals(body, mBodies.read(cursor.getString(0)));
+                assertEquals(body.substring(0, NotePadProvider.EXTERNAL_BODY_LENGTH),
+                        cursor.getString(1));
+            } finally {
+                cursor.close();
+            }
+
+            // Short bodies stay in their rows, and the moved note is queued for indexing.
+            assertEquals(1, DatabaseUtils.queryNumEntries(db, NotePad.Notes.TABLE_NAME,
+                    NotePadProvider.COLUMN_NAME_NOTE_FILE + " IS NOT NULL", null));
+            assertEquals(1, DatabaseUtils.queryNumEntries(db, TrigramIndex.PENDING_TABLE_NAME,
+                    TrigramIndex.COLUMN_NAME_NOTE_ID + " = 1", null));
+        } finally {
+            db.close();
+        }
+    }
+
+    /*
+     * Tests that running the migrations up to the current version leaves a new database as it
+     * is.
+     */
+    public void testCurrentVersionHasNoSteps() {
+        Map<String, String> before = readSchemaObjects(mCurrent);
+        NotePadMigrations.migrate(mCurrent, NotePadProvider.DATABASE_VERSION,
+                NotePadProvider.DATABASE_VERSION);
+        assertEquals(before, readSchemaObjects(mCurrent));
+    }
+
+    private static void migrate(SQLiteDatabase db, int version) {
+        db.beginTransaction();
+        try {
+            NotePadMigrations.migrate(db, version, NotePadProvider.DATABASE_VERSION);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /*
+     * Creates an in-memory database with the schema of the given version, and fills it with
+     * notes.
+     */
+    private static SQLiteDatabase createDatabase(int version) {
+        SQLiteDatabase db = SQLiteDatabase.create(null);
+
+        if (version < 3) {
+            db.execSQL("CREATE TABLE notes (_id INTEGER PRIMARY KEY, title TEXT, note TEXT,"
+                    + " created INTEGER, modified INTEGER);");
+        } else {
+            db.execSQL("CREATE TABLE categories (_id INTEGER PRIMARY KEY, name TEXT UNIQUE,"
+                    + " color INTEGER, created INTEGER);");
+            db.execSQL("INSERT INTO categories VALUES (1, '默认分类', -14575885, 0);");
+
+            String todoColumns = version >= 4
+                    ? " is_todo INTEGER DEFAULT 0, is_completed INTEGER DEFAULT 0,"
+                            + " due_date INTEGER DEFAULT NULL,"
+                    : "";
+            db.execSQL("CREATE TABLE notes (_id INTEGER PRIMARY KEY, title TEXT, note TEXT,"
+                    + " created INTEGER, modified INTEGER, category_id INTEGER DEFAULT 1,"
+                    + todoColumns
+                    + " FOREIGN KEY(category_id) REFERENCES categories(_id));");
+        }
+
+        if (version >= 4) {
+            db.execSQL("CREATE INDEX idx_notes_due_date ON notes(due_date);");
+        }
+        if (version >= 4 && version < 7) {
+            db.execSQL("CREATE INDEX idx_notes_is_todo ON notes(is_todo);");
+            db.execSQL("CREATE INDEX idx_notes_is_completed ON notes(is_completed);");
+        }
+
+        if (version == 5) {
+            db.execSQL("CREATE VIRTUAL TABLE notes_fts USING fts4(title, note);");
+            db.execSQL("CREATE TRIGGER notes_fts_insert AFTER INSERT ON notes BEGIN"
+                    + " INSERT INTO notes_fts(docid, title, note)"
+                    + " VALUES (new._id, new.title, new.note); END;");
+            db.execSQL("CREATE TRIGGER notes_fts_update AFTER UPDATE OF title, note ON notes"
+                    + " BEGIN DELETE FROM notes_fts WHERE docid = old._id;"
+                    + " INSERT INTO notes_fts(docid, title, note)"
+                    + " VALUES (new._id, new.title, new.note); END;");
+            db.execSQL("CREATE TRIGGER notes_fts_delete AFTER DELETE ON notes BEGIN"
+                    + " DELETE FROM notes_fts WHERE docid = old._id; END;");
+        }
+
+        if (version >= 6) {
+            TrigramIndex.create(db);
+        }
+
+        if (version >= 7) {
+            db.execSQL("CREATE INDEX idx_notes_modified ON notes(modified);");
+            db.execSQL("CREATE INDEX idx_notes_category_modified ON notes(category_id, modified);");
+            db.execSQL("CREATE INDEX idx_notes_todo_modified ON notes(is_todo, modified);");
+            db.execSQL("CREATE INDEX idx_notes_todo_completed_modified"
+                    + " ON notes(is_todo, is_completed, modified);");
+        }
+
+        db.beginTransaction();
+        try {
+            for (int i = 1; i <= NOTE_COUNT; i++) {
+                ContentValues values = new ContentValues();
+                values.put(NotePad.Notes._ID, i);
+                values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Note " + i);
+                values.put(NotePad.Notes.COLUMN_NAME_NOTE, noteText(i));
+                values.put(NotePad.Notes.COLUMN_NAME_CREATE_DATE, i);
+                values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, i);
+                db.insertOrThrow(NotePad.Notes.TABLE_NAME, null, values);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return db;
+    }
+
+    private static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private static long countNotesWithoutPreview(SQLiteDatabase db) {
+        return DatabaseUtils.queryNumEntries(db, NotePad.Notes.TABLE_NAME,
+                NotePad.Notes.COLUMN_NAME_PREVIEW + " IS NULL", null);
+    }
+
+    private static String noteText(int i) {
+        return i % 2 == 0 ? "Short note " + i : LONG_NOTE;
+    }
+
+    private static String previewOf(String note) {
+        return note.length() > NotePadProvider.PREVIEW_LENGTH
+                ? note.substring(0, NotePadProvider.PREVIEW_LENGTH) + "..." : note;
+    }
+
+    /*
+     * Returns the type of every table, index and trigger in the database, by name. Indexes
+     * SQLite creates on its own are left out.
+     */
+    private static Map<String, String> readSchemaObjects(SQLiteDatabase db) {
+        Map<String, String> objects = new HashMap<String, String>();
+        Cursor cursor = db.rawQuery("SELECT name, type FROM sqlite_master"
+                + " WHERE name NOT LIKE 'sqlite_%'", null);
+        try {
+            while (cursor.moveToNext()) {
+                objects.put(cursor.getString(0), cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        return objects;
+    }
+
+    /*
+     * Returns the name, type and default value of every column of a table.
+     */
+    private static Set<String> readColumns(SQLiteDatabase db, String table) {
+        Set<String> columns = new HashSet<String>();
+        Cursor cursor = db.rawQuery("PRAGMA table_info(" + table + ")", null);
+        try {
+            int name = cursor.getColumnIndexOrThrow("name");
+            int type = cursor.getColumnIndexOrThrow("type");
+            int defaultValue = cursor.getColumnIndexOrThrow("dflt_value");
+            while (cursor.moveToNext()) {
+                columns.add(cursor.getString(name) + " " + cursor.getString(type) + " "
+                        + cursor.getString(defaultValue));
+            }
+        } finally {
+            cursor.close();
+        }
+        return columns;
+    }
+}
@@ -16,10 +16,13 @@
 
 package com.example.android.notepad;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.os.ParcelFileDescriptor;
@@ -27,12 +30,21 @@ import android.test.ProviderTestCase2;
 import android.test.mock.MockContentResolver;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
+import java.util.List;
+
+import org.json.JSONException;
+import org.json.JSONObject;
 
 /*
  */
@@ -186,9 +198,14 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
      */
     public void testGetStreamTypes() {
 
-        // Tests the notes table URI. This should return null, since the content provider does
-        // not provide a stream MIME type for multiple notes.
-        assertNull(mMockResolver.getStreamTypes(NotePad.Notes.CONTENT_URI, MIME_TYPES_ALL));
+        // Tests the notes table URI. This should return the export type, the only stream the
+        // content provider has for all the notes.
+        String[] exportTypes = mMockResolver.getStreamTypes(NotePad.Notes.CONTENT_URI,
+                MIME_TYPES_ALL);
+        assertNotNull(exportTypes);
+        assertEquals(1, exportTypes.length);
+        assertEquals(NotePad.Notes.EXPORT_MIME_TYPE, exportTypes[0]);
+        assertNull(mMockResolver.getStreamTypes(NotePad.Notes.CONTENT_URI, MIME_TYPE_TEXT));
 
         // Tests the live folders URI. This should return null, since the content provider does not
         // provide a stream MIME type for multiple notes.
@@ -222,7 +239,7 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
          * Tests with a URI that should not have any associated stream MIME types, but with a
          * filter that returns all types. The result should still be null.
          */
-        mimeType = mMockResolver.getStreamTypes(NotePad.Notes.CONTENT_URI, MIME_TYPES_ALL);
+        mimeType = mMockResolver.getStreamTypes(NotePad.Notes.SEARCH_URI, MIME_TYPES_ALL);
         assertNull(mimeType);
 
     }
@@ -415,6 +432,54 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
         assertEquals(TEST_NOTES[0].note, inputData[2]);
     }
 
+    /*
+     * Tests that openTypedAssetFile() streams notes far larger than a cursor window, both a
+     * body in a file and a body left in its row by an older version of the provider.
+     */
+    public void testWriteDataToPipeForHugeNote() throws IOException {
+        // A cursor window holds 2 MB, and a body this long takes 8 MB as UTF-16.
+        StringBuilder builder = new StringBuilder();
+        for (int index = 0; builder.length() < 4 * 1024 * 1024; index++) {
+            builder.append("第").append(index).append("行，a line of a huge note\n");
+        }
+        String body = builder.toString();
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Huge");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, body);
+        Uri externalUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        long rowId = mDb.insertOrThrow(NotePad.Notes.TABLE_NAME, null, values);
+        Uri rowUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, rowId);
+
+        for (Uri noteUri : new Uri[] { externalUri, rowUri }) {
+            AssetFileDescriptor descriptor =
+                    mMockResolver.openTypedAssetFileDescriptor(noteUri, MIME_TYPE_TEXT, null);
+            Reader reader = new InputStreamReader(descriptor.createInputStream(), "UTF-8");
+            try {
+                assertStreamEquals("Huge\n\n" + body + "\n", reader);
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    /*
+     * Reads a stream a buffer at a time and checks it against the expected text.
+     */
+    private static void assertStreamEquals(String expected, Reader reader) throws IOException {
+        char[] buffer = new char[8 * 1024];
+        int position = 0;
+        int count;
+        while ((count = reader.read(buffer)) != -1) {
+            assertTrue(position + count <= expected.length());
+            assertEquals(expected.substring(position, position + count),
+                    new String(buffer, 0, count));
+            position += count;
+        }
+        assertEquals(expected.length(), position);
+    }
+
     /*
      * Tests the provider's public API for querying data in the table, using the URI for
      * a dataset of records.
@@ -612,6 +677,274 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
       assertEquals(inputNoteId, cursor.getInt(0));
     }
 
+    /*
+     * Tests the notes joined with categories. Every note carries the name and color of its
+     * category, and a note whose category is gone is still returned.
+     */
+    public void testQueriesOnNotesWithCategoryUri() {
+        insertData();
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Orphan");
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY_ID, 99);
+        mDb.insertOrThrow(NotePad.Notes.TABLE_NAME, null, values);
+
+        final String[] JOINED_PROJECTION = {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_CATEGORY_NAME,
+            NotePad.Notes.COLUMN_NAME_CATEGORY_COLOR
+        };
+
+        Cursor cursor = mMockResolver.query(
+            NotePad.Notes.WITH_CATEGORY_URI,
+            JOINED_PROJECTION,
+            null,
+            null,
+            null
+        );
+        assertEquals(TEST_NOTES.length + 1, cursor.getCount());
+        while (cursor.moveToNext()) {
+            if ("Orphan".equals(cursor.getString(1))) {
+                assertTrue(cursor.isNull(2));
+            } else {
+                assertEquals(NotePad.Categories.DEFAULT_CATEGORY_NAME, cursor.getString(2));
+                assertEquals(NotePad.Categories.DEFAULT_CATEGORY_COLOR, cursor.getInt(3));
+            }
+        }
+        cursor.close();
+
+        // Search and paging work on the join as well.
+        Uri uri = NotePad.Notes.WITH_CATEGORY_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH, "note")
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT, "3")
+                .build();
+        cursor = mMockResolver.query(uri, JOINED_PROJECTION, null, null, null);
+        assertEquals(3, cursor.getCount());
+        cursor.close();
+
+        // Renaming a category shows up in the joined rows.
+        values = new ContentValues();
+        values.put(NotePad.Categories.COLUMN_NAME_CATEGORY_NAME, "Work");
+        long categoryId = ContentUris.parseId(
+                mMockResolver.insert(NotePad.Categories.CONTENT_URI, values));
+        values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY_ID, categoryId);
+        mMockResolver.update(NotePad.Notes.CONTENT_URI, values,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Orphan" });
+
+        cursor = mMockResolver.query(
+            NotePad.Notes.WITH_CATEGORY_URI,
+            JOINED_PROJECTION,
+            NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " = ?",
+            new String[] { String.valueOf(categoryId) },
+            null
+        );
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Work", cursor.getString(2));
+        cursor.close();
+    }
+
+    /*
+     * Tests that the notes list can be read in order from an index for every filter that
+     * NotesList offers, so that SQLite never sorts the notes in a temporary B-tree. The query
+     * has the same shape as a paged query on the notes_with_category URI.
+     */
+    public void testListQueriesUseIndexOrder() {
+        final String[] CATEGORY_FILTERS = {
+            null,
+            NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " = 2"
+        };
+        final String[] TODO_FILTERS = {
+            null,
+            NotePad.Notes.COLUMN_NAME_IS_TODO + " = 1",
+            NotePad.Notes.COLUMN_NAME_IS_TODO + " = 1 AND "
+                    + NotePad.Notes.COLUMN_NAME_IS_COMPLETED + " = 1"
+        };
+        final String SEEK = "notes.modified <= 5 AND (notes.modified < 5 OR notes._id < 7)";
+
+        for (String categoryFilter : CATEGORY_FILTERS) {
+            for (String todoFilter : TODO_FILTERS) {
+                for (String seek : new String[] { null, SEEK }) {
+                    String where = "(notes.deleted_at IS NULL)";
+                    for (String filter : new String[] { categoryFilter, todoFilter, seek }) {
+                        if (filter != null) {
+                            where = where + " AND (" + filter + ")";
+                        }
+                    }
+
+                    String sql = "SELECT notes._id, notes.title, categories.name"
+                            + " FROM notes LEFT OUTER JOIN categories"
+                            + " ON (notes.category_id = categories._id)"
+                            + " WHERE " + where
+                            + " ORDER BY notes.modified DESC, notes._id DESC LIMIT 50";
+
+                    Cursor plan = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, null);
+                    int detail = plan.getColumnIndexOrThrow("detail");
+                    while (plan.moveToNext()) {
+                        assertFalse(sql, plan.getString(detail).contains("TEMP B-TREE"));
+                    }
+                    plan.close();
+                }
+            }
+        }
+    }
+
+    /*
+     * Tests keyset paging on the notes URI. Walking the pages must return every note exactly
+     * once, newest first, including notes that share a modification date.
+     */
+    public void testPagedQuery() {
+        insertData();
+
+        // Adds three notes with the same modification date as Note5, so that pages have to
+        // break ties on _ID.
+        for (int index = 0; index < 3; index++) {
+            ContentValues values = TEST_NOTES[5].getContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Tie" + index);
+            mDb.insertOrThrow(NotePad.Notes.TABLE_NAME, null, values);
+        }
+        final int total = TEST_NOTES.length + 3;
+
+        final String[] PAGE_PROJECTION = {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+        };
+
+        ArrayList<Long> ids = new ArrayList<Long>();
+        long lastModified = Long.MAX_VALUE;
+        long lastId = Long.MAX_VALUE;
+        Uri pageUri = pageUri(4, null);
+        while (true) {
+            Cursor cursor = mMockResolver.query(pageUri, PAGE_PROJECTION, null, null, null);
+            assertTrue(cursor.getCount() <= 4);
+            if (cursor.getCount() == 0) {
+                cursor.close();
+                break;
+            }
+            while (cursor.moveToNext()) {
+                long id = cursor.getLong(0);
+                long modified = cursor.getLong(1);
+                assertTrue(modified < lastModified || (modified == lastModified && id < lastId));
+                assertFalse(ids.contains(id));
+                ids.add(id);
+                lastModified = modified;
+                lastId = id;
+            }
+            cursor.moveToLast();
+            pageUri = pageUri(4, cursor);
+            cursor.close();
+        }
+        assertEquals(total, ids.size());
+
+        // A selection is combined with the seek condition.
+        Cursor cursor = mMockResolver.query(
+            pageUri(100, null),
+            PAGE_PROJECTION,
+            NotePad.Notes.COLUMN_NAME_TITLE + " LIKE ?",
+            new String[] { "Tie%" },
+            null
+        );
+        assertEquals(3, cursor.getCount());
+        cursor.close();
+
+        // A page size that is not a positive number is rejected.
+        try {
+            mMockResolver.query(NotePad.Notes.CONTENT_URI.buildUpon()
+                    .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT, "0").build(),
+                    PAGE_PROJECTION, null, null, null);
+            fail("Expected failure for a page size of 0.");
+        } catch (IllegalArgumentException e) {
+            // succeeded, so do nothing.
+        }
+    }
+
+    /*
+     * Builds the URI of the page of notes that follows the current row of the given cursor, or
+     * of the first page if the cursor is null.
+     */
+    private static Uri pageUri(int limit, Cursor after) {
+        Uri.Builder builder = NotePad.Notes.CONTENT_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT, String.valueOf(limit));
+        if (after != null) {
+            builder.appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_AFTER_MODIFIED,
+                    String.valueOf(after.getLong(1)));
+            builder.appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_AFTER_ID,
+                    String.valueOf(after.getLong(0)));
+        }
+        return builder.build();
+    }
+
+    /*
+     * Tests substring search through the search URI. Changes to the notes table are tracked by
+     * triggers, so rows written directly to the database must be searchable too.
+     */
+    public void testSearch() {
+        // Inserts the test data directly into the database, bypassing the provider.
+        insertData();
+
+        // Searches for a term that appears in every note.
+        Cursor cursor = mMockResolver.query(searchUri("note"), null, null, null, null);
+        assertEquals(TEST_NOTES.length, cursor.getCount());
+
+        // Searches for a substring that spans two words. Only "This is note 5" contains it.
+        cursor = mMockResolver.query(searchUri("note 5"), null, null, null, null);
+        assertEquals(1, cursor.getCount());
+
+        // The notes written directly may not be indexed yet, since search doesn't sync the
+        // index. Once it has caught up, the same notes are found.
+        TrigramIndex.syncPending(getProvider().getOpenHelperForTest().getWritableDatabase(),
+                getProvider().getBodyStoreForTest());
+        cursor = mMockResolver.query(searchUri("note"), null, null, null, null);
+        assertEquals(TEST_NOTES.length, cursor.getCount());
+        cursor = mMockResolver.query(searchUri("note 5"), null, null, null, null);
+        assertEquals(1, cursor.getCount());
+
+        // Searches inside a run of Chinese text, which has no word boundaries.
+        ContentValues chinese = new ContentValues();
+        chinese.put(NotePad.Notes.COLUMN_NAME_TITLE, "天气");
+        chinese.put(NotePad.Notes.COLUMN_NAME_NOTE, "今天天气很好，适合出去散步");
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI, chinese);
+        cursor = mMockResolver.query(searchUri("出去散"), null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor = mMockResolver.query(searchUri("很好"), null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor = mMockResolver.query(searchUri("步"), null, null, null, null);
+        assertEquals(1, cursor.getCount());
+
+        // All the trigrams of this text are in the note, but not next to each other.
+        cursor = mMockResolver.query(searchUri("今天天气很好散步"), null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        mMockResolver.delete(NotePad.Notes.CONTENT_URI,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "天气" });
+
+        // Updates a note, and checks that the index follows the new content.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Rewritten content");
+        mMockResolver.update(NotePad.Notes.CONTENT_URI, values,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Note5" });
+        cursor = mMockResolver.query(searchUri("rewritten"), null, null, null, null);
+        assertEquals(1, cursor.getCount());
+
+        // Deletes the note, and checks that it no longer shows up in the results.
+        mMockResolver.delete(NotePad.Notes.CONTENT_URI,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Note5" });
+        cursor = mMockResolver.query(searchUri("rewritten"), null, null, null, null);
+        assertEquals(0, cursor.getCount());
+
+        // An empty search returns every remaining note.
+        cursor = mMockResolver.query(searchUri(""), null, null, null, null);
+        assertEquals(TEST_NOTES.length - 1, cursor.getCount());
+    }
+
+    // Builds a search URI for the given search text.
+    private static Uri searchUri(String query) {
+        return NotePad.Notes.SEARCH_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH, query)
+                .build();
+    }
+
     /*
      *  Tests inserts into the data model.
      */
@@ -685,6 +1018,747 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
         }
     }
 
+    /*
+     * Tests bulk inserts into the notes and categories tables.
+     */
+    public void testBulkInsert() {
+        // Subtest 1.
+        // Inserts all the test notes in one call. Rows without dates or a category get the same
+        // defaults that insert() gives them.
+        ContentValues[] notes = new ContentValues[TEST_NOTES.length];
+        for (int index = 0; index < TEST_NOTES.length; index++) {
+            notes[index] = new ContentValues();
+            notes[index].put(NotePad.Notes.COLUMN_NAME_TITLE, TEST_NOTES[index].title);
+            notes[index].put(NotePad.Notes.COLUMN_NAME_NOTE, TEST_NOTES[index].note);
+        }
+        assertEquals(TEST_NOTES.length, mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, notes));
+
+        Cursor cursor = mMockResolver.query(
+            NotePad.Notes.CONTENT_URI,
+            new String[] { NotePad.Notes.COLUMN_NAME_CATEGORY_ID,
+                    NotePad.Notes.COLUMN_NAME_CREATE_DATE },
+            null,
+            null,
+            null
+        );
+        assertEquals(TEST_NOTES.length, cursor.getCount());
+        while (cursor.moveToNext()) {
+            assertEquals(1, cursor.getLong(0));
+            assertTrue(cursor.getLong(1) > 0);
+        }
+
+        // Subtest 2.
+        // A batch with a bad row is rolled back as a whole. The second category has no name.
+        ContentValues[] categories = { new ContentValues(), new ContentValues() };
+        categories[0].put(NotePad.Categories.COLUMN_NAME_CATEGORY_NAME, "Work");
+        try {
+            mMockResolver.bulkInsert(NotePad.Categories.CONTENT_URI, categories);
+            fail("Expected bulk insert failure for a category without a name.");
+        } catch (IllegalArgumentException e) {
+            // succeeded, so do nothing.
+        }
+        cursor = mMockResolver.query(NotePad.Categories.CONTENT_URI, null, null, null, null);
+        assertEquals(1, cursor.getCount());
+    }
+
+    /*
+     * Tests that a batch of operations is applied in one transaction, the way CategoryManager
+     * deletes a category.
+     */
+    public void testApplyBatch() throws Exception {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Categories.COLUMN_NAME_CATEGORY_NAME, "Work");
+        long categoryId = ContentUris.parseId(
+                mMockResolver.insert(NotePad.Categories.CONTENT_URI, values));
+
+        values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Note0");
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY_ID, categoryId);
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        String[] selectionArgs = { String.valueOf(categoryId) };
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newUpdate(NotePad.Notes.CONTENT_URI)
+                .withValue(NotePad.Notes.COLUMN_NAME_CATEGORY_ID, 1)
+                .withSelection(NotePad.Notes.COLUMN_NAME_CATEGORY_ID + "=?", selectionArgs)
+                .build());
+        operations.add(ContentProviderOperation.newDelete(NotePad.Categories.CONTENT_URI)
+                .withSelection(NotePad.Categories._ID + "=?", selectionArgs)
+                .withYieldAllowed(true)
+                .build());
+
+        ContentProviderResult[] results = mMockResolver.applyBatch(NotePad.AUTHORITY, operations);
+        assertEquals(2, results.length);
+        assertEquals(1, results[0].count.intValue());
+        assertEquals(1, results[1].count.intValue());
+
+        Cursor cursor = mMockResolver.query(
+            NotePad.Notes.CONTENT_URI,
+            new String[] { NotePad.Notes.COLUMN_NAME_CATEGORY_ID },
+            null,
+            null,
+            null
+        );
+        assertTrue(cursor.moveToFirst());
+        assertEquals(1, cursor.getLong(0));
+
+        cursor = mMockResolver.query(NotePad.Categories.CONTENT_URI, null, null, null, null);
+        assertEquals(1, cursor.getCount());
+    }
+
+    /*
+     * Tests that the database runs in write-ahead logging mode, so that a query on another
+     * thread does not wait for an open write transaction.
+     */
+    public void testReadDuringWrite() throws Exception {
+        Cursor cursor = mDb.rawQuery("PRAGMA journal_mode", null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("wal", cursor.getString(0).toLowerCase());
+        cursor.close();
+
+        mDb.beginTransactionNonExclusive();
+        try {
+            insertData();
+
+            // Reads from another thread while the write transaction is still open. The reader
+            // sees the last committed state, which has no notes yet.
+            final int[] count = { -1 };
+            Thread reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Cursor c = mMockResolver.query(NotePad.Notes.CONTENT_URI, null, null, null, null);
+                    count[0] = c.getCount();
+                    c.close();
+                }
+            });
+            reader.start();
+            reader.join(5000);
+            assertFalse("The reader was blocked by the writer", reader.isAlive());
+            assertEquals(0, count[0]);
+
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    /*
+     * Tests that the provider keeps the preview column in step with the note text.
+     */
+    public void testPreview() {
+        StringBuilder longNote = new StringBuilder();
+        for (int index = 0; index < 100; index++) {
+            longNote.append('字');
+        }
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, longNote.toString());
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        final String[] PREVIEW_PROJECTION = { NotePad.Notes.COLUMN_NAME_PREVIEW };
+        Cursor cursor = mMockResolver.query(noteUri, PREVIEW_PROJECTION, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(longNote.substring(0, 40) + "...", cursor.getString(0));
+        cursor.close();
+
+        // A short note is its own preview.
+        values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Short");
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        cursor = mMockResolver.query(noteUri, PREVIEW_PROJECTION, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Short", cursor.getString(0));
+        cursor.close();
+
+        // Updates that leave the note text alone keep the preview.
+        values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Renamed");
+        mMockResolver.update(NotePad.Notes.CONTENT_URI, values, null, null);
+        cursor = mMockResolver.query(noteUri, PREVIEW_PROJECTION, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Short", cursor.getString(0));
+        cursor.close();
+    }
+
+    /*
+     * Tests that a note the preview backfill hasn't reached yet still reads with its preview.
+     */
+    public void testPreviewBeforeBackfill() {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "A note from before the preview column was"
+                + " added, written without one");
+        long id = mDb.insertOrThrow(NotePad.Notes.TABLE_NAME, null, values);
+
+        final String[] PREVIEW_PROJECTION = { NotePad.Notes.COLUMN_NAME_PREVIEW };
+        Cursor cursor = mMockResolver.query(
+                ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, id),
+                PREVIEW_PROJECTION, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("A note from before the preview column wa...", cursor.getString(0));
+        cursor.close();
+
+        cursor = mMockResolver.query(NotePad.Notes.WITH_CATEGORY_URI, PREVIEW_PROJECTION,
+                NotePad.Notes._ID + " = " + id, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("A note from before the preview column wa...", cursor.getString(0));
+        cursor.close();
+    }
+
+    /*
+     * Tests that a note body longer than EXTERNAL_BODY_LENGTH is stored in a file, that it is
+     * read back in full through openInputStream(), and that its file is deleted once no note
+     * refers to it.
+     */
+    public void testLargeNoteStoredOutOfRow() throws IOException {
+        StringBuilder builder = new StringBuilder();
+        for (int index = 0; builder.length() <= NotePadProvider.EXTERNAL_BODY_LENGTH * 4; index++) {
+            builder.append("Line ").append(index).append(" of a very long note\n");
+        }
+        String body = builder.toString();
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, body);
+        Uri firstUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        Uri secondUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        // The cursor never carries the body itself.
+        final String[] BODY_PROJECTION = {
+                NotePad.Notes.COLUMN_NAME_NOTE,
+                NotePad.Notes.COLUMN_NAME_NOTE_EXTERNAL,
+                NotePad.Notes.COLUMN_NAME_PREVIEW
+        };
+        Cursor cursor = mMockResolver.query(firstUri, BODY_PROJECTION, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertNull(cursor.getString(0));
+        assertEquals(1, cursor.getInt(1));
+        assertEquals(body.substring(0, 40) + "...", cursor.getString(2));
+        cursor.close();
+
+        assertEquals(body, readBody(firstUri));
+
+        // Both notes share one file, which is kept as long as either refers to it.
+        String name = noteFileOf(firstUri);
+        assertEquals(name, noteFileOf(secondUri));
+        File file = getProvider().getBodyStoreForTest().getFile(name);
+        assertTrue(file.exists());
+
+        assertEquals(1, mMockResolver.delete(firstUri, null, null));
+        assertTrue(file.exists());
+
+        // The revision of the replaced body refers to the same file, so it is kept until the
+        // note and its revisions are deleted.
+        values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Short");
+        assertEquals(1, mMockResolver.update(secondUri, values, null, null));
+        assertTrue(file.exists());
+
+        cursor = mMockResolver.query(secondUri, BODY_PROJECTION, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Short", cursor.getString(0));
+        assertEquals(0, cursor.getInt(1));
+        cursor.close();
+        assertEquals("Short", readBody(secondUri));
+
+        cursor = mMockResolver.query(NotePad.NoteRevisions.getContentUri(
+                ContentUris.parseId(secondUri)), null, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        Uri revisionUri = ContentUris.withAppendedId(NotePad.NoteRevisions.getContentUri(
+                ContentUris.parseId(secondUri)), cursor.getLong(
+                        cursor.getColumnIndexOrThrow(NotePad.NoteRevisions._ID)));
+        assertEquals(1, cursor.getInt(
+                cursor.getColumnIndexOrThrow(NotePad.NoteRevisions.COLUMN_NAME_NOTE_EXTERNAL)));
+        cursor.close();
+        assertEquals(body, readBody(revisionUri));
+
+        assertEquals(1, mMockResolver.delete(secondUri, null, null));
+        assertFalse(file.exists());
+    }
+
+    /*
+     * Tests that search sees the whole of a body stored in a file, not just the start its row
+     * keeps, both before and after the index has caught up with the note.
+     */
+    public void testSearchLargeNote() {
+        StringBuilder builder = new StringBuilder("开头的文字\n");
+        for (int index = 0; builder.length() <= NotePadProvider.EXTERNAL_BODY_LENGTH * 2; index++) {
+            builder.append("Line ").append(index).append(" of a very long note\n");
+        }
+        builder.append("结尾的暗号 Zebra");
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Large");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, builder.toString());
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        Uri countUri = NotePad.Notes.COUNT_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH, "暗号 z").build();
+
+        for (int pass = 0; pass < 2; pass++) {
+            // Text in the row, text only in the file, ignoring the case of ASCII letters
+            Cursor cursor = mMockResolver.query(searchUri("开头"), null, null, null, null);
+            assertEquals(1, cursor.getCount());
+            cursor.close();
+            cursor = mMockResolver.query(searchUri("暗号 z"), null, null, null, null);
+            assertEquals(1, cursor.getCount());
+            cursor.close();
+            assertEquals(1, queryCount(countUri, null, null));
+
+            // Both halves are in the file, but not in this order.
+            cursor = mMockResolver.query(searchUri("暗号结尾"), null, null, null, null);
+            assertEquals(0, cursor.getCount());
+            cursor.close();
+
+            TrigramIndex.syncPending(getProvider().getOpenHelperForTest().getWritableDatabase(),
+                    getProvider().getBodyStoreForTest());
+        }
+    }
+
+    /*
+     * Tests that the grams of a body read in chunks are the grams of the whole body, wherever
+     * the chunks split it: inside a run, next to a separator, or inside a surrogate pair.
+     */
+    public void testStreamedGrams() throws IOException {
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; body.length() < 3 * NoteBodyStore.CHUNK_LENGTH; i++) {
+            body.append("Line ").append(i).append(": 会议记录\uD83D\uDE00ab, ");
+        }
+        StringBuilder expected = new StringBuilder();
+        TrigramIndex.appendGrams(expected, body.toString());
+
+        for (final int step : new int[] { 1, 2, 3, 7, NoteBodyStore.CHUNK_LENGTH }) {
+            Reader reader = new StringReader(body.toString()) {
+                @Override
+                public int read(char[] buffer) throws IOException {
+                    return read(buffer, 0, Math.min(step, buffer.length));
+                }
+            };
+            StringBuilder grams = new StringBuilder();
+            TrigramIndex.appendGrams(grams, reader);
+            assertEquals("chunks of " + step, expected.toString(), grams.toString());
+        }
+    }
+
+    /*
+     * Tests that the export of the notes URI has one line of JSON per note, over more than one
+     * page, with the category by name and a large body in full.
+     */
+    public void testExportNotes() throws IOException, JSONException {
+        ContentValues category = new ContentValues();
+        category.put(NotePad.Categories.COLUMN_NAME_CATEGORY_NAME, "工作");
+        category.put(NotePad.Categories.COLUMN_NAME_CATEGORY_COLOR, 0xFF00FF00);
+        long categoryId = ContentUris.parseId(
+                mMockResolver.insert(NotePad.Categories.CONTENT_URI, category));
+
+        int noteCount = 450;
+        ContentValues[] notes = new ContentValues[noteCount];
+        for (int i = 0; i < noteCount; i++) {
+            notes[i] = new ContentValues();
+            notes[i].put(NotePad.Notes.COLUMN_NAME_TITLE, "Note " + i);
+            notes[i].put(NotePad.Notes.COLUMN_NAME_NOTE, "Line \"" + i + "\"\n第二行\u2028");
+            notes[i].put(NotePad.Notes.COLUMN_NAME_CATEGORY_ID, i % 2 == 0 ? 1 : categoryId);
+        }
+        StringBuilder large = new StringBuilder();
+        while (large.length() <= NotePadProvider.EXTERNAL_BODY_LENGTH * 2) {
+            large.append("A long line with \\ and \t in it\n");
+        }
+        notes[noteCount - 1].put(NotePad.Notes.COLUMN_NAME_NOTE, large.toString());
+        assertEquals(noteCount, mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, notes));
+
+        AssetFileDescriptor export = mMockResolver.openTypedAssetFileDescriptor(
+                NotePad.Notes.CONTENT_URI, NotePad.Notes.EXPORT_MIME_TYPE, null);
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(export.createInputStream(), "UTF-8"));
+        try {
+            int i = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                JSONObject note = new JSONObject(line);
+                assertEquals("Note " + i, note.getString(NotePad.Notes.COLUMN_NAME_TITLE));
+                assertEquals(notes[i].getAsString(NotePad.Notes.COLUMN_NAME_NOTE),
+                        note.getString(NotePad.Notes.COLUMN_NAME_NOTE));
+                assertEquals(i % 2 == 0 ? NotePad.Categories.DEFAULT_CATEGORY_NAME : "工作",
+                        note.getString(NotePad.Notes.COLUMN_NAME_CATEGORY_NAME));
+                assertEquals(0, note.getInt(NotePad.Notes.COLUMN_NAME_IS_TODO));
+                assertTrue(note.has(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE));
+                i++;
+            }
+            assertEquals(noteCount, i);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /*
+     * Tests that replacing the text of a note keeps the text it had as a revision, that every
+     * revision reads back as it was, and that only the newest revisions are kept.
+     */
+    public void testRevisions() {
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, new ContentValues());
+        long noteId = ContentUris.parseId(noteUri);
+        Uri revisionsUri = NotePad.NoteRevisions.getContentUri(noteId);
+
+        // Typing in the middle of the note, with an occasional rewrite that can't be a delta
+        int saves = NoteHistory.MAX_REVISIONS + NoteHistory.SNAPSHOT_INTERVAL * 2 + 3;
+        List<String> texts = new ArrayList<String>();
+        StringBuilder text = new StringBuilder("开始 start of the note. end of the note 结束");
+        for (int i = 0; i < saves; i++) {
+            if (i % 17 == 16) {
+                text = new StringBuilder("Rewritten 重写 " + i);
+            } else {
+                text.insert(text.length() / 2, " word " + i + " 字");
+            }
+            texts.add(text.toString());
+
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Title " + i);
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, text.toString());
+            assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        }
+
+        // Saving the same text again, or changing only the title, adds no revision.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, text.toString());
+        mMockResolver.update(noteUri, values, null, null);
+        values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Only the title");
+        mMockResolver.update(noteUri, values, null, null);
+
+        Cursor revisions = mMockResolver.query(revisionsUri, null, null, null, null);
+        int count = revisions.getCount();
+        assertTrue(count <= NoteHistory.MAX_REVISIONS);
+        assertTrue(count > NoteHistory.MAX_REVISIONS - NoteHistory.SNAPSHOT_INTERVAL);
+
+        // Newest first: the first revision holds the text of the save before the last one.
+        int index = saves - 2;
+        while (revisions.moveToNext()) {
+            long revisionId = revisions.getLong(
+                    revisions.getColumnIndexOrThrow(NotePad.NoteRevisions._ID));
+            assertEquals("Title " + index, revisions.getString(
+                    revisions.getColumnIndexOrThrow(NotePad.NoteRevisions.COLUMN_NAME_TITLE)));
+
+            Cursor revision = mMockResolver.query(
+                    ContentUris.withAppendedId(revisionsUri, revisionId), null, null, null, null);
+            assertTrue(revision.moveToFirst());
+            assertEquals(texts.get(index), revision.getString(
+                    revision.getColumnIndexOrThrow(NotePad.NoteRevisions.COLUMN_NAME_NOTE)));
+            assertEquals(0, revision.getInt(revision.getColumnIndexOrThrow(
+                    NotePad.NoteRevisions.COLUMN_NAME_NOTE_EXTERNAL)));
+            revision.close();
+            index--;
+        }
+        revisions.close();
+
+        // Most revisions are deltas.
+        assertTrue(DatabaseUtils.queryNumEntries(mDb, NotePad.NoteRevisions.TABLE_NAME,
+                "keep_start IS NULL", null) < count / 2);
+
+        assertEquals(1, mMockResolver.delete(noteUri, null, null));
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, NotePad.NoteRevisions.TABLE_NAME));
+    }
+
+    private String readBody(Uri noteUri) throws IOException {
+        Reader reader = new InputStreamReader(mMockResolver.openInputStream(noteUri), "UTF-8");
+        try {
+            StringBuilder text = new StringBuilder();
+            char[] buffer = new char[8 * 1024];
+            int count;
+            while ((count = reader.read(buffer)) != -1) {
+                text.append(buffer, 0, count);
+            }
+            return text.toString();
+        } finally {
+            reader.close();
+        }
+    }
+
+    private String noteFileOf(Uri noteUri) {
+        return DatabaseUtils.stringForQuery(mDb, "SELECT " + NotePadProvider.COLUMN_NAME_NOTE_FILE
+                + " FROM " + NotePad.Notes.TABLE_NAME + " WHERE " + NotePad.Notes._ID + " = "
+                + ContentUris.parseId(noteUri), null);
+    }
+
+    /*
+     * Tests the count URIs: they count the notes that a list with the same selection and search
+     * would show, in total or per category, and leave out the trash, which is counted on its own.
+     */
+    public void testCounts() {
+        insertData();
+        mDb.execSQL("UPDATE " + NotePad.Notes.TABLE_NAME + " SET "
+                + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " = 2 WHERE " + NotePad.Notes._ID
+                + " <= 3");
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_DELETED_AT, System.currentTimeMillis());
+        assertEquals(1, mMockResolver.update(
+                ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, 1), values, null, null));
+
+        assertEquals(TEST_NOTES.length - 1, queryCount(NotePad.Notes.COUNT_URI, null, null));
+        assertEquals(2, queryCount(NotePad.Notes.COUNT_URI,
+                NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " = ?", new String[] { "2" }));
+        Uri searchCountUri = NotePad.Notes.COUNT_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH, "note 5").build();
+        assertEquals(1, queryCount(searchCountUri, null, null));
+
+        assertEquals(1, queryCount(NotePad.Trash.COUNT_URI, null, null));
+        assertEquals(1, queryCount(NotePad.Trash.COUNT_URI,
+                NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " = ?", new String[] { "2" }));
+        assertEquals(0, queryCount(NotePad.Trash.COUNT_URI,
+                NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " = ?", new String[] { "1" }));
+
+        Cursor cursor = mMockResolver.query(NotePad.Notes.COUNT_BY_CATEGORY_URI, null, null, null,
+                null);
+        assertEquals(2, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(1, cursor.getLong(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_CATEGORY_ID)));
+        assertEquals(TEST_NOTES.length - 3, cursor.getInt(cursor.getColumnIndex(NotePad.Notes._COUNT)));
+        assertTrue(cursor.moveToNext());
+        assertEquals(2, cursor.getLong(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_CATEGORY_ID)));
+        assertEquals(2, cursor.getInt(cursor.getColumnIndex(NotePad.Notes._COUNT)));
+        cursor.close();
+
+        assertEquals(NotePad.Notes.COUNT_ITEM_TYPE, mMockResolver.getType(NotePad.Notes.COUNT_URI));
+        assertEquals(NotePad.Notes.COUNT_ITEM_TYPE, mMockResolver.getType(NotePad.Trash.COUNT_URI));
+        try {
+            mMockResolver.delete(NotePad.Notes.COUNT_URI, null, null);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // continue
+        }
+    }
+
+    /*
+     * Tests that the category stats follow inserts, updates, trash and deletes of notes, count
+     * the overdue todos at the time of the query, and have a row for an empty category.
+     */
+    public void testCategoryStats() {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Categories.COLUMN_NAME_CATEGORY_NAME, "Work");
+        values.put(NotePad.Categories.COLUMN_NAME_CREATE_DATE, System.currentTimeMillis());
+        long work = ContentUris.parseId(mMockResolver.insert(NotePad.Categories.CONTENT_URI, values));
+        assertCategoryStats(1, 0, 0, 0, 0);
+        assertCategoryStats(work, 0, 0, 0, 0);
+
+        insertData();
+        assertCategoryStats(1, TEST_NOTES.length, 0, 0, 0);
+
+        // Two todos, one of them overdue, and a completed one that is past its date
+        long past = System.currentTimeMillis() - ONE_DAY_MILLIS;
+        long future = System.currentTimeMillis() + ONE_DAY_MILLIS;
+        updateNote(1, work, 1, 0, past);
+        updateNote(2, work, 1, 0, future);
+        updateNote(3, work, 1, 1, past);
+        assertCategoryStats(1, TEST_NOTES.length - 3, 0, 0, 0);
+        assertCategoryStats(work, 3, 3, 1, 1);
+
+        // Saving the text of a note leaves the counts as they are.
+        values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Changed");
+        assertEquals(1, mMockResolver.update(
+                ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, 1), values, null, null));
+        assertCategoryStats(work, 3, 3, 1, 1);
+
+        // A note in the trash isn't counted, and counts again once it is put back.
+        values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_DELETED_AT, System.currentTimeMillis());
+        Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, 1);
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        assertCategoryStats(work, 2, 2, 1, 0);
+        values.putNull(NotePad.Notes.COLUMN_NAME_DELETED_AT);
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        assertCategoryStats(work, 3, 3, 1, 1);
+
+        // Deleting a note from the trash doesn't count it off twice.
+        values.put(NotePad.Notes.COLUMN_NAME_DELETED_AT, System.currentTimeMillis());
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        assertEquals(1, mMockResolver.delete(
+                ContentUris.withAppendedId(NotePad.Trash.CONTENT_ID_URI_BASE, 1), null, null));
+        assertCategoryStats(work, 2, 2, 1, 0);
+
+        assertEquals(1, mMockResolver.delete(
+                ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, 2), null, null));
+        assertCategoryStats(work, 1, 1, 1, 0);
+        assertCategoryStats(1, TEST_NOTES.length - 3, 0, 0, 0);
+
+        assertEquals(NotePad.CategoryStats.CONTENT_TYPE,
+                mMockResolver.getType(NotePad.CategoryStats.CONTENT_URI));
+    }
+
+    private void updateNote(long noteId, long categoryId, int isTodo, int isCompleted,
+            long dueDate) {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY_ID, categoryId);
+        values.put(NotePad.Notes.COLUMN_NAME_IS_TODO, isTodo);
+        values.put(NotePad.Notes.COLUMN_NAME_IS_COMPLETED, isCompleted);
+        values.put(NotePad.Notes.COLUMN_NAME_DUE_DATE, dueDate);
+        assertEquals(1, mMockResolver.update(
+                ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, noteId),
+                values, null, null));
+    }
+
+    private void assertCategoryStats(long categoryId, int notes, int todos, int completed,
+            int overdue) {
+        Cursor cursor = mMockResolver.query(NotePad.CategoryStats.CONTENT_URI, null, null, null,
+                null);
+        try {
+            while (cursor.moveToNext()) {
+                if (cursor.getLong(cursor.getColumnIndex(
+                        NotePad.CategoryStats.COLUMN_NAME_CATEGORY_ID)) != categoryId) {
+                    continue;
+                }
+                assertEquals(notes, cursor.getInt(cursor.getColumnIndex(
+                        NotePad.CategoryStats.COLUMN_NAME_NOTE_COUNT)));
+                assertEquals(todos, cursor.getInt(cursor.getColumnIndex(
+                        NotePad.CategoryStats.COLUMN_NAME_TODO_COUNT)));
+                assertEquals(completed, cursor.getInt(cursor.getColumnIndex(
+                        NotePad.CategoryStats.COLUMN_NAME_COMPLETED_COUNT)));
+                assertEquals(overdue, cursor.getInt(cursor.getColumnIndex(
+                        NotePad.CategoryStats.COLUMN_NAME_OVERDUE_COUNT)));
+                return;
+            }
+            fail("No stats for category " + categoryId);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private int queryCount(Uri uri, String selection, String[] selectionArgs) {
+        Cursor cursor = mMockResolver.query(uri, null, selection, selectionArgs, null);
+        try {
+            assertEquals(1, cursor.getCount());
+            assertTrue(cursor.moveToFirst());
+            return cursor.getInt(cursor.getColumnIndex(NotePad.Notes._COUNT));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /*
+     * Tests the trash: a note moved there leaves the lists but can still be opened, it can be
+     * put back, and deleting it from the trash, or purging the trash once it has expired,
+     * removes it for good.
+     */
+    public void testTrash() {
+        insertData();
+        Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, 1);
+        Cursor cursor = mMockResolver.query(noteUri,
+                new String[] { NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE }, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        long modified = cursor.getLong(0);
+        cursor.close();
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_DELETED_AT, System.currentTimeMillis());
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+
+        for (Uri listUri : new Uri[] { NotePad.Notes.CONTENT_URI, NotePad.Notes.WITH_CATEGORY_URI }) {
+            cursor = mMockResolver.query(listUri, null, null, null, null);
+            assertEquals(TEST_NOTES.length - 1, cursor.getCount());
+            cursor.close();
+        }
+        cursor = mMockResolver.query(NotePad.Trash.CONTENT_URI, null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+
+        // The note itself can still be read, and it keeps its modification date.
+        cursor = mMockResolver.query(noteUri,
+                new String[] { NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE }, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(modified, cursor.getLong(0));
+        cursor.close();
+
+        // Putting it back
+        values.putNull(NotePad.Notes.COLUMN_NAME_DELETED_AT);
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null, null, null, null);
+        assertEquals(TEST_NOTES.length, cursor.getCount());
+        cursor.close();
+
+        // Deleting from the trash only touches notes in it.
+        assertEquals(0, mMockResolver.delete(
+                ContentUris.withAppendedId(NotePad.Trash.CONTENT_ID_URI_BASE, 1), null, null));
+        values.put(NotePad.Notes.COLUMN_NAME_DELETED_AT, System.currentTimeMillis());
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        assertEquals(1, mMockResolver.delete(
+                ContentUris.withAppendedId(NotePad.Trash.CONTENT_ID_URI_BASE, 1), null, null));
+        assertEquals(TEST_NOTES.length - 1,
+                DatabaseUtils.queryNumEntries(mDb, NotePad.Notes.TABLE_NAME));
+
+        // The purge only deletes the notes that expired, in batches.
+        long expired = System.currentTimeMillis() - NotePad.Trash.RETENTION_MILLIS - 1;
+        mDb.execSQL("UPDATE " + NotePad.Notes.TABLE_NAME + " SET "
+                + NotePad.Notes.COLUMN_NAME_DELETED_AT + " = " + expired
+                + " WHERE " + NotePad.Notes._ID + " IN (2, 3)");
+        mDb.execSQL("UPDATE " + NotePad.Notes.TABLE_NAME + " SET "
+                + NotePad.Notes.COLUMN_NAME_DELETED_AT + " = " + System.currentTimeMillis()
+                + " WHERE " + NotePad.Notes._ID + " = 4");
+        assertEquals(2, getProvider().purgeTrash());
+        assertEquals(TEST_NOTES.length - 3,
+                DatabaseUtils.queryNumEntries(mDb, NotePad.Notes.TABLE_NAME));
+        cursor = mMockResolver.query(NotePad.Trash.CONTENT_URI, null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+     * Tests putting notes back through the trash URI: the note is back in the lists and gone
+     * from the trash, notes that aren't in the trash are left alone, and nothing but clearing
+     * the deletion time is taken.
+     */
+    public void testTrashRestore() {
+        insertData();
+        Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, 1);
+        Uri trashUri = ContentUris.withAppendedId(NotePad.Trash.CONTENT_ID_URI_BASE, 1);
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_DELETED_AT, System.currentTimeMillis());
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+
+        ContentValues restore = new ContentValues();
+        restore.putNull(NotePad.Notes.COLUMN_NAME_DELETED_AT);
+
+        // A note that isn't in the trash isn't touched.
+        assertEquals(0, mMockResolver.update(
+                ContentUris.withAppendedId(NotePad.Trash.CONTENT_ID_URI_BASE, 2), restore,
+                null, null));
+
+        // The trash takes nothing else.
+        ContentValues other = new ContentValues();
+        other.put(NotePad.Notes.COLUMN_NAME_TITLE, "Restored");
+        try {
+            mMockResolver.update(trashUri, other, null, null);
+            fail("The trash took a title");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        values.put(NotePad.Notes.COLUMN_NAME_DELETED_AT, System.currentTimeMillis());
+        try {
+            mMockResolver.update(trashUri, values, null, null);
+            fail("The trash took a deletion time");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        assertEquals(1, mMockResolver.update(trashUri, restore, null, null));
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI,
+                new String[] { NotePad.Notes._ID }, NotePad.Notes._ID + " = 1", null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null, null, null, null);
+        assertEquals(TEST_NOTES.length, cursor.getCount());
+        cursor.close();
+        cursor = mMockResolver.query(NotePad.Trash.CONTENT_URI, null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+
+        // Putting every note in the trash back at once
+        values.put(NotePad.Notes.COLUMN_NAME_DELETED_AT, System.currentTimeMillis());
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        assertEquals(1, mMockResolver.update(
+                ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, 2), values,
+                null, null));
+        assertEquals(2, mMockResolver.update(NotePad.Trash.CONTENT_URI, restore, null, null));
+        cursor = mMockResolver.query(NotePad.Trash.CONTENT_URI, null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+    }
+
     /*
      * Tests deletions from the data model.
      */
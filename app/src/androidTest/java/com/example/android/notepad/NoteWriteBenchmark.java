@@ -0,0 +1,129 @@
+package com.example.android.notepad;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.ProviderTestCase2;
+import android.test.mock.MockContentResolver;
+import android.util.Log;
+
+/**
+ * Measures the cost of the editor's note updates through the provider, with and without the
+ * precompiled statements in {@link NoteStatements}. The timings are written to the log; the
+ * assertions only check that both paths write the same data.
+ */
+public class NoteWriteBenchmark extends ProviderTestCase2<NotePadProvider> {
+
+    private static final String TAG = "NoteWriteBenchmark";
+
+    // The number of updates timed on each path
+    private static final int WRITES = 500;
+
+    // The number of updates run before timing, so both paths start warm
+    private static final int WARM_UP_WRITES = 50;
+
+    private MockContentResolver mMockResolver;
+
+    public NoteWriteBenchmark() {
+        super(NotePadProvider.class, NotePad.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMockResolver = getMockContentResolver();
+    }
+
+    /*
+     * Times full note updates by ID, the write NoteEditor makes on every save.
+     */
+    public void testNoteUpdateLatency() {
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, new ContentValues());
+        long id = ContentUris.parseId(noteUri);
+
+        // An update with a selection always goes through SQLiteDatabase.update(). The selection
+        // is always true, so both paths update the same row.
+        String genericWhere = NotePad.Notes._ID + " = " + id;
+
+        timeUpdates(noteUri, genericWhere, WARM_UP_WRITES);
+        timeUpdates(noteUri, null, WARM_UP_WRITES);
+
+        long generic = timeUpdates(noteUri, genericWhere, WRITES);
+        long compiled = timeUpdates(noteUri, null, WRITES);
+
+        Log.i(TAG, "Note update: " + (generic / WRITES / 1000) + " us per write with update(), "
+                + (compiled / WRITES / 1000) + " us per write with a precompiled statement");
+
+        Cursor cursor = mMockResolver.query(noteUri,
+                new String[] { NotePad.Notes.COLUMN_NAME_NOTE, NotePad.Notes.COLUMN_NAME_PREVIEW },
+                null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(noteText(WRITES - 1), cursor.getString(0));
+        assertEquals(noteText(WRITES - 1), cursor.getString(1));
+        cursor.close();
+    }
+
+    /*
+     * Times to-do state updates by ID, the write NoteEditor makes when a flag or the due date
+     * changes.
+     */
+    public void testTodoUpdateLatency() {
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, new ContentValues());
+        String genericWhere = NotePad.Notes._ID + " = " + ContentUris.parseId(noteUri);
+
+        long generic = 0;
+        long compiled = 0;
+        for (int i = 0; i < WARM_UP_WRITES + WRITES; i++) {
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_IS_TODO, 1);
+            values.put(NotePad.Notes.COLUMN_NAME_IS_COMPLETED, i % 2);
+            values.put(NotePad.Notes.COLUMN_NAME_DUE_DATE, i);
+
+            long start = System.nanoTime();
+            mMockResolver.update(noteUri, new ContentValues(values), genericWhere, null);
+            long middle = System.nanoTime();
+            mMockResolver.update(noteUri, values, null, null);
+            long end = System.nanoTime();
+
+            if (i >= WARM_UP_WRITES) {
+                generic += middle - start;
+                compiled += end - middle;
+            }
+        }
+
+        Log.i(TAG, "To-do update: " + (generic / WRITES / 1000) + " us per write with update(), "
+                + (compiled / WRITES / 1000) + " us per write with a precompiled statement");
+
+        Cursor cursor = mMockResolver.query(noteUri,
+                new String[] { NotePad.Notes.COLUMN_NAME_DUE_DATE }, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(WARM_UP_WRITES + WRITES - 1, cursor.getLong(0));
+        cursor.close();
+    }
+
+    /*
+     * Runs the given number of full note updates and returns the time they took, in
+     * nanoseconds.
+     */
+    private long timeUpdates(Uri noteUri, String where, int writes) {
+        long total = 0;
+        for (int i = 0; i < writes; i++) {
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, noteText(i));
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Note " + i);
+            values.put(NotePad.Notes.COLUMN_NAME_IS_TODO, 0);
+            values.put(NotePad.Notes.COLUMN_NAME_IS_COMPLETED, 0);
+            values.put(NotePad.Notes.COLUMN_NAME_DUE_DATE, -1);
+
+            long start = System.nanoTime();
+            assertEquals(1, mMockResolver.update(noteUri, values, where, null));
+            total += System.nanoTime() - start;
+        }
+        return total;
+    }
+
+    private static String noteText(int i) {
+        return "Benchmark note " + i;
+    }
+}
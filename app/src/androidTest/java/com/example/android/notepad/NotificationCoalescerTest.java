@@ -0,0 +1,80 @@
+package com.example.android.notepad;
+
+import android.content.ContentUris;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentResolver;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests that {@link NotificationCoalescer} collapses change notifications.
+ */
+public class NotificationCoalescerTest extends AndroidTestCase {
+
+    // A window long enough that it never closes during a test
+    private static final long LONG_WINDOW_MILLIS = 60 * 1000;
+
+    private RecordingResolver mResolver;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mResolver = new RecordingResolver();
+    }
+
+    /*
+     * Tests that changes inside a window are sent once per URI when the window closes.
+     */
+    public void testWindow() {
+        NotificationCoalescer coalescer = new NotificationCoalescer(mResolver, LONG_WINDOW_MILLIS);
+
+        for (int i = 0; i < 100; i++) {
+            coalescer.notifyChange(NotePad.Categories.CONTENT_URI);
+        }
+        assertTrue(mResolver.notified.isEmpty());
+
+        coalescer.flush();
+        assertEquals(1, mResolver.notified.size());
+        assertEquals(NotePad.Categories.CONTENT_URI, mResolver.notified.get(0));
+    }
+
+    /*
+     * Tests that a batch holds its changes until the outermost batch ends, and that a URI whose
+     * ancestor changed too is left out.
+     */
+    public void testBatch() {
+        NotificationCoalescer coalescer = new NotificationCoalescer(mResolver, 0);
+
+        coalescer.beginBatch();
+        coalescer.beginBatch();
+        for (int i = 1; i <= 100; i++) {
+            coalescer.notifyChange(ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, i));
+        }
+        coalescer.notifyChange(NotePad.Notes.CONTENT_URI);
+        coalescer.endBatch();
+        assertTrue(mResolver.notified.isEmpty());
+
+        coalescer.endBatch();
+        assertEquals(1, mResolver.notified.size());
+        assertEquals(NotePad.Notes.CONTENT_URI, mResolver.notified.get(0));
+
+        // Outside a batch, a window of 0 notifies right away.
+        coalescer.notifyChange(NotePad.Categories.CONTENT_URI);
+        assertEquals(2, mResolver.notified.size());
+    }
+
+    /*
+     * A resolver that records the URIs it is asked to notify.
+     */
+    private static class RecordingResolver extends MockContentResolver {
+        final List<Uri> notified = new ArrayList<Uri>();
+
+        @Override
+        public void notifyChange(Uri uri, ContentObserver observer, boolean syncToNetwork) {
+            notified.add(uri);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.example.android.notepad;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * 进程内共享的分类缓存
+ *
+ * 第一次使用时从 provider 读取全部分类，之后按 id 查询只需在内存中二分查找。
+ * 分类表变化时由 ContentObserver 清空缓存，下次使用时重新加载。
+ * 修改分类的页面应在写入后调用 {@link #invalidate()}，因为数据变化通知是异步到达的。
+ */
+public final class CategoryCache {
+
+    /**
+     * 一个分类，内容不可修改
+     */
+    public static final class Category {
+        public final long id;
+        public final String name;
+        public final int color;
+
+        Category(long id, String name, int color) {
+            this.id = id;
+            this.name = name;
+            this.color = color;
+        }
+    }
+
+    private static final String[] PROJECTION = new String[]{
+            NotePad.Categories._ID,
+            NotePad.Categories.COLUMN_NAME_CATEGORY_NAME,
+            NotePad.Categories.COLUMN_NAME_CATEGORY_COLOR
+    };
+
+    private static CategoryCache sInstance;
+
+    private final ContentResolver mResolver;
+
+    // 当前的缓存内容，为 null 表示需要重新加载
+    private volatile Snapshot mSnapshot;
+
+    // 每次失效加一，用来丢弃加载过程中已经过期的结果
+    private int mGeneration;
+
+    private final ContentObserver mObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            invalidate();
+        }
+    };
+
+    private CategoryCache(Context context) {
+        mResolver = context.getContentResolver();
+        mResolver.registerContentObserver(NotePad.Categories.CONTENT_URI, true, mObserver);
+    }
+
+    /**
+     * 获取进程内唯一的缓存实例
+     */
+    public static synchronized CategoryCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new CategoryCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * 按 id 查找分类
+     *
+     * @return 分类，不存在时返回 null
+     */
+    public Category get(long id) {
+        Snapshot snapshot = getSnapshot();
+        int index = Arrays.binarySearch(snapshot.sortedIds, id);
+        return index >= 0 ? snapshot.byId[index] : null;
+    }
+
+    /**
+     * 按创建时间顺序返回全部分类
+     */
+    public List<Category> getAll() {
+        return getSnapshot().ordered;
+    }
+
+    /**
+     * 清空缓存，下次使用时重新加载
+     */
+    public synchronized void invalidate() {
+        mGeneration++;
+        mSnapshot = null;
+    }
+
+    private Snapshot getSnapshot() {
+        Snapshot snapshot = mSnapshot;
+        if (snapshot != null) {
+            return snapshot;
+        }
+
+        int generation;
+        synchronized (this) {
+            generation = mGeneration;
+        }
+
+        snapshot = load();
+
+        // 加载期间分类又发生变化时不保存结果，但本次仍然返回它
+        synchronized (this) {
+            if (generation == mGeneration) {
+                mSnapshot = snapshot;
+            }
+        }
+        return snapshot;
+    }
+
+    private Snapshot load() {
+        Cursor cursor = mResolver.query(
+                NotePad.Categories.CONTENT_URI,
+                PROJECTION,
+                null, null, NotePad.Categories.COLUMN_NAME_CREATE_DATE + " ASC"
+        );
+
+        Category[] ordered = new Category[0];
+        if (cursor != null) {
+            try {
+                ordered = new Category[cursor.getCount()];
+                int i = 0;
+                while (cursor.moveToNext()) {
+                    ordered[i++] = new Category(cursor.getLong(0), cursor.getString(1),
+                            cursor.getInt(2));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return new Snapshot(ordered);
+    }
+
+    /**
+     * 某一时刻的全部分类。按 id 排序的 long 数组作为索引，查找时不需要装箱
+     */
+    private static final class Snapshot {
+        final long[] sortedIds;
+        final Category[] byId;
+        final List<Category> ordered;
+
+        Snapshot(Category[] categories) {
+            ordered = Collections.unmodifiableList(Arrays.asList(categories));
+
+            Category[] sorted = categories.clone();
+            Arrays.sort(sorted, new Comparator<Category>() {
+                @Override
+                public int compare(Category lhs, Category rhs) {
+                    return lhs.id < rhs.id ? -1 : (lhs.id == rhs.id ? 0 : 1);
+                }
+            });
+
+            byId = sorted;
+            sortedIds = new long[sorted.length];
+            for (int i = 0; i < sorted.length; i++) {
+                sortedIds[i] = sorted[i].id;
+            }
+        }
+    }
+}
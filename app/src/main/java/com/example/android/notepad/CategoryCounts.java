@@ -0,0 +1,91 @@
+package com.example.android.notepad;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 一个分类下的笔记数、待办数和逾期数
+ *
+ * 数据来自 {@link NotePad.CategoryStats#CONTENT_URI}，笔记数和待办数由数据库触发器随笔记变化维护，
+ * 每个分类读一行；逾期数要在索引中数一遍已经逾期的待办。统计随笔记不断变化，所以不做缓存，
+ * 每次打开分类相关的界面时重新读取。
+ */
+public final class CategoryCounts {
+
+    private static final CategoryCounts EMPTY = new CategoryCounts(0, 0, 0, 0);
+
+    private static final String[] PROJECTION = new String[]{
+            NotePad.CategoryStats.COLUMN_NAME_CATEGORY_ID,
+            NotePad.CategoryStats.COLUMN_NAME_NOTE_COUNT,
+            NotePad.CategoryStats.COLUMN_NAME_TODO_COUNT,
+            NotePad.CategoryStats.COLUMN_NAME_COMPLETED_COUNT,
+            NotePad.CategoryStats.COLUMN_NAME_OVERDUE_COUNT
+    };
+
+    public final int noteCount;
+    public final int todoCount;
+    public final int completedCount;
+    public final int overdueCount;
+
+    private CategoryCounts(int noteCount, int todoCount, int completedCount, int overdueCount) {
+        this.noteCount = noteCount;
+        this.todoCount = todoCount;
+        this.completedCount = completedCount;
+        this.overdueCount = overdueCount;
+    }
+
+    /**
+     * 读取全部分类的统计
+     *
+     * @return 以分类 id 为键的统计
+     */
+    public static Map<Long, CategoryCounts> query(ContentResolver resolver) {
+        Map<Long, CategoryCounts> counts = new HashMap<>();
+        Cursor cursor = resolver.query(NotePad.CategoryStats.CONTENT_URI, PROJECTION,
+                null, null, null);
+        if (cursor != null) {
+            try {
+                while (cursor.moveToNext()) {
+                    counts.put(cursor.getLong(0), new CategoryCounts(cursor.getInt(1),
+                            cursor.getInt(2), cursor.getInt(3), cursor.getInt(4)));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * 取出一个分类的统计，没有时返回全为 0 的统计
+     */
+    public static CategoryCounts get(Map<Long, CategoryCounts> counts, long categoryId) {
+        CategoryCounts result = counts.get(categoryId);
+        return result != null ? result : EMPTY;
+    }
+
+    /**
+     * 未完成的待办事项数
+     */
+    public int getOpenTodoCount() {
+        return todoCount - completedCount;
+    }
+
+    /**
+     * 显示在分类名称后面的摘要，例如 "12 篇 · 3 待办 · 1 逾期"，为 0 的待办和逾期不显示
+     */
+    public String getSummary() {
+        StringBuilder summary = new StringBuilder();
+        summary.append(noteCount).append(" 篇");
+        if (getOpenTodoCount() > 0) {
+            summary.append(" · ").append(getOpenTodoCount()).append(" 待办");
+        }
+        if (overdueCount > 0) {
+            summary.append(" · ").append(overdueCount).append(" 逾期");
+        }
+        return summary.toString();
+    }
+}
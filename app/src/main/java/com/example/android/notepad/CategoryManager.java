@@ -2,12 +2,16 @@ package com.example.android.notepad;
 
 import android.app.Activity;
 import android.app.AlertDialog;
+import android.content.ContentProviderOperation;
 import android.content.ContentValues;
 import android.content.DialogInterface;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.graphics.drawable.ShapeDrawable;
 import android.graphics.drawable.shapes.OvalShape;
 import android.os.Bundle;
+import android.os.RemoteException;
+import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -20,17 +24,22 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class CategoryManager extends Activity {
 
+    private static final String TAG = "CategoryManager";
+
     private ListView categoriesList;
     private EditText etCategoryName;
     private Button btnAddCategory;
     private Button btnClose;
 
     private CategoryAdapter adapter;
-    private List<Category> categories = new ArrayList<>();
+    private List<CategoryCache.Category> categories = new ArrayList<>();
+    private Map<Long, CategoryCounts> counts = new HashMap<>();
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -74,30 +83,20 @@ public class CategoryManager extends Activity {
 
     private void loadCategories() {
         categories.clear();
-        Cursor cursor = getContentResolver().query(
-                NotePad.Categories.CONTENT_URI,
-                new String[]{
-                        NotePad.Categories._ID,
-                        NotePad.Categories.COLUMN_NAME_CATEGORY_NAME,
-                        NotePad.Categories.COLUMN_NAME_CATEGORY_COLOR
-                },
-                null, null, NotePad.Categories.COLUMN_NAME_CREATE_DATE + " ASC"
-        );
-
-        if (cursor != null) {
-            while (cursor.moveToNext()) {
-                Category category = new Category();
-                category.id = cursor.getLong(0);
-                category.name = cursor.getString(1);
-                category.color = cursor.getInt(2);
-                categories.add(category);
-            }
-            cursor.close();
-        }
-
+        categories.addAll(CategoryCache.getInstance(this).getAll());
+        // 每个分类的笔记数由触发器维护，读取时每个分类一行
+        counts = CategoryCounts.query(getContentResolver());
         adapter.notifyDataSetChanged();
     }
 
+    /**
+     * 修改分类后重新加载。数据变化通知是异步到达的，所以这里直接让缓存失效
+     */
+    private void reloadCategories() {
+        CategoryCache.getInstance(this).invalidate();
+        loadCategories();
+    }
+
     private void addCategory() {
         String categoryName = etCategoryName.getText().toString().trim();
         if (categoryName.isEmpty()) {
@@ -113,7 +112,7 @@ public class CategoryManager extends Activity {
         try {
             getContentResolver().insert(NotePad.Categories.CONTENT_URI, values);
             etCategoryName.setText("");
-            loadCategories();
+            reloadCategories();
             Toast.makeText(this, "分类添加成功", Toast.LENGTH_SHORT).show();
         } catch (Exception e) {
             Toast.makeText(this, "分类名称已存在", Toast.LENGTH_SHORT).show();
@@ -121,7 +120,7 @@ public class CategoryManager extends Activity {
     }
 
     private void showCategoryOptions(final int position) {
-        final Category category = categories.get(position);
+        final CategoryCache.Category category = categories.get(position);
 
         boolean isDefaultCategory = category.id == 1;
 
@@ -143,7 +142,7 @@ public class CategoryManager extends Activity {
                 .show();
     }
 
-    private void renameCategory(final Category category) {
+    private void renameCategory(final CategoryCache.Category category) {
         final EditText input = new EditText(this);
         input.setText(category.name);
 
@@ -174,54 +173,87 @@ public class CategoryManager extends Activity {
                 new String[]{String.valueOf(categoryId)}
         );
 
-        loadCategories();
+        reloadCategories();
     }
 
-    private void deleteCategory(Category category) {
+    private void deleteCategory(final CategoryCache.Category category) {
+        // 只向 provider 要条数，不把该分类下的笔记逐行查出来
+        int noteCount = 0;
         Cursor cursor = getContentResolver().query(
-                NotePad.Notes.CONTENT_URI,
-                new String[]{NotePad.Notes._ID},
+                NotePad.Notes.COUNT_URI,
+                null,
                 NotePad.Notes.COLUMN_NAME_CATEGORY_ID + "=?",
                 new String[]{String.valueOf(category.id)},
                 null
         );
+        if (cursor != null) {
+            if (cursor.moveToFirst()) {
+                noteCount = cursor.getInt(0);
+            }
+            cursor.close();
+        }
 
-        if (cursor != null && cursor.getCount() > 0) {
+        // 上面的条数不含回收站，但回收站中的笔记也会转移到默认分类，所以同样只要条数另外数出来
+        int trashCount = 0;
+        cursor = getContentResolver().query(
+                NotePad.Trash.COUNT_URI,
+                null,
+                NotePad.Notes.COLUMN_NAME_CATEGORY_ID + "=?",
+                new String[]{String.valueOf(category.id)},
+                null
+        );
+        if (cursor != null) {
+            if (cursor.moveToFirst()) {
+                trashCount = cursor.getInt(0);
+            }
+            cursor.close();
+        }
+
+        if (noteCount > 0 || trashCount > 0) {
+            String message = "该分类下有 " + noteCount + " 篇笔记";
+            if (trashCount > 0) {
+                message += "，回收站中还有 " + trashCount + " 篇";
+            }
             new AlertDialog.Builder(this)
                     .setTitle("删除分类")
-                    .setMessage("该分类下有 " + cursor.getCount() + " 篇笔记，删除后将转移到默认分类")
+                    .setMessage(message + "，删除后将转移到默认分类")
                     .setPositiveButton("确定", new DialogInterface.OnClickListener() {
                         @Override
                         public void onClick(DialogInterface dialog, int which) {
-                            ContentValues values = new ContentValues();
-                            values.put(NotePad.Notes.COLUMN_NAME_CATEGORY_ID, 1);
-
-                            getContentResolver().update(
-                                    NotePad.Notes.CONTENT_URI,
-                                    values,
-                                    NotePad.Notes.COLUMN_NAME_CATEGORY_ID + "=?",
-                                    new String[]{String.valueOf(category.id)}
-                            );
-
                             deleteCategoryFromDb(category.id);
                         }
                     })
                     .setNegativeButton("取消", null)
                     .show();
-            cursor.close();
         } else {
             deleteCategoryFromDb(category.id);
         }
     }
 
+    /**
+     * 将分类下的笔记转移到默认分类并删除该分类，两步在同一个事务中完成
+     */
     private void deleteCategoryFromDb(long categoryId) {
-        getContentResolver().delete(
-                NotePad.Categories.CONTENT_URI,
-                NotePad.Categories._ID + "=?",
-                new String[]{String.valueOf(categoryId)}
-        );
+        String[] selectionArgs = new String[]{String.valueOf(categoryId)};
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
 
-        loadCategories();
+        operations.add(ContentProviderOperation.newUpdate(NotePad.Notes.CONTENT_URI)
+                .withValue(NotePad.Notes.COLUMN_NAME_CATEGORY_ID, 1)
+                .withSelection(NotePad.Notes.COLUMN_NAME_CATEGORY_ID + "=?", selectionArgs)
+                .build());
+        operations.add(ContentProviderOperation.newDelete(NotePad.Categories.CONTENT_URI)
+                .withSelection(NotePad.Categories._ID + "=?", selectionArgs)
+                .build());
+
+        try {
+            getContentResolver().applyBatch(NotePad.AUTHORITY, operations);
+        } catch (RemoteException | OperationApplicationException e) {
+            Log.e(TAG, "Failed to delete category " + categoryId, e);
+            Toast.makeText(this, "分类删除失败", Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        reloadCategories();
         Toast.makeText(this, "分类删除成功", Toast.LENGTH_SHORT).show();
     }
 
@@ -235,12 +267,6 @@ public class CategoryManager extends Activity {
         return colors[(int) (Math.random() * colors.length)];
     }
 
-    private static class Category {
-        long id;
-        String name;
-        int color;
-    }
-
     private class CategoryAdapter extends BaseAdapter {
 
         @Override
@@ -265,9 +291,10 @@ public class CategoryManager extends Activity {
                         .inflate(android.R.layout.simple_list_item_1, parent, false);
             }
 
-            Category category = categories.get(position);
+            CategoryCache.Category category = categories.get(position);
             TextView textView = (TextView) convertView;
-            textView.setText(category.name);
+            textView.setText(category.name + "  (" + CategoryCounts.get(counts, category.id)
+                    .getSummary() + ")");
 
             textView.setCompoundDrawablesWithIntrinsicBounds(
                     createColorCircle(category.color), null, null, null);
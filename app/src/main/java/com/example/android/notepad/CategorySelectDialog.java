@@ -2,7 +2,6 @@ package com.example.android.notepad;
 
 import android.app.Dialog;
 import android.content.Context;
-import android.database.Cursor;
 import android.os.Bundle;
 import android.view.View;
 import android.widget.AdapterView;
@@ -12,6 +11,7 @@ import android.widget.Spinner;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 public class CategorySelectDialog extends Dialog {
 
@@ -20,7 +20,7 @@ public class CategorySelectDialog extends Dialog {
     private Spinner categorySpinner;
     private Button btnCancel, btnConfirm;
 
-    private List<CategoryItem> categories = new ArrayList<>();
+    private List<CategoryCache.Category> categories = new ArrayList<>();
     private long selectedCategoryId = 1; // 默认选择第一个分类
 
     public interface OnCategorySelectedListener {
@@ -59,7 +59,7 @@ public class CategorySelectDialog extends Dialog {
             @Override
             public void onClick(View v) {
                 if (listener != null && !categories.isEmpty()) {
-                    CategoryItem selected = categories.get(categorySpinner.getSelectedItemPosition());
+                    CategoryCache.Category selected = categories.get(categorySpinner.getSelectedItemPosition());
                     listener.onCategorySelected(selected.id, selected.name);
                 }
                 dismiss();
@@ -82,31 +82,20 @@ public class CategorySelectDialog extends Dialog {
 
     private void loadCategories() {
         categories.clear();
-        Cursor cursor = context.getContentResolver().query(
-                NotePad.Categories.CONTENT_URI,
-                new String[]{
-                        NotePad.Categories._ID,
-                        NotePad.Categories.COLUMN_NAME_CATEGORY_NAME
-                },
-                null, null, NotePad.Categories.COLUMN_NAME_CREATE_DATE + " ASC"
-        );
-
-        if (cursor != null) {
-            List<String> categoryNames = new ArrayList<>();
-            while (cursor.moveToNext()) {
-                CategoryItem category = new CategoryItem();
-                category.id = cursor.getLong(0);
-                category.name = cursor.getString(1);
-                categories.add(category);
-                categoryNames.add(category.name);
-            }
-            cursor.close();
-
-            ArrayAdapter<String> adapter = new ArrayAdapter<>(
-                    context, android.R.layout.simple_spinner_item, categoryNames);
-            adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
-            categorySpinner.setAdapter(adapter);
+        categories.addAll(CategoryCache.getInstance(context).getAll());
+
+        // 分类名称后显示笔记数，统计由触发器维护，不需要扫描笔记表
+        Map<Long, CategoryCounts> counts = CategoryCounts.query(context.getContentResolver());
+        List<String> categoryNames = new ArrayList<>();
+        for (CategoryCache.Category category : categories) {
+            categoryNames.add(category.name + " ("
+                    + CategoryCounts.get(counts, category.id).noteCount + ")");
         }
+
+        ArrayAdapter<String> adapter = new ArrayAdapter<>(
+                context, android.R.layout.simple_spinner_item, categoryNames);
+        adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        categorySpinner.setAdapter(adapter);
     }
 
     public void setSelectedCategory(long categoryId) {
@@ -121,9 +110,4 @@ public class CategorySelectDialog extends Dialog {
             }
         }
     }
-
-    private static class CategoryItem {
-        long id;
-        String name;
-    }
 }
\ No newline at end of file
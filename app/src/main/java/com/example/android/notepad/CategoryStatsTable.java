@@ -0,0 +1,183 @@
+package com.example.android.notepad;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * The number of notes, todos and completed todos in each category, kept up to date by
+ * triggers on the notes table, so the category screens read one row per category instead of
+ * counting the notes.
+ *
+ * Notes in the trash are left out: moving a note to the trash takes it off the counts of its
+ * category and putting it back adds it again. The triggers only fire on changes to the columns
+ * that are counted, so saving the text of a note costs nothing extra.
+ *
+ * Whether a todo is overdue depends on the time it is asked, which no trigger can follow, so
+ * the overdue count is worked out by {@link #query(SQLiteDatabase, long)} instead, from an index
+ * that puts the open todos of each category in due date order. That costs one index lookup per
+ * category, plus a step over one index entry per todo that is actually overdue, so a query is
+ * O(categories + overdue todos): it stays cheap only while few todos are overdue.
+ */
+final class CategoryStatsTable {
+
+    /**
+     * The table with the counts of each category
+     */
+    static final String TABLE_NAME = "category_stats";
+
+    // The index the overdue todos of a category are counted from
+    private static final String OVERDUE_INDEX_NAME = "idx_notes_overdue";
+
+    private static final String N = NotePad.Notes.TABLE_NAME + ".";
+    private static final String C = NotePad.Categories.TABLE_NAME + ".";
+    private static final String S = TABLE_NAME + ".";
+
+    private static final String STATS_QUERY = "SELECT "
+            + C + NotePad.Categories._ID + " AS " + NotePad.CategoryStats.COLUMN_NAME_CATEGORY_ID + ", "
+            + "IFNULL(" + S + NotePad.CategoryStats.COLUMN_NAME_NOTE_COUNT + ", 0) AS "
+            + NotePad.CategoryStats.COLUMN_NAME_NOTE_COUNT + ", "
+            + "IFNULL(" + S + NotePad.CategoryStats.COLUMN_NAME_TODO_COUNT + ", 0) AS "
+            + NotePad.CategoryStats.COLUMN_NAME_TODO_COUNT + ", "
+            + "IFNULL(" + S + NotePad.CategoryStats.COLUMN_NAME_COMPLETED_COUNT + ", 0) AS "
+            + NotePad.CategoryStats.COLUMN_NAME_COMPLETED_COUNT + ", "
+            + "(SELECT COUNT(*) FROM " + NotePad.Notes.TABLE_NAME
+            + " WHERE " + N + NotePad.Notes.COLUMN_NAME_DELETED_AT + " IS NULL"
+            + " AND " + N + NotePad.Notes.COLUMN_NAME_IS_TODO + " = 1"
+            + " AND " + N + NotePad.Notes.COLUMN_NAME_IS_COMPLETED + " = 0"
+            + " AND " + N + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " = " + C + NotePad.Categories._ID
+            + " AND " + N + NotePad.Notes.COLUMN_NAME_DUE_DATE + " > 0"
+            + " AND " + N + NotePad.Notes.COLUMN_NAME_DUE_DATE + " < ?) AS "
+            + NotePad.CategoryStats.COLUMN_NAME_OVERDUE_COUNT
+            + " FROM " + NotePad.Categories.TABLE_NAME
+            + " LEFT OUTER JOIN " + TABLE_NAME
+            + " ON (" + S + NotePad.CategoryStats.COLUMN_NAME_CATEGORY_ID + " = "
+            + C + NotePad.Categories._ID + ")"
+            + " ORDER BY " + C + NotePad.Categories.COLUMN_NAME_CREATE_DATE + " ASC";
+
+    private CategoryStatsTable() {
+    }
+
+    /**
+     * Creates the table, the triggers that keep it up to date and the index of the overdue
+     * todos. The table starts empty; {@link #rebuild(SQLiteDatabase)} fills it from notes that
+     * already exist.
+     */
+    static void create(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_NAME + " ("
+                + NotePad.CategoryStats.COLUMN_NAME_CATEGORY_ID + " INTEGER PRIMARY KEY,"
+                + NotePad.CategoryStats.COLUMN_NAME_NOTE_COUNT + " INTEGER NOT NULL DEFAULT 0,"
+                + NotePad.CategoryStats.COLUMN_NAME_TODO_COUNT + " INTEGER NOT NULL DEFAULT 0,"
+                + NotePad.CategoryStats.COLUMN_NAME_COMPLETED_COUNT + " INTEGER NOT NULL DEFAULT 0"
+                + ");");
+
+        db.execSQL("CREATE INDEX " + OVERDUE_INDEX_NAME + " ON " + NotePad.Notes.TABLE_NAME + "("
+                + NotePad.Notes.COLUMN_NAME_DELETED_AT + ", "
+                + NotePad.Notes.COLUMN_NAME_IS_TODO + ", "
+                + NotePad.Notes.COLUMN_NAME_IS_COMPLETED + ", "
+                + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + ", "
+                + NotePad.Notes.COLUMN_NAME_DUE_DATE + ");");
+
+        db.execSQL("CREATE TRIGGER category_stats_insert AFTER INSERT ON "
+                + NotePad.Notes.TABLE_NAME
+                + " WHEN " + isCounted("new")
+                + " BEGIN " + add("new", "+") + " END;");
+
+        db.execSQL("CREATE TRIGGER category_stats_delete AFTER DELETE ON "
+                + NotePad.Notes.TABLE_NAME
+                + " WHEN " + isCounted("old")
+                + " BEGIN " + add("old", "-") + " END;");
+
+        // An update takes the note off the counts as it was and adds it back as it is now.
+        // These are two triggers, since a trigger has no IF and either side may not count.
+        String changed = "(old." + NotePad.Notes.COLUMN_NAME_CATEGORY_ID
+                + " IS NOT new." + NotePad.Notes.COLUMN_NAME_CATEGORY_ID
+                + " OR old." + NotePad.Notes.COLUMN_NAME_IS_TODO
+                + " IS NOT new." + NotePad.Notes.COLUMN_NAME_IS_TODO
+                + " OR old." + NotePad.Notes.COLUMN_NAME_IS_COMPLETED
+                + " IS NOT new." + NotePad.Notes.COLUMN_NAME_IS_COMPLETED
+                + " OR old." + NotePad.Notes.COLUMN_NAME_DELETED_AT
+                + " IS NOT new." + NotePad.Notes.COLUMN_NAME_DELETED_AT + ")";
+        String counted = NotePad.Notes.COLUMN_NAME_CATEGORY_ID + ", "
+                + NotePad.Notes.COLUMN_NAME_IS_TODO + ", "
+                + NotePad.Notes.COLUMN_NAME_IS_COMPLETED + ", "
+                + NotePad.Notes.COLUMN_NAME_DELETED_AT;
+        db.execSQL("CREATE TRIGGER category_stats_update_old AFTER UPDATE OF " + counted
+                + " ON " + NotePad.Notes.TABLE_NAME
+                + " WHEN " + isCounted("old") + " AND " + changed
+                + " BEGIN " + add("old", "-") + " END;");
+        db.execSQL("CREATE TRIGGER category_stats_update_new AFTER UPDATE OF " + counted
+                + " ON " + NotePad.Notes.TABLE_NAME
+                + " WHEN " + isCounted("new") + " AND " + changed
+                + " BEGIN " + add("new", "+") + " END;");
+    }
+
+    /**
+     * Counts the notes again from scratch. Used when the table is added to an existing
+     * database.
+     */
+    static void rebuild(SQLiteDatabase db) {
+        db.execSQL("DELETE FROM " + TABLE_NAME);
+        db.execSQL("INSERT INTO " + TABLE_NAME + " ("
+                + NotePad.CategoryStats.COLUMN_NAME_CATEGORY_ID + ", "
+                + NotePad.CategoryStats.COLUMN_NAME_NOTE_COUNT + ", "
+                + NotePad.CategoryStats.COLUMN_NAME_TODO_COUNT + ", "
+                + NotePad.CategoryStats.COLUMN_NAME_COMPLETED_COUNT + ")"
+                + " SELECT " + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + ", COUNT(*), "
+                + "SUM(" + todoValue("") + "), SUM(" + completedValue("") + ")"
+                + " FROM " + NotePad.Notes.TABLE_NAME
+                + " WHERE " + NotePad.Notes.COLUMN_NAME_DELETED_AT + " IS NULL"
+                + " AND " + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " IS NOT NULL"
+                + " GROUP BY " + NotePad.Notes.COLUMN_NAME_CATEGORY_ID);
+    }
+
+    /**
+     * Returns the counts of every category, in the order the categories were created. A
+     * category with no notes has a row of zeros.
+     *
+     * @param now The time todos due before are overdue, in System.currentTimeMillis() form.
+     */
+    static Cursor query(SQLiteDatabase db, long now) {
+        return db.rawQuery(STATS_QUERY, new String[] { String.valueOf(now) });
+    }
+
+    /**
+     * Whether the note the trigger sees as old or new counts: it is outside the trash and has
+     * a category.
+     */
+    private static String isCounted(String row) {
+        return row + "." + NotePad.Notes.COLUMN_NAME_DELETED_AT + " IS NULL AND "
+                + row + "." + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " IS NOT NULL";
+    }
+
+    /**
+     * The trigger statements that add a note to the counts of its category, or take it off
+     * with sign "-". The row of the category is created first if it has none yet.
+     */
+    private static String add(String row, String sign) {
+        return "INSERT OR IGNORE INTO " + TABLE_NAME
+                + " (" + NotePad.CategoryStats.COLUMN_NAME_CATEGORY_ID + ")"
+                + " VALUES (" + row + "." + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + ");"
+                + " UPDATE " + TABLE_NAME + " SET "
+                + NotePad.CategoryStats.COLUMN_NAME_NOTE_COUNT + " = "
+                + NotePad.CategoryStats.COLUMN_NAME_NOTE_COUNT + " " + sign + " 1, "
+                + NotePad.CategoryStats.COLUMN_NAME_TODO_COUNT + " = "
+                + NotePad.CategoryStats.COLUMN_NAME_TODO_COUNT + " " + sign + " "
+                + todoValue(row + ".") + ", "
+                + NotePad.CategoryStats.COLUMN_NAME_COMPLETED_COUNT + " = "
+                + NotePad.CategoryStats.COLUMN_NAME_COMPLETED_COUNT + " " + sign + " "
+                + completedValue(row + ".")
+                + " WHERE " + NotePad.CategoryStats.COLUMN_NAME_CATEGORY_ID + " = "
+                + row + "." + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + ";";
+    }
+
+    // 1 if the note is a todo, otherwise 0, even when the column is null
+    private static String todoValue(String prefix) {
+        return "(CASE WHEN " + prefix + NotePad.Notes.COLUMN_NAME_IS_TODO + " = 1 THEN 1 ELSE 0 END)";
+    }
+
+    // 1 if the note is a completed todo, otherwise 0
+    private static String completedValue(String prefix) {
+        return "(CASE WHEN " + prefix + NotePad.Notes.COLUMN_NAME_IS_TODO + " = 1 AND "
+                + prefix + NotePad.Notes.COLUMN_NAME_IS_COMPLETED + " = 1 THEN 1 ELSE 0 END)";
+    }
+}
@@ -0,0 +1,219 @@
+package com.example.android.notepad;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Copies the database and the note bodies it refers to into a backup directory, and stages
+ * such a copy to be swapped in for the live database.
+ *
+ * A backup directory holds the database file, named like the live one and with no log next
+ * to it, and a bodies directory named the way the provider names its own. The copy is
+ * consistent: it is taken while the snapshot holds the write lock, so no commit can land in
+ * the middle of it. In write-ahead logging mode readers don't wait for that lock, and writers
+ * only wait for the database file and its log to be copied, not for the bodies. (VACUUM INTO
+ * and the online backup API aren't available to the SQLite of older platforms, so the copy is
+ * made at the file level and the copied log is folded into the copied database afterwards.)
+ */
+final class NoteBackup {
+
+    private static final String TAG = "NoteBackup";
+
+    // The suffix of a backup directory that is still being written
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    // The suffix of the copy of a backup that waits to replace the live database
+    private static final String STAGED_SUFFIX = "-restore";
+
+    private static final int COPY_BUFFER_BYTES = 64 * 1024;
+
+    private final File mDatabaseFile;
+    private final NoteBodyStore mBodyStore;
+
+    // The time the last snapshot held the write lock, in milliseconds
+    private long mLockMillis;
+
+    /**
+     * @param databaseFile The live database file.
+     * @param bodyStore The live store of the note bodies.
+     */
+    NoteBackup(File databaseFile, NoteBodyStore bodyStore) {
+        mDatabaseFile = databaseFile;
+        mBodyStore = bodyStore;
+    }
+
+    /**
+     * Writes a backup to a new directory. The directory appears only once the backup is
+     * complete. The caller must keep the body files from being deleted until this returns,
+     * since the ones the copied database refers to are copied after the lock is let go.
+     *
+     * @param db The live database, opened for writing.
+     * @throws IOException if the directory already exists or the backup can't be written.
+     */
+    void snapshot(SQLiteDatabase db, File destination) throws IOException {
+        if (destination.exists()) {
+            throw new IOException(destination + " already exists");
+        }
+        File temp = new File(destination.getPath() + TEMP_SUFFIX);
+        deleteRecursively(temp);
+        File bodies = new File(temp, mDatabaseFile.getName() + NotePadProvider.BODY_DIRECTORY_SUFFIX);
+        if (!bodies.mkdirs()) {
+            throw new IOException("Can't create " + bodies);
+        }
+
+        boolean done = false;
+        try {
+            // Moves what it can of the log into the database file first, so less of it has to
+            // be copied while writers wait.
+            DatabaseUtils.stringForQuery(db, "PRAGMA wal_checkpoint(PASSIVE)", null);
+
+            File copy = new File(temp, mDatabaseFile.getName());
+            long lockStart = SystemClock.elapsedRealtime();
+            db.beginTransactionNonExclusive();
+            try {
+                // Nothing can commit while this transaction holds the write lock. A checkpoint
+                // that a commit just before started may still be copying pages into the
+                // database file, but only pages that are also in the log, which wins when the
+                // copy is opened.
+                copyFile(mDatabaseFile, copy);
+                File log = new File(mDatabaseFile.getPath() + "-wal");
+                if (log.exists()) {
+                    copyFile(log, new File(copy.getPath() + "-wal"));
+                }
+            } finally {
+                db.endTransaction();
+            }
+            mLockMillis = SystemClock.elapsedRealtime() - lockStart;
+
+            SQLiteDatabase copyDb = SQLiteDatabase.openDatabase(copy.getPath(), null,
+                    SQLiteDatabase.OPEN_READWRITE | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+            try {
+                // Opening the copy recovers the copied log; leaving WAL mode folds it in, so
+                // the backup is a single file.
+                DatabaseUtils.stringForQuery(copyDb, "PRAGMA journal_mode=DELETE", null);
+                check(copyDb);
+                for (String name : NotePadProvider.findAllBodies(copyDb)) {
+                    copyFile(mBodyStore.getFile(name), new File(bodies, name));
+                }
+            } finally {
+                copyDb.close();
+            }
+
+            if (!temp.renameTo(destination)) {
+                throw new IOException("Can't rename " + temp + " to " + destination);
+            }
+            done = true;
+        } finally {
+            if (!done) {
+                deleteRecursively(temp);
+            }
+        }
+    }
+
+    /**
+     * Returns the time the last snapshot held the write lock, in milliseconds.
+     */
+    long getLockMillis() {
+        return mLockMillis;
+    }
+
+    /**
+     * Checks a backup and copies it next to the live database, ready to be renamed over it.
+     * The bodies of the backup are added to the live store first; that is harmless even if
+     * the restore goes no further, since no row refers to them yet and the sweep removes them.
+     *
+     * @param maxVersion The newest schema version the provider can open.
+     * @return The staged database file.
+     * @throws IOException if the backup is missing, damaged or too new, or can't be copied.
+     */
+    File stage(File source, int maxVersion) throws IOException {
+        File backup = new File(source, mDatabaseFile.getName());
+        if (!backup.isFile()) {
+            throw new FileNotFoundException("No database in " + source);
+        }
+
+        File staged = new File(mDatabaseFile.getPath() + STAGED_SUFFIX);
+        copyFile(backup, staged);
+        boolean done = false;
+        try {
+            SQLiteDatabase db = SQLiteDatabase.openDatabase(staged.getPath(), null,
+                    SQLiteDatabase.OPEN_READONLY | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+            try {
+                check(db);
+                int version = db.getVersion();
+                if (version < 1 || version > maxVersion) {
+                    throw new IOException("Can't restore a database of version " + version);
+                }
+            } finally {
+                db.close();
+            }
+
+            File[] bodies = new File(source, mDatabaseFile.getName()
+                    + NotePadProvider.BODY_DIRECTORY_SUFFIX).listFiles();
+            if (bodies != null) {
+                for (File body : bodies) {
+                    mBodyStore.add(body);
+                }
+            }
+            done = true;
+            return staged;
+        } finally {
+            if (!done && !staged.delete()) {
+                Log.w(TAG, "Can't delete " + staged);
+            }
+        }
+    }
+
+    /**
+     * Throws if SQLite finds the database damaged.
+     */
+    private static void check(SQLiteDatabase db) throws IOException {
+        String result = DatabaseUtils.stringForQuery(db, "PRAGMA quick_check", null);
+        if (!"ok".equals(result)) {
+            throw new IOException("The database is damaged: " + result);
+        }
+    }
+
+    /**
+     * Copies a file and syncs the copy to disk.
+     */
+    static void copyFile(File from, File to) throws IOException {
+        InputStream in = new FileInputStream(from);
+        try {
+            FileOutputStream out = new FileOutputStream(to);
+            try {
+                byte[] buffer = new byte[COPY_BUFFER_BYTES];
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, count);
+                }
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "Can't delete " + file);
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package com.example.android.notepad;
+
+import android.util.Log;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Keeps the note bodies that are too large for a row in files next to the database.
+ *
+ * Each file is named after the SHA-256 hash of its UTF-8 content, so a body is never
+ * overwritten in place and notes with the same body share one file. The provider stores the
+ * name in the note's row, and decides when a file is no longer referenced.
+ */
+final class NoteBodyStore {
+
+    private static final String TAG = "NoteBodyStore";
+
+    // The suffix of a file that is still being written
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    // The number of characters encoded or decoded at a time while writing or reading a body
+    static final int CHUNK_LENGTH = 8 * 1024;
+
+    private final File mDirectory;
+
+    NoteBodyStore(File directory) {
+        mDirectory = directory;
+    }
+
+    /**
+     * Stores a body and returns the name it is stored under. The file is synced to disk before
+     * this returns, so a row that refers to it can be committed right away.
+     *
+     * @throws IOException if the body can't be written.
+     */
+    String write(String body) throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Can't create " + mDirectory);
+        }
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 is not available");
+        }
+
+        // The name is only known once the whole body is hashed, so the body goes to a temporary
+        // file first. It is encoded a chunk at a time rather than into one large byte array.
+        File temp = File.createTempFile("body", TEMP_SUFFIX, mDirectory);
+        boolean renamed = false;
+        try {
+            FileOutputStream out = new FileOutputStream(temp);
+            try {
+                Writer writer = new BufferedWriter(new OutputStreamWriter(
+                        new DigestOutputStream(out, digest), "UTF-8"));
+                for (int start = 0; start < body.length(); start += CHUNK_LENGTH) {
+                    writer.write(body, start, Math.min(CHUNK_LENGTH, body.length() - start));
+                }
+                writer.flush();
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+
+            String name = toHex(digest.digest());
+            File file = getFile(name);
+            if (file.exists()) {
+                return name;
+            }
+            if (!temp.renameTo(file)) {
+                throw new IOException("Can't rename " + temp + " to " + file);
+            }
+            renamed = true;
+            return name;
+        } finally {
+            if (!renamed && !temp.delete()) {
+                Log.w(TAG, "Can't delete " + temp);
+            }
+        }
+    }
+
+    /**
+     * Opens the body stored under the given name, as UTF-8 text.
+     *
+     * @throws IOException if the body can't be opened.
+     */
+    InputStream open(String name) throws IOException {
+        return new FileInputStream(getFile(name));
+    }
+
+    /**
+     * Reads the whole body stored under the given name.
+     *
+     * @throws IOException if the body can't be read.
+     */
+    String read(String name) throws IOException {
+        Reader reader = new InputStreamReader(open(name), "UTF-8");
+        try {
+            StringBuilder body = new StringBuilder();
+            char[] buffer = new char[CHUNK_LENGTH];
+            int count;
+            while ((count = reader.read(buffer)) != -1) {
+                body.append(buffer, 0, count);
+            }
+            return body.toString();
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Returns the file of the body stored under the given name.
+     */
+    File getFile(String name) {
+        return new File(mDirectory, name);
+    }
+
+    /**
+     * Adds a file written by another store, such as the copy in a backup, under its own name.
+     * Nothing is copied if the store already has a body of that name.
+     *
+     * @throws IOException if the file can't be copied.
+     */
+    void add(File file) throws IOException {
+        File target = getFile(file.getName());
+        if (target.exists()) {
+            return;
+        }
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Can't create " + mDirectory);
+        }
+
+        File temp = File.createTempFile("body", TEMP_SUFFIX, mDirectory);
+        boolean renamed = false;
+        try {
+            NoteBackup.copyFile(file, temp);
+            if (!temp.renameTo(target)) {
+                throw new IOException("Can't rename " + temp + " to " + target);
+            }
+            renamed = true;
+        } finally {
+            if (!renamed && !temp.delete()) {
+                Log.w(TAG, "Can't delete " + temp);
+            }
+        }
+    }
+
+    /**
+     * Deletes the body stored under the given name.
+     */
+    void delete(String name) {
+        File file = getFile(name);
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "Can't delete " + file);
+        }
+    }
+
+    /**
+     * Returns the names of all the stored bodies. Files left by a write that didn't finish are
+     * deleted instead.
+     */
+    String[] list() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return new String[0];
+        }
+
+        String[] names = new String[files.length];
+        int count = 0;
+        for (File file : files) {
+            if (file.getName().endsWith(TEMP_SUFFIX)) {
+                file.delete();
+            } else {
+                names[count++] = file.getName();
+            }
+        }
+
+        String[] result = new String[count];
+        System.arraycopy(names, 0, result, 0, count);
+        return result;
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+            hex.append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
@@ -48,6 +48,9 @@ import android.widget.LinearLayout;
 import android.widget.Switch;
 import android.widget.TextView;
 import android.widget.Button;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import android.app.DatePickerDialog;
@@ -77,6 +80,7 @@ public class NoteEditor extends Activity {
             NotePad.Notes._ID,
             NotePad.Notes.COLUMN_NAME_TITLE,
             NotePad.Notes.COLUMN_NAME_NOTE,
+            NotePad.Notes.COLUMN_NAME_NOTE_EXTERNAL,
             NotePad.Notes.COLUMN_NAME_IS_TODO,
             NotePad.Notes.COLUMN_NAME_IS_COMPLETED,
             NotePad.Notes.COLUMN_NAME_DUE_DATE
@@ -256,7 +260,7 @@ public class NoteEditor extends Activity {
                 updateTodoUI();
                 // 先恢复内容，再保存
                 mText.setText(currentText);
-                saveNoteContent(); // 保存待办事项状态到数据库
+                updateTodoState(); // 保存待办事项状态到数据库
             }
         });
 
@@ -265,7 +269,7 @@ public class NoteEditor extends Activity {
             @Override
             public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
                 mIsCompleted = isChecked;
-                saveNoteContent();
+                updateTodoState();
                 updateDueDateText(); // 更新截止日期显示
             }
         });
@@ -288,8 +292,11 @@ public class NoteEditor extends Activity {
         // Get the note's content and title from the cursor
         if (mCursor.moveToFirst()) {
             // Get the note content
-            int colNoteIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
-            mOriginalContent = mCursor.getString(colNoteIndex);
+            mOriginalContent = readNoteText(mCursor);
+            if (mOriginalContent == null) {
+                showLoadError();
+                return;
+            }
             mText.setTextKeepState(mOriginalContent);
             
             // Get to-do list related data
@@ -391,8 +398,11 @@ public class NoteEditor extends Activity {
             }
             
             // 恢复笔记原始内容，用于检测是否有变化
-            int colNoteIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
-            mOriginalContent = mCursor.getString(colNoteIndex);
+            mOriginalContent = readNoteText(mCursor);
+            if (mOriginalContent == null) {
+                showLoadError();
+                return;
+            }
             mText.setTextKeepState(mOriginalContent);
         } else {
             // This should not happen. The cursor was valid in onCreate().
@@ -501,6 +511,48 @@ public class NoteEditor extends Activity {
         }
     }
 
+    /**
+     * 读取笔记正文。较大的正文存放在文件中，此时 cursor 中的 note 列为 null，
+     * 需要通过笔记 URI 以流的方式读取
+     *
+     * @return 正文，读取失败时返回 null
+     */
+    private String readNoteText(Cursor cursor) {
+        int colExternalIndex = cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE_EXTERNAL);
+        if (cursor.getInt(colExternalIndex) == 0) {
+            int colNoteIndex = cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
+            return cursor.getString(colNoteIndex);
+        }
+
+        try {
+            Reader reader = new InputStreamReader(mContentResolver.openInputStream(mUri), "UTF-8");
+            try {
+                StringBuilder text = new StringBuilder();
+                char[] buffer = new char[8 * 1024];
+                int count;
+                while ((count = reader.read(buffer)) != -1) {
+                    text.append(buffer, 0, count);
+                }
+                return text.toString();
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read the note body", e);
+            return null;
+        }
+    }
+
+    /**
+     * 正文读取失败时显示错误信息。同时关闭 cursor，这样 onPause() 不会用错误信息覆盖笔记
+     */
+    private void showLoadError() {
+        mCursor.close();
+        mCursor = null;
+        setTitle(getResources().getString(R.string.error_title));
+        mText.setText(getResources().getString(R.string.error_message));
+    }
+
     /**
      * Updates the note in the database.
      */
@@ -517,6 +569,19 @@ public class NoteEditor extends Activity {
         mContentResolver.update(mUri, values, null, null);
     }
 
+    /**
+     * Updates only the to-do state of the note. The text is saved separately, so toggling a
+     * flag doesn't rewrite the whole note.
+     */
+    private final void updateTodoState() {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_IS_TODO, mIsTodo ? 1 : 0);
+        values.put(NotePad.Notes.COLUMN_NAME_IS_COMPLETED, mIsCompleted ? 1 : 0);
+        values.put(NotePad.Notes.COLUMN_NAME_DUE_DATE, mDueDate);
+
+        mContentResolver.update(mUri, values, null, null);
+    }
+
     /**
      * Cancels editing and returns to the previous activity.
      */
@@ -531,13 +596,20 @@ public class NoteEditor extends Activity {
     }
 
     /**
-     * Deletes the current note.
+     * Deletes the current note. A note being inserted was never saved, so it is removed right
+     * away; any other note is moved to the trash.
      */
     private final void deleteNote() {
         if (mCursor != null) {
             mCursor.close();
             mCursor = null;
-            mContentResolver.delete(mUri, null, null);
+            if (mState == STATE_INSERT) {
+                mContentResolver.delete(mUri, null, null);
+            } else {
+                ContentValues values = new ContentValues();
+                values.put(NotePad.Notes.COLUMN_NAME_DELETED_AT, System.currentTimeMillis());
+                mContentResolver.update(mUri, values, null, null);
+            }
             mText.setText("");
         }
         finish();
@@ -619,7 +691,7 @@ public class NoteEditor extends Activity {
             
             // 保存截止日期
             mDueDate = mDueDateCalendar.getTimeInMillis();
-            saveNoteContent();
+            updateTodoState();
             updateDueDateText();
         }
     };
@@ -0,0 +1,196 @@
+package com.example.android.notepad;
+
+import android.content.ContentUris;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.ParcelFileDescriptor;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
+
+/**
+ * Writes every note outside the trash as newline-delimited JSON: one object per line, with the
+ * note columns as keys, and the category as {@link NotePad.Notes#COLUMN_NAME_CATEGORY_NAME} and
+ * {@link NotePad.Notes#COLUMN_NAME_CATEGORY_COLOR} instead of its _ID, so the notes can be
+ * imported into another database.
+ *
+ * The notes are read a page at a time by _ID, and a body stored outside its row is copied a
+ * chunk at a time, so the memory used doesn't grow with the number or size of the notes. Each
+ * page is a query of its own, so notes changed while the export runs may or may not be in it
+ * as changed.
+ */
+final class NoteExporter {
+
+    // The number of notes read per query
+    private static final int PAGE_SIZE = 200;
+
+    // The number of characters of a streamed body escaped at a time
+    private static final int BODY_CHUNK_LENGTH = 4 * 1024;
+
+    private static final String N = NotePad.Notes.TABLE_NAME + ".";
+
+    private static final String PAGE_QUERY = "SELECT "
+            + N + NotePad.Notes._ID + ", "
+            + N + NotePad.Notes.COLUMN_NAME_TITLE + ", "
+            // The body, if it is in the row and fits in a cursor window
+            + "CASE WHEN " + N + NotePadProvider.COLUMN_NAME_NOTE_FILE + " IS NULL AND length("
+            + N + NotePad.Notes.COLUMN_NAME_NOTE + ") <= " + NotePadProvider.EXTERNAL_BODY_LENGTH
+            + " THEN " + N + NotePad.Notes.COLUMN_NAME_NOTE + " END, "
+            // Whether the body has to be streamed instead
+            + "(" + N + NotePadProvider.COLUMN_NAME_NOTE_FILE + " IS NOT NULL OR length("
+            + N + NotePad.Notes.COLUMN_NAME_NOTE + ") > " + NotePadProvider.EXTERNAL_BODY_LENGTH
+            + "), "
+            + N + NotePad.Notes.COLUMN_NAME_CREATE_DATE + ", "
+            + N + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ", "
+            + NotePad.Categories.TABLE_NAME + "." + NotePad.Categories.COLUMN_NAME_CATEGORY_NAME + ", "
+            + NotePad.Categories.TABLE_NAME + "." + NotePad.Categories.COLUMN_NAME_CATEGORY_COLOR + ", "
+            + N + NotePad.Notes.COLUMN_NAME_IS_TODO + ", "
+            + N + NotePad.Notes.COLUMN_NAME_IS_COMPLETED + ", "
+            + N + NotePad.Notes.COLUMN_NAME_DUE_DATE
+            + " FROM " + NotePad.Notes.TABLE_NAME
+            + " LEFT OUTER JOIN " + NotePad.Categories.TABLE_NAME
+            + " ON (" + N + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " = "
+            + NotePad.Categories.TABLE_NAME + "." + NotePad.Categories._ID + ")"
+            + " WHERE " + N + NotePad.Notes._ID + " > ?"
+            + " AND " + N + NotePad.Notes.COLUMN_NAME_DELETED_AT + " IS NULL"
+            + " ORDER BY " + N + NotePad.Notes._ID
+            + " LIMIT " + PAGE_SIZE;
+
+    // The keys of the columns of PAGE_QUERY, or null for a column that isn't written as is
+    private static final String[] KEYS = {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_NOTE,
+            null,
+            NotePad.Notes.COLUMN_NAME_CREATE_DATE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+            NotePad.Notes.COLUMN_NAME_CATEGORY_NAME,
+            NotePad.Notes.COLUMN_NAME_CATEGORY_COLOR,
+            NotePad.Notes.COLUMN_NAME_IS_TODO,
+            NotePad.Notes.COLUMN_NAME_IS_COMPLETED,
+            NotePad.Notes.COLUMN_NAME_DUE_DATE
+    };
+    private static final int NOTE_INDEX = 2;
+    private static final int STREAMED_INDEX = 3;
+
+    private final SQLiteDatabase mDb;
+    private final NotePadProvider mProvider;
+
+    /**
+     * @param provider Opens the bodies that have to be streamed.
+     */
+    NoteExporter(SQLiteDatabase db, NotePadProvider provider) {
+        mDb = db;
+        mProvider = provider;
+    }
+
+    /**
+     * Writes all the notes to the writer. The writer is not flushed or closed.
+     *
+     * @throws IOException if writing fails, for example because the reader went away.
+     */
+    void export(Writer out) throws IOException {
+        long lastId = 0;
+        boolean more = true;
+        while (more) {
+            Cursor c = mDb.rawQuery(PAGE_QUERY, new String[] { String.valueOf(lastId) });
+            try {
+                more = c.getCount() == PAGE_SIZE;
+                while (c.moveToNext()) {
+                    lastId = c.getLong(0);
+                    writeNote(c, out);
+                }
+            } finally {
+                c.close();
+            }
+        }
+    }
+
+    private void writeNote(Cursor c, Writer out) throws IOException {
+        out.write('{');
+        boolean first = true;
+        for (int i = 0; i < KEYS.length; i++) {
+            if (KEYS[i] == null) {
+                continue;
+            }
+            if (!first) {
+                out.write(',');
+            }
+            first = false;
+            writeString(KEYS[i], out);
+            out.write(':');
+
+            if (i == NOTE_INDEX && c.getInt(STREAMED_INDEX) != 0) {
+                writeStreamedBody(c.getLong(0), out);
+            } else if (c.isNull(i)) {
+                out.write("null");
+            } else if (c.getType(i) == Cursor.FIELD_TYPE_INTEGER) {
+                out.write(String.valueOf(c.getLong(i)));
+            } else {
+                writeString(c.getString(i), out);
+            }
+        }
+        out.write("}\n");
+    }
+
+    /**
+     * Writes a body as a JSON string, reading it a chunk at a time from the provider.
+     */
+    private void writeStreamedBody(long noteId, Writer out) throws IOException {
+        ParcelFileDescriptor body = mProvider.openFile(
+                ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, noteId), "r");
+        Reader reader = new InputStreamReader(
+                new ParcelFileDescriptor.AutoCloseInputStream(body), "UTF-8");
+        try {
+            out.write('"');
+            char[] buffer = new char[BODY_CHUNK_LENGTH];
+            int count;
+            while ((count = reader.read(buffer)) != -1) {
+                writeEscaped(buffer, count, out);
+            }
+            out.write('"');
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void writeString(String value, Writer out) throws IOException {
+        out.write('"');
+        char[] chars = value.toCharArray();
+        writeEscaped(chars, chars.length, out);
+        out.write('"');
+    }
+
+    /**
+     * Writes characters escaped for a JSON string, without the quotes.
+     */
+    private static void writeEscaped(char[] chars, int count, Writer out) throws IOException {
+        int start = 0;
+        for (int i = 0; i < count; i++) {
+            char ch = chars[i];
+            String escape;
+            if (ch == '"') {
+                escape = "\\\"";
+            } else if (ch == '\\') {
+                escape = "\\\\";
+            } else if (ch == '\n') {
+                escape = "\\n";
+            } else if (ch == '\r') {
+                escape = "\\r";
+            } else if (ch == '\t') {
+                escape = "\\t";
+            } else if (ch < 0x20 || ch == '\u2028' || ch == '\u2029') {
+                String hex = Integer.toHexString(ch);
+                escape = "\\u" + "0000".substring(hex.length()) + hex;
+            } else {
+                continue;
+            }
+            out.write(chars, start, i - start);
+            out.write(escape);
+            start = i + 1;
+        }
+        out.write(chars, start, count - start);
+    }
+}
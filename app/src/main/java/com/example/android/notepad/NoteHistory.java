@@ -0,0 +1,324 @@
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the earlier versions of each note in the {@link NotePad.NoteRevisions} table.
+ *
+ * The revisions of a note form groups. The first revision of a group is a snapshot with the
+ * whole text, and each later one is a delta against the revision before it, so any revision is
+ * rebuilt from its snapshot with fewer than {@link #SNAPSHOT_INTERVAL} deltas. A delta keeps
+ * the start and the end the two texts have in common and stores only the text in between,
+ * which is all an autosave after typing in one place changes. A text stored in a body file is
+ * never copied: its revision is a snapshot that refers to the same file.
+ *
+ * Old revisions are dropped a whole group at a time, so every revision that is kept can still
+ * be rebuilt.
+ */
+final class NoteHistory {
+
+    /**
+     * The most revisions in a group: one snapshot and the deltas that follow it
+     */
+    static final int SNAPSHOT_INTERVAL = 10;
+
+    /**
+     * The most revisions kept for each note
+     */
+    static final int MAX_REVISIONS = 50;
+
+    // How many characters a delta keeps from the start and from the end of the text before it.
+    // Both are null in a snapshot.
+    private static final String COLUMN_NAME_KEEP_START = "keep_start";
+    private static final String COLUMN_NAME_KEEP_END = "keep_end";
+
+    // The revisions of a note from the last snapshot at or before a revision, oldest first
+    private static final String GROUP_QUERY = "SELECT "
+            + COLUMN_NAME_KEEP_START + ", " + COLUMN_NAME_KEEP_END + ", "
+            + NotePad.NoteRevisions.COLUMN_NAME_NOTE + ", " + NotePadProvider.COLUMN_NAME_NOTE_FILE
+            + " FROM " + NotePad.NoteRevisions.TABLE_NAME
+            + " WHERE " + NotePad.NoteRevisions.COLUMN_NAME_NOTE_ID + " = ?1"
+            + " AND " + NotePad.NoteRevisions._ID + " <= ?2"
+            + " AND " + NotePad.NoteRevisions._ID + " >= (SELECT MAX(" + NotePad.NoteRevisions._ID
+            + ") FROM " + NotePad.NoteRevisions.TABLE_NAME
+            + " WHERE " + NotePad.NoteRevisions.COLUMN_NAME_NOTE_ID + " = ?1"
+            + " AND " + NotePad.NoteRevisions._ID + " <= ?2"
+            + " AND " + COLUMN_NAME_KEEP_START + " IS NULL)"
+            + " ORDER BY " + NotePad.NoteRevisions._ID;
+
+    private NoteHistory() {
+    }
+
+    /**
+     * Creates the revisions table, and the trigger that deletes the revisions of a deleted
+     * note.
+     */
+    static void create(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + NotePad.NoteRevisions.TABLE_NAME + " ("
+                + NotePad.NoteRevisions._ID + " INTEGER PRIMARY KEY,"
+                + NotePad.NoteRevisions.COLUMN_NAME_NOTE_ID + " INTEGER NOT NULL,"
+                + NotePad.NoteRevisions.COLUMN_NAME_TITLE + " TEXT,"
+                + NotePad.NoteRevisions.COLUMN_NAME_MODIFICATION_DATE + " INTEGER,"
+                + COLUMN_NAME_KEEP_START + " INTEGER,"
+                + COLUMN_NAME_KEEP_END + " INTEGER,"
+                + NotePad.NoteRevisions.COLUMN_NAME_NOTE + " TEXT,"
+                + NotePadProvider.COLUMN_NAME_NOTE_FILE + " TEXT"
+                + ");");
+        db.execSQL("CREATE INDEX idx_note_revisions_note_id ON " + NotePad.NoteRevisions.TABLE_NAME
+                + "(" + NotePad.NoteRevisions.COLUMN_NAME_NOTE_ID + ");");
+        db.execSQL("CREATE INDEX idx_note_revisions_note_file ON "
+                + NotePad.NoteRevisions.TABLE_NAME + "(" + NotePadProvider.COLUMN_NAME_NOTE_FILE
+                + ");");
+
+        db.execSQL("CREATE TRIGGER note_revisions_delete AFTER DELETE ON "
+                + NotePad.Notes.TABLE_NAME
+                + " BEGIN"
+                + " DELETE FROM " + NotePad.NoteRevisions.TABLE_NAME
+                + " WHERE " + NotePad.NoteRevisions.COLUMN_NAME_NOTE_ID
+                + " = old." + NotePad.Notes._ID + ";"
+                + " END;");
+    }
+
+    /**
+     * Keeps the current text of the notes an update is about to replace as revisions. Notes
+     * whose text doesn't change get no revision. Called inside the update's transaction, after
+     * the body of the values has been prepared for storage.
+     *
+     * @return The body files of the revisions dropped to make room. They can be released once
+     * the transaction commits.
+     */
+    static List<String> record(SQLiteDatabase db, ContentValues values, String where,
+            String[] whereArgs) {
+        List<String> dropped = new ArrayList<String>();
+        if (values == null || !values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE)) {
+            return dropped;
+        }
+        String newNote = values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE);
+        String newFile = values.getAsString(NotePadProvider.COLUMN_NAME_NOTE_FILE);
+
+        // A body in the row is only read if it fits in a cursor window. A larger one is left
+        // from before bodies were moved to files, until the backfill of version 16 moves it,
+        // and gets no revision.
+        Cursor c = db.query(NotePad.Notes.TABLE_NAME, new String[] {
+                        NotePad.Notes._ID,
+                        NotePad.Notes.COLUMN_NAME_TITLE,
+                        NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+                        NotePadProvider.COLUMN_NAME_NOTE_FILE,
+                        "CASE WHEN " + NotePadProvider.COLUMN_NAME_NOTE_FILE + " IS NULL AND length("
+                                + NotePad.Notes.COLUMN_NAME_NOTE + ") <= "
+                                + NotePadProvider.EXTERNAL_BODY_LENGTH + " THEN "
+                                + NotePad.Notes.COLUMN_NAME_NOTE + " END" },
+                where, whereArgs, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                String oldFile = c.getString(3);
+                String oldNote = c.getString(4);
+                if (oldFile == null && TextUtils.isEmpty(oldNote)) {
+                    continue;
+                }
+
+                // Files are named after their content, so the same name is the same text.
+                boolean changed = newFile != null ? !newFile.equals(oldFile)
+                        : oldFile != null || !oldNote.equals(newNote);
+                if (changed) {
+                    long noteId = c.getLong(0);
+                    add(db, noteId, c.getString(1), c.getLong(2), oldNote, oldFile);
+                    prune(db, noteId, dropped);
+                }
+            }
+        } finally {
+            c.close();
+        }
+        return dropped;
+    }
+
+    /**
+     * Returns the text of a revision, or null if the revision doesn't exist or its text is in
+     * a body file.
+     */
+    static String read(SQLiteDatabase db, long noteId, long revisionId) {
+        Cursor c = db.rawQuery(GROUP_QUERY,
+                new String[] { String.valueOf(noteId), String.valueOf(revisionId) });
+        try {
+            return rebuild(c);
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Returns the body files the revisions of the selected notes refer to. Used before the
+     * notes are deleted, since their revisions go with them.
+     */
+    static List<String> findFiles(SQLiteDatabase db, String where, String[] whereArgs) {
+        List<String> names = new ArrayList<String>();
+        Cursor c = db.rawQuery("SELECT DISTINCT " + NotePadProvider.COLUMN_NAME_NOTE_FILE
+                + " FROM " + NotePad.NoteRevisions.TABLE_NAME
+                + " WHERE " + NotePadProvider.COLUMN_NAME_NOTE_FILE + " IS NOT NULL"
+                + " AND " + NotePad.NoteRevisions.COLUMN_NAME_NOTE_ID + " IN (SELECT "
+                + NotePad.Notes._ID + " FROM " + NotePad.Notes.TABLE_NAME
+                + (TextUtils.isEmpty(where) ? "" : " WHERE " + where) + ")", whereArgs);
+        try {
+            while (c.moveToNext()) {
+                names.add(c.getString(0));
+            }
+        } finally {
+            c.close();
+        }
+        return names;
+    }
+
+    /**
+     * Returns whether any revision refers to the given body file.
+     */
+    static boolean refersTo(SQLiteDatabase db, String name) {
+        return DatabaseUtils.queryNumEntries(db, NotePad.NoteRevisions.TABLE_NAME,
+                NotePadProvider.COLUMN_NAME_NOTE_FILE + " = ?", new String[] { name }) > 0;
+    }
+
+    /**
+     * Adds a revision after the newest one of a note. Exactly one of text and file is set.
+     */
+    private static void add(SQLiteDatabase db, long noteId, String title, long modified,
+            String text, String file) {
+        ContentValues revision = new ContentValues();
+        revision.put(NotePad.NoteRevisions.COLUMN_NAME_NOTE_ID, noteId);
+        revision.put(NotePad.NoteRevisions.COLUMN_NAME_TITLE, title);
+        revision.put(NotePad.NoteRevisions.COLUMN_NAME_MODIFICATION_DATE, modified);
+
+        if (file != null) {
+            revision.put(NotePadProvider.COLUMN_NAME_NOTE_FILE, file);
+        } else {
+            // The newest revision is rebuilt only if its group has room for another delta.
+            String previous = null;
+            Cursor c = db.rawQuery(GROUP_QUERY,
+                    new String[] { String.valueOf(noteId), String.valueOf(Long.MAX_VALUE) });
+            try {
+                if (c.getCount() > 0 && c.getCount() < SNAPSHOT_INTERVAL) {
+                    previous = rebuild(c);
+                }
+            } finally {
+                c.close();
+            }
+
+            if (previous != null) {
+                int keepStart = commonPrefixLength(previous, text);
+                int keepEnd = commonSuffixLength(previous, text, keepStart);
+                String changed = text.substring(keepStart, text.length() - keepEnd);
+
+                // A delta that is most of the text saves little, and makes every later
+                // revision in the group slower to rebuild.
+                if (changed.length() * 2 < text.length()) {
+                    revision.put(COLUMN_NAME_KEEP_START, keepStart);
+                    revision.put(COLUMN_NAME_KEEP_END, keepEnd);
+                    revision.put(NotePad.NoteRevisions.COLUMN_NAME_NOTE, changed);
+                }
+            }
+            if (!revision.containsKey(COLUMN_NAME_KEEP_START)) {
+                revision.put(NotePad.NoteRevisions.COLUMN_NAME_NOTE, text);
+            }
+        }
+
+        db.insertOrThrow(NotePad.NoteRevisions.TABLE_NAME, null, revision);
+    }
+
+    /**
+     * Drops the oldest groups of a note's revisions until no more than {@link #MAX_REVISIONS}
+     * are left, and adds the body files they referred to to the list.
+     */
+    private static void prune(SQLiteDatabase db, long noteId, List<String> dropped) {
+        String id = String.valueOf(noteId);
+        long count = DatabaseUtils.queryNumEntries(db, NotePad.NoteRevisions.TABLE_NAME,
+                NotePad.NoteRevisions.COLUMN_NAME_NOTE_ID + " = ?", new String[] { id });
+        while (count > MAX_REVISIONS) {
+            // The snapshot that starts the second oldest group
+            long next = DatabaseUtils.longForQuery(db, "SELECT MIN(" + NotePad.NoteRevisions._ID
+                    + ") FROM " + NotePad.NoteRevisions.TABLE_NAME
+                    + " WHERE " + NotePad.NoteRevisions.COLUMN_NAME_NOTE_ID + " = ?1"
+                    + " AND " + COLUMN_NAME_KEEP_START + " IS NULL"
+                    + " AND " + NotePad.NoteRevisions._ID + " > (SELECT MIN("
+                    + NotePad.NoteRevisions._ID + ") FROM " + NotePad.NoteRevisions.TABLE_NAME
+                    + " WHERE " + NotePad.NoteRevisions.COLUMN_NAME_NOTE_ID + " = ?1)",
+                    new String[] { id });
+            if (next == 0) {
+                return;
+            }
+
+            String where = NotePad.NoteRevisions.COLUMN_NAME_NOTE_ID + " = ? AND "
+                    + NotePad.NoteRevisions._ID + " < ?";
+            String[] whereArgs = { id, String.valueOf(next) };
+            Cursor c = db.query(NotePad.NoteRevisions.TABLE_NAME,
+                    new String[] { NotePadProvider.COLUMN_NAME_NOTE_FILE },
+                    DatabaseUtils.concatenateWhere(where,
+                            NotePadProvider.COLUMN_NAME_NOTE_FILE + " IS NOT NULL"),
+                    whereArgs, null, null, null);
+            try {
+                while (c.moveToNext()) {
+                    dropped.add(c.getString(0));
+                }
+            } finally {
+                c.close();
+            }
+            count -= db.delete(NotePad.NoteRevisions.TABLE_NAME, where, whereArgs);
+        }
+    }
+
+    /**
+     * Rebuilds the text of the last revision of a group read with {@link #GROUP_QUERY}.
+     * Returns null if the group is empty or its snapshot is in a body file.
+     */
+    private static String rebuild(Cursor group) {
+        if (!group.moveToFirst() || !group.isNull(3)) {
+            return null;
+        }
+
+        String text = group.getString(2);
+        while (group.moveToNext()) {
+            String base = text;
+            int keepStart = group.getInt(0);
+            int keepEnd = group.getInt(1);
+            text = base.substring(0, keepStart) + group.getString(2)
+                    + base.substring(base.length() - keepEnd);
+        }
+        return text;
+    }
+
+    /**
+     * Returns the length of the start two texts share, without splitting a surrogate pair.
+     */
+    private static int commonPrefixLength(String a, String b) {
+        int max = Math.min(a.length(), b.length());
+        int length = 0;
+        while (length < max && a.charAt(length) == b.charAt(length)) {
+            length++;
+        }
+        if (length > 0 && Character.isHighSurrogate(a.charAt(length - 1))) {
+            length--;
+        }
+        return length;
+    }
+
+    /**
+     * Returns the length of the end two texts share, not overlapping the first
+     * prefixLength characters of either and without splitting a surrogate pair.
+     */
+    private static int commonSuffixLength(String a, String b, int prefixLength) {
+        int max = Math.min(a.length(), b.length()) - prefixLength;
+        int length = 0;
+        while (length < max
+                && a.charAt(a.length() - 1 - length) == b.charAt(b.length() - 1 - length)) {
+            length++;
+        }
+        if (length > 0 && Character.isLowSurrogate(a.charAt(a.length() - length))) {
+            length--;
+        }
+        return length;
+    }
+}
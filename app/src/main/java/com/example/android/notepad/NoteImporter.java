@@ -0,0 +1,338 @@
+package com.example.android.notepad;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.os.RemoteException;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Imports notes into the provider, from the newline-delimited JSON that the notes URI exports
+ * or from a directory of text files.
+ *
+ * The source is read one record at a time, and the notes are written with
+ * {@link ContentResolver#applyBatch(String, ArrayList)} in batches of at most
+ * {@link #BATCH_SIZE} notes or {@link #BATCH_LENGTH} characters, so memory use doesn't grow
+ * with the size of the source. Each batch also records the position reached in
+ * {@link NotePad.ImportCheckpoints}, in the same transaction as its notes. An import of the
+ * same source that is started again after an interruption skips what was already imported,
+ * without adding any note twice. Categories are matched by name, and the ones missing are
+ * created.
+ *
+ * An import runs on the calling thread, so it must not be called on the main thread.
+ */
+final class NoteImporter {
+
+    /**
+     * Reports the progress of an import.
+     */
+    interface ProgressListener {
+        /**
+         * Called after each batch is written.
+         *
+         * @param position The number of records of the source handled so far, including any
+         * skipped because an earlier run imported them.
+         * @param imported The number of notes this run has imported so far.
+         */
+        void onProgress(long position, int imported);
+    }
+
+    private static final String TAG = "NoteImporter";
+
+    /**
+     * The most notes written in one transaction
+     */
+    static final int BATCH_SIZE = 200;
+
+    /**
+     * The most characters of note text held for one transaction. A batch with a few very
+     * large notes is written early.
+     */
+    static final int BATCH_LENGTH = 1024 * 1024;
+
+    // The extensions of the files imported from a directory
+    private static final String[] TEXT_FILE_EXTENSIONS = { ".txt", ".md" };
+
+    private final ContentResolver mResolver;
+    private final String mSource;
+    private final ProgressListener mListener;
+
+    // The _ID of each category, by name. Loaded when the import starts.
+    private HashMap<String, Long> mCategories;
+
+    private final ArrayList<ContentProviderOperation> mBatch =
+            new ArrayList<ContentProviderOperation>();
+    private int mBatchLength;
+    private long mPosition;
+    private long mCommittedPosition;
+    private int mImported;
+
+    /**
+     * @param source Names the source, for example its URI or path. An import that is started
+     * again with the same name resumes where the last one stopped.
+     * @param listener Told about progress, or null.
+     */
+    NoteImporter(ContentResolver resolver, String source, ProgressListener listener) {
+        mResolver = resolver;
+        mSource = source;
+        mListener = listener;
+    }
+
+    /**
+     * Imports newline-delimited JSON, one note per line. Lines that aren't valid JSON are
+     * skipped. The stream is not closed.
+     *
+     * @return The number of notes imported by this run.
+     * @throws IOException if the source can't be read or the notes can't be written. The
+     * batches written before the failure stay, and a new run carries on after them.
+     */
+    int importJson(InputStream in) throws IOException {
+        start();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        long lineNumber = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (lineNumber <= mCommittedPosition) {
+                continue;
+            }
+
+            if (line.trim().length() > 0) {
+                try {
+                    add(valuesFromJson(new JSONObject(line)));
+                } catch (JSONException e) {
+                    Log.w(TAG, "Skipping line " + lineNumber + " of " + mSource + ": "
+                            + e.getMessage());
+                }
+            }
+            mPosition = lineNumber;
+            commitIfFull();
+        }
+        return finish();
+    }
+
+    /**
+     * Imports the text files in a directory, one note per file, in the order of their names.
+     * The title of each note is the file name without its extension. Other files and
+     * subdirectories are skipped.
+     *
+     * @return The number of notes imported by this run.
+     * @throws IOException if the directory can't be read or the notes can't be written. The
+     * batches written before the failure stay, and a new run carries on after them.
+     */
+    int importDirectory(File directory) throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("Can't list " + directory);
+        }
+        Arrays.sort(files);
+
+        start();
+        for (int i = (int) Math.min(mCommittedPosition, files.length); i < files.length; i++) {
+            File file = files[i];
+            String title = textFileTitle(file);
+            if (title != null) {
+                ContentValues values = new ContentValues();
+                values.put(NotePad.Notes.COLUMN_NAME_TITLE, title);
+                values.put(NotePad.Notes.COLUMN_NAME_NOTE, readFile(file));
+                values.put(NotePad.Notes.COLUMN_NAME_CREATE_DATE, file.lastModified());
+                values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, file.lastModified());
+                add(values);
+            }
+            mPosition = i + 1;
+            commitIfFull();
+        }
+        return finish();
+    }
+
+    /**
+     * Loads the categories and the position a previous run reached.
+     */
+    private void start() throws IOException {
+        mCategories = new HashMap<String, Long>();
+        Cursor c = mResolver.query(NotePad.Categories.CONTENT_URI,
+                new String[] {
+                        NotePad.Categories._ID, NotePad.Categories.COLUMN_NAME_CATEGORY_NAME },
+                null, null, null);
+        if (c == null) {
+            throw new IOException("Can't read the categories");
+        }
+        try {
+            while (c.moveToNext()) {
+                mCategories.put(c.getString(1), c.getLong(0));
+            }
+        } finally {
+            c.close();
+        }
+
+        c = mResolver.query(NotePad.ImportCheckpoints.CONTENT_URI,
+                new String[] { NotePad.ImportCheckpoints.COLUMN_NAME_POSITION },
+                NotePad.ImportCheckpoints.COLUMN_NAME_SOURCE + " = ?", new String[] { mSource },
+                null);
+        if (c == null) {
+            throw new IOException("Can't read the import checkpoints");
+        }
+        try {
+            mCommittedPosition = c.moveToFirst() ? c.getLong(0) : 0;
+        } finally {
+            c.close();
+        }
+        if (mCommittedPosition > 0) {
+            Log.i(TAG, "Resuming the import of " + mSource + " at " + mCommittedPosition);
+        }
+        mPosition = mCommittedPosition;
+        mImported = 0;
+    }
+
+    private void add(ContentValues values) {
+        mBatch.add(ContentProviderOperation.newInsert(NotePad.Notes.CONTENT_URI)
+                .withValues(values)
+                .build());
+        String note = values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE);
+        mBatchLength += note != null ? note.length() : 0;
+    }
+
+    private void commitIfFull() throws IOException {
+        if (mBatch.size() >= BATCH_SIZE || mBatchLength >= BATCH_LENGTH) {
+            commit();
+        }
+    }
+
+    /**
+     * Writes the notes held so far together with the position reached.
+     */
+    private void commit() throws IOException {
+        if (mPosition == mCommittedPosition) {
+            return;
+        }
+
+        int notes = mBatch.size();
+        mBatch.add(ContentProviderOperation.newInsert(NotePad.ImportCheckpoints.CONTENT_URI)
+                .withValue(NotePad.ImportCheckpoints.COLUMN_NAME_SOURCE, mSource)
+                .withValue(NotePad.ImportCheckpoints.COLUMN_NAME_POSITION, mPosition)
+                .build());
+        try {
+            mResolver.applyBatch(NotePad.AUTHORITY, mBatch);
+        } catch (RemoteException | OperationApplicationException e) {
+            throw new IOException("Can't write the notes of " + mSource, e);
+        } finally {
+            mBatch.clear();
+            mBatchLength = 0;
+        }
+
+        mCommittedPosition = mPosition;
+        mImported += notes;
+        if (mListener != null) {
+            mListener.onProgress(mPosition, mImported);
+        }
+    }
+
+    /**
+     * Writes the last batch and forgets the position, since the source is done.
+     */
+    private int finish() throws IOException {
+        commit();
+        mResolver.delete(NotePad.ImportCheckpoints.CONTENT_URI,
+                NotePad.ImportCheckpoints.COLUMN_NAME_SOURCE + " = ?", new String[] { mSource });
+        Log.i(TAG, "Imported " + mImported + " notes from " + mSource);
+        return mImported;
+    }
+
+    /**
+     * Returns the values of a note exported by {@link NoteExporter}. Its _ID isn't kept, and
+     * its category is looked up by name.
+     */
+    private ContentValues valuesFromJson(JSONObject json) throws JSONException {
+        ContentValues values = new ContentValues();
+        for (String key : new String[] {
+                NotePad.Notes.COLUMN_NAME_TITLE, NotePad.Notes.COLUMN_NAME_NOTE }) {
+            if (!json.isNull(key)) {
+                values.put(key, json.getString(key));
+            }
+        }
+        for (String key : new String[] {
+                NotePad.Notes.COLUMN_NAME_CREATE_DATE,
+                NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+                NotePad.Notes.COLUMN_NAME_IS_TODO,
+                NotePad.Notes.COLUMN_NAME_IS_COMPLETED,
+                NotePad.Notes.COLUMN_NAME_DUE_DATE }) {
+            if (!json.isNull(key)) {
+                values.put(key, json.getLong(key));
+            }
+        }
+
+        if (!json.isNull(NotePad.Notes.COLUMN_NAME_CATEGORY_NAME)) {
+            values.put(NotePad.Notes.COLUMN_NAME_CATEGORY_ID, categoryId(
+                    json.getString(NotePad.Notes.COLUMN_NAME_CATEGORY_NAME),
+                    json.isNull(NotePad.Notes.COLUMN_NAME_CATEGORY_COLOR) ? null
+                            : json.getInt(NotePad.Notes.COLUMN_NAME_CATEGORY_COLOR)));
+        }
+        return values;
+    }
+
+    /**
+     * Returns the _ID of the category with the given name, creating it if there is none.
+     */
+    private long categoryId(String name, Integer color) {
+        Long id = mCategories.get(name);
+        if (id == null) {
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Categories.COLUMN_NAME_CATEGORY_NAME, name);
+            if (color != null) {
+                values.put(NotePad.Categories.COLUMN_NAME_CATEGORY_COLOR, color);
+            }
+            id = ContentUris.parseId(mResolver.insert(NotePad.Categories.CONTENT_URI, values));
+            mCategories.put(name, id);
+        }
+        return id;
+    }
+
+    /**
+     * Returns the title of a note imported from the file, or null if the file isn't imported.
+     */
+    private static String textFileTitle(File file) {
+        String name = file.getName();
+        if (!file.isFile() || name.startsWith(".")) {
+            return null;
+        }
+        for (String extension : TEXT_FILE_EXTENSIONS) {
+            if (name.regionMatches(true, name.length() - extension.length(), extension, 0,
+                    extension.length())) {
+                return name.substring(0, name.length() - extension.length());
+            }
+        }
+        return null;
+    }
+
+    private static String readFile(File file) throws IOException {
+        Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+        try {
+            StringBuilder text = new StringBuilder((int) Math.min(file.length(), BATCH_LENGTH));
+            char[] buffer = new char[8 * 1024];
+            int count;
+            while ((count = reader.read(buffer)) != -1) {
+                text.append(buffer, 0, count);
+            }
+            return text.toString();
+        } finally {
+            reader.close();
+        }
+    }
+}
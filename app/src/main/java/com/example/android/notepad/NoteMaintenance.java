@@ -0,0 +1,203 @@
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+/**
+ * Keeps the notes database compact and its query statistics fresh.
+ *
+ * The database uses incremental auto-vacuum: pages freed by deletes stay on the free list
+ * until {@link #run(SQLiteDatabase)} moves them to the end of the file and truncates it, a few
+ * pages per transaction, so a write from the UI never waits for more than one step. The mode
+ * can only be switched by rewriting the whole file with VACUUM, which can't run inside the
+ * upgrade transaction, so the first run after an upgrade, or after the database is created,
+ * while the device is idle, does that once.
+ *
+ * Each run also refreshes the statistics the query planner uses, at most once per
+ * {@link #ANALYZE_INTERVAL_MILLIS}. The time of each task is kept in the maintenance table.
+ */
+final class NoteMaintenance {
+
+    private static final String TAG = "NoteMaintenance";
+
+    /**
+     * The table with the last run of each maintenance task
+     */
+    static final String TABLE_NAME = "maintenance";
+
+    /**
+     * The name of a task
+     * <P>Type: TEXT</P>
+     */
+    private static final String COLUMN_NAME_TASK = "task";
+
+    /**
+     * When the task last ran, in System.currentTimeMillis() form
+     * <P>Type: INTEGER</P>
+     */
+    private static final String COLUMN_NAME_LAST_RUN = "last_run";
+
+    private static final String TASK_VACUUM = "vacuum";
+    private static final String TASK_ANALYZE = "analyze";
+
+    /**
+     * The value of PRAGMA auto_vacuum in incremental mode
+     */
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    /**
+     * The number of free pages given back to the file system per transaction
+     */
+    static final int VACUUM_STEP_PAGES = 128;
+
+    /**
+     * How often the query planner statistics are refreshed
+     */
+    static final long ANALYZE_INTERVAL_MILLIS = 24 * 60 * 60 * 1000L;
+
+    // PRAGMA optimize only exists since SQLite 3.18; older versions run a plain ANALYZE.
+    private static final int OPTIMIZE_MIN_VERSION = 3018000;
+
+    /**
+     * The columns of the stats returned by {@link #queryStats(SQLiteDatabase)}
+     */
+    static final String[] STATS_PROJECTION = new String[] {
+            NotePad.Maintenance.COLUMN_NAME_PAGE_SIZE,
+            NotePad.Maintenance.COLUMN_NAME_PAGE_COUNT,
+            NotePad.Maintenance.COLUMN_NAME_FREE_PAGES,
+            NotePad.Maintenance.COLUMN_NAME_FRAGMENTATION,
+            NotePad.Maintenance.COLUMN_NAME_INCREMENTAL_VACUUM,
+            NotePad.Maintenance.COLUMN_NAME_LAST_VACUUM,
+            NotePad.Maintenance.COLUMN_NAME_LAST_ANALYZE
+    };
+
+    private NoteMaintenance() {
+    }
+
+    /**
+     * Creates the table of the maintenance tasks.
+     */
+    static void createTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_NAME + " ("
+                + COLUMN_NAME_TASK + " TEXT PRIMARY KEY,"
+                + COLUMN_NAME_LAST_RUN + " INTEGER NOT NULL"
+                + ");");
+    }
+
+    /**
+     * Runs the maintenance that is due. Must not be called inside a transaction. Returns the
+     * number of pages given back.
+     *
+     * @param idle Whether the device is idle enough for the VACUUM that switches the database
+     * to incremental auto-vacuum. It rewrites the whole file and holds off every other
+     * connection while it does, so without it the switch waits for a later run.
+     */
+    static int run(SQLiteDatabase db, boolean idle) {
+        int freed = 0;
+        if (longForPragma(db, "auto_vacuum") != AUTO_VACUUM_INCREMENTAL) {
+            if (idle) {
+                // Rewrites the file; the free pages go with it.
+                long pages = longForPragma(db, "page_count");
+                query(db, "PRAGMA auto_vacuum = INCREMENTAL");
+                db.execSQL("VACUUM");
+                freed = (int) (pages - longForPragma(db, "page_count"));
+                Log.i(TAG, "Switched to incremental vacuum");
+            } else {
+                Log.i(TAG, "Switching to incremental vacuum waits until the device is idle");
+            }
+        } else {
+            long freePages = longForPragma(db, "freelist_count");
+            while (freePages > 0) {
+                // Each step is a transaction of its own, so writers get in between. The pragma
+                // frees one page per row it steps through, so it is run as a query to the end.
+                query(db, "PRAGMA incremental_vacuum(" + VACUUM_STEP_PAGES + ")");
+                long left = longForPragma(db, "freelist_count");
+                if (left >= freePages) {
+                    break;
+                }
+                freed += freePages - left;
+                freePages = left;
+            }
+        }
+        if (freed > 0) {
+            setLastRun(db, TASK_VACUUM);
+            Log.i(TAG, "Gave back " + freed + " pages");
+        }
+
+        if (System.currentTimeMillis() - getLastRun(db, TASK_ANALYZE) >= ANALYZE_INTERVAL_MILLIS) {
+            if (sqliteVersion(db) >= OPTIMIZE_MIN_VERSION) {
+                query(db, "PRAGMA optimize");
+            } else {
+                db.execSQL("ANALYZE");
+            }
+            setLastRun(db, TASK_ANALYZE);
+        }
+        return freed;
+    }
+
+    /**
+     * Returns one row with the size of the database file, the pages that deletes left free,
+     * and when the maintenance tasks last ran. The columns are {@link #STATS_PROJECTION}.
+     */
+    static Cursor queryStats(SQLiteDatabase db) {
+        long pageCount = longForPragma(db, "page_count");
+        long freePages = longForPragma(db, "freelist_count");
+        MatrixCursor cursor = new MatrixCursor(STATS_PROJECTION, 1);
+        cursor.addRow(new Object[] {
+                longForPragma(db, "page_size"),
+                pageCount,
+                freePages,
+                pageCount > 0 ? (double) freePages / pageCount : 0.0,
+                longForPragma(db, "auto_vacuum") == AUTO_VACUUM_INCREMENTAL ? 1 : 0,
+                getLastRun(db, TASK_VACUUM),
+                getLastRun(db, TASK_ANALYZE)
+        });
+        return cursor;
+    }
+
+    private static long getLastRun(SQLiteDatabase db, String task) {
+        return DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX(" + COLUMN_NAME_LAST_RUN
+                + "), 0) FROM " + TABLE_NAME + " WHERE " + COLUMN_NAME_TASK + " = ?",
+                new String[] { task });
+    }
+
+    private static void setLastRun(SQLiteDatabase db, String task) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_NAME_TASK, task);
+        values.put(COLUMN_NAME_LAST_RUN, System.currentTimeMillis());
+        db.insertWithOnConflict(TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    private static long longForPragma(SQLiteDatabase db, String name) {
+        return DatabaseUtils.longForQuery(db, "PRAGMA " + name, null);
+    }
+
+    /**
+     * Returns the SQLite version as a number, for example 3018000 for 3.18.0.
+     */
+    private static int sqliteVersion(SQLiteDatabase db) {
+        String[] parts = DatabaseUtils.stringForQuery(db, "SELECT sqlite_version()", null)
+                .split("\\.");
+        int version = 0;
+        for (int i = 0; i < 3; i++) {
+            version = version * 1000 + (i < parts.length ? Integer.parseInt(parts[i]) : 0);
+        }
+        return version;
+    }
+
+    /**
+     * Steps a statement that may return rows, which execSQL() refuses, to the end.
+     */
+    private static void query(SQLiteDatabase db, String sql) {
+        Cursor c = db.rawQuery(sql, null);
+        try {
+            c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+}
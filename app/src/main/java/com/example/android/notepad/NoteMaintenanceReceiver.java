@@ -0,0 +1,105 @@
+package com.example.android.notepad;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.ContentProviderClient;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.PowerManager;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Runs the maintenance of {@link NotePadProvider} when the alarm it sets goes off. The work
+ * is done on a background thread; the broadcast is kept open until it is done, so the wake
+ * lock the alarm holds keeps the device awake that long.
+ *
+ * Maintenance is put off while the screen is on, so it doesn't compete with the user for the
+ * disk: a one-shot alarm tries again {@link #RETRY_DELAY_MILLIS} later. With the screen off,
+ * the trash is purged and the free pages are given back; the VACUUM that rewrites the whole
+ * file also waits for the device to be charging.
+ */
+public class NoteMaintenanceReceiver extends BroadcastReceiver {
+
+    private static final String TAG = "NoteMaintenance";
+
+    // How long a run put off because the device was in use waits before it tries again
+    private static final long RETRY_DELAY_MILLIS = AlarmManager.INTERVAL_HOUR;
+
+    // The request code of the retry, so that it doesn't replace the repeating alarm
+    private static final int REQUEST_RETRY = 1;
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        final Context appContext = context.getApplicationContext();
+        if (isInUse(appContext)) {
+            Log.i(TAG, "The device is in use, maintenance is put off");
+            scheduleRetry(appContext);
+            return;
+        }
+        final boolean idle = isCharging(appContext);
+        final PendingResult result = goAsync();
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                ContentProviderClient client = appContext.getContentResolver()
+                        .acquireContentProviderClient(NotePad.AUTHORITY);
+                try {
+                    // The provider runs in this process, so it is called directly.
+                    if (client != null) {
+                        ((NotePadProvider) client.getLocalContentProvider()).runMaintenance(idle);
+                    }
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Maintenance stopped, it runs again with the next alarm", e);
+                } finally {
+                    if (client != null) {
+                        client.release();
+                    }
+                    result.finish();
+                }
+            }
+        }, "NotePadMaintenance");
+        thread.start();
+    }
+
+    /**
+     * Returns whether the screen is on, which is taken to mean the user is using the device.
+     */
+    @SuppressWarnings("deprecation")
+    private static boolean isInUse(Context context) {
+        PowerManager power = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        // isScreenOn() is what isInteractive() replaced in API 20, and still answers the same.
+        return power != null && power.isScreenOn();
+    }
+
+    /**
+     * Returns whether the device is plugged in, from the sticky battery broadcast.
+     */
+    private static boolean isCharging(Context context) {
+        Intent battery = context.registerReceiver(null,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
+    /**
+     * Sets a one-shot alarm that brings the receiver back after {@link #RETRY_DELAY_MILLIS}.
+     * A retry that is already set is replaced, so there is never more than one.
+     */
+    private static void scheduleRetry(Context context) {
+        AlarmManager alarms = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        if (alarms == null) {
+            return;
+        }
+        PendingIntent retry = PendingIntent.getBroadcast(context, REQUEST_RETRY,
+                new Intent(context, NoteMaintenanceReceiver.class),
+                PendingIntent.FLAG_UPDATE_CURRENT);
+        alarms.set(AlarmManager.ELAPSED_REALTIME_WAKEUP,
+                SystemClock.elapsedRealtime() + RETRY_DELAY_MILLIS, retry);
+    }
+}
@@ -1,5 +1,6 @@
 package com.example.android.notepad;
 
+import android.content.ContentUris;
 import android.net.Uri;
 import android.provider.BaseColumns;
 
@@ -9,8 +10,19 @@ public final class NotePad {
     private static final String SCHEME = "content://";
     private static final String PATH_NOTES = "/notes";
     private static final String PATH_NOTE_ID = "/notes/";
+    private static final String PATH_NOTES_SEARCH = "/notes/search";
+    private static final String PATH_NOTES_COUNT = "/notes/count";
+    private static final String PATH_NOTES_COUNT_BY_CATEGORY = "/notes/count_by_category";
+    private static final String PATH_NOTES_WITH_CATEGORY = "/notes_with_category";
     private static final String PATH_LIVE_FOLDER = "/live_folders/notes";
     private static final String PATH_CATEGORIES = "/categories";
+    private static final String PATH_REVISIONS = "revisions";
+    private static final String PATH_IMPORTS = "/imports";
+    private static final String PATH_MAINTENANCE = "/maintenance";
+    private static final String PATH_TRASH = "/trash";
+    private static final String PATH_TRASH_ID = "/trash/";
+    private static final String PATH_TRASH_COUNT = "/trash/count";
+    private static final String PATH_CATEGORY_STATS = "/category_stats";
 
     private NotePad() {
     }
@@ -28,9 +40,62 @@ public final class NotePad {
         public static final Uri CONTENT_ID_URI_PATTERN = Uri.parse(SCHEME + AUTHORITY + PATH_NOTE_ID + "/#");
         public static final Uri LIVE_FOLDER_URI = Uri.parse(SCHEME + AUTHORITY + PATH_LIVE_FOLDER);
 
+        /**
+         * Full-text search over title and note. The search terms are passed in the
+         * {@link #QUERY_PARAMETER_SEARCH} query parameter.
+         */
+        public static final Uri SEARCH_URI = Uri.parse(SCHEME + AUTHORITY + PATH_NOTES_SEARCH);
+        public static final String QUERY_PARAMETER_SEARCH = "q";
+
+        /**
+         * The notes joined with their categories, for lists that show the category of each
+         * note. Rows have the note columns plus {@link #COLUMN_NAME_CATEGORY_NAME} and
+         * {@link #COLUMN_NAME_CATEGORY_COLOR}. Accepts the {@link #QUERY_PARAMETER_SEARCH} and
+         * paging parameters. Read-only.
+         */
+        public static final Uri WITH_CATEGORY_URI =
+                Uri.parse(SCHEME + AUTHORITY + PATH_NOTES_WITH_CATEGORY);
+
+        /**
+         * The number of notes outside the trash, as a single row with the {@link #_COUNT}
+         * column. Takes a selection over the note columns and the
+         * {@link #QUERY_PARAMETER_SEARCH} parameter, like the lists do; the projection and
+         * sort order are ignored. Read-only.
+         */
+        public static final Uri COUNT_URI = Uri.parse(SCHEME + AUTHORITY + PATH_NOTES_COUNT);
+
+        /**
+         * Like {@link #COUNT_URI}, but one row per category that has notes, with the
+         * {@link #COLUMN_NAME_CATEGORY_ID} and {@link #_COUNT} columns, ordered by category.
+         */
+        public static final Uri COUNT_BY_CATEGORY_URI =
+                Uri.parse(SCHEME + AUTHORITY + PATH_NOTES_COUNT_BY_CATEGORY);
+
+        /**
+         * Paged queries on {@link #CONTENT_URI}, {@link #SEARCH_URI} and {@link #WITH_CATEGORY_URI}. {@link #QUERY_PARAMETER_LIMIT}
+         * sets the page size. To get the next page, pass the modification date and _ID of the
+         * last row of the previous page in {@link #QUERY_PARAMETER_AFTER_MODIFIED} and
+         * {@link #QUERY_PARAMETER_AFTER_ID}. Paged queries are always sorted by
+         * {@link #PAGED_SORT_ORDER}.
+         */
+        public static final String QUERY_PARAMETER_LIMIT = "limit";
+        public static final String QUERY_PARAMETER_AFTER_MODIFIED = "after_modified";
+        public static final String QUERY_PARAMETER_AFTER_ID = "after_id";
+
+        /**
+         * The stream type of {@link #CONTENT_URI}: every note as one line of JSON, for
+         * {@link android.content.ContentResolver#openTypedAssetFileDescriptor}. The keys are the
+         * note columns, with {@link #COLUMN_NAME_CATEGORY_NAME} and
+         * {@link #COLUMN_NAME_CATEGORY_COLOR} in place of the category _ID.
+         */
+        public static final String EXPORT_MIME_TYPE = "application/x-ndjson";
+
         public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.google.note";
         public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/vnd.google.note";
+        public static final String COUNT_TYPE = "vnd.android.cursor.dir/vnd.google.note-count";
+        public static final String COUNT_ITEM_TYPE = "vnd.android.cursor.item/vnd.google.note-count";
         public static final String DEFAULT_SORT_ORDER = "modified DESC";
+        public static final String PAGED_SORT_ORDER = "modified DESC, _id DESC";
 
         public static final String COLUMN_NAME_TITLE = "title";
         public static final String COLUMN_NAME_NOTE = "note";
@@ -42,6 +107,18 @@ public final class NotePad {
         public static final String COLUMN_NAME_IS_TODO = "is_todo"; // 是否为待办事项
         public static final String COLUMN_NAME_IS_COMPLETED = "is_completed"; // 是否已完成
         public static final String COLUMN_NAME_DUE_DATE = "due_date"; // 截止日期（可选）
+        public static final String COLUMN_NAME_DELETED_AT = "deleted_at"; // 移入回收站的时间，null 表示不在回收站
+
+        // 内容预览：笔记内容的前 40 个字符，由 provider 在写入笔记时维护
+        public static final String COLUMN_NAME_PREVIEW = "preview";
+
+        // 正文是否存放在文件中（只读）。为 1 时查询结果中的 note 列为 null，
+        // 正文需要通过 ContentResolver.openInputStream(笔记 URI) 以流的方式读取
+        public static final String COLUMN_NAME_NOTE_EXTERNAL = "note_external";
+
+        // 分类相关字段，只在 WITH_CATEGORY_URI 的查询结果中出现
+        public static final String COLUMN_NAME_CATEGORY_NAME = "category_name"; // 分类名称
+        public static final String COLUMN_NAME_CATEGORY_COLOR = "category_color"; // 分类颜色
     }
 
     public static final class Categories implements BaseColumns {
@@ -62,4 +139,165 @@ public final class NotePad {
         public static final String DEFAULT_CATEGORY_NAME = "默认分类";
         public static final int DEFAULT_CATEGORY_COLOR = 0xFF2196F3;
     }
-}
\ No newline at end of file
+
+    /**
+     * The earlier versions of a note, newest first. Each time the text of a note is replaced,
+     * the text it had before is kept as a revision. Only the most recent revisions of each
+     * note are kept. Read-only; the revisions go when their note does.
+     */
+    public static final class NoteRevisions implements BaseColumns {
+
+        private NoteRevisions() {}
+
+        public static final String TABLE_NAME = "note_revisions";
+
+        public static final int NOTE_ID_PATH_POSITION = 1;
+        public static final int REVISION_ID_PATH_POSITION = 3;
+
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.google.note-revision";
+        public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/vnd.google.note-revision";
+        public static final String DEFAULT_SORT_ORDER = "_id DESC";
+
+        public static final String COLUMN_NAME_NOTE_ID = "note_id"; // 所属笔记的 ID
+        public static final String COLUMN_NAME_TITLE = "title"; // 当时的标题
+        public static final String COLUMN_NAME_MODIFICATION_DATE = "modified"; // 这个版本保存的时间
+
+        // 当时的正文，只在单个版本的查询结果中出现。正文存放在文件中时为 null，
+        // 此时 note_external 为 1，正文需要通过 openInputStream(版本 URI) 读取
+        public static final String COLUMN_NAME_NOTE = "note";
+        public static final String COLUMN_NAME_NOTE_EXTERNAL = "note_external";
+
+        /**
+         * Returns the URI of the revisions of a note.
+         */
+        public static Uri getContentUri(long noteId) {
+            return ContentUris.withAppendedId(Notes.CONTENT_URI, noteId).buildUpon()
+                    .appendPath(PATH_REVISIONS).build();
+        }
+    }
+
+    /**
+     * How far each unfinished import has got, so an interrupted import can carry on where it
+     * stopped. An import writes its position in the same batch as the notes it has read, and
+     * deletes it when it is done. Inserting a row for a source that has one replaces it.
+     */
+    public static final class ImportCheckpoints implements BaseColumns {
+
+        private ImportCheckpoints() {}
+
+        public static final String TABLE_NAME = "import_checkpoints";
+
+        public static final Uri CONTENT_URI = Uri.parse(SCHEME + AUTHORITY + PATH_IMPORTS);
+
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.google.note-import";
+
+        public static final String COLUMN_NAME_SOURCE = "source"; // 导入来源，例如文件的 URI
+        public static final String COLUMN_NAME_POSITION = "position"; // 已经处理的记录数
+    }
+
+    /**
+     * The provider methods, for {@link android.content.ContentResolver#call}, that back up the
+     * notes and restore them. The argument is the path of the backup directory. Only the app
+     * itself may call them.
+     *
+     * A backup is a consistent copy of the database and the note bodies, written to a
+     * directory that must not exist yet. Readers are not held up while it is made, and writers
+     * only while the database file is copied. A restore replaces every note, category and
+     * revision with those of a backup. It waits for the calls already using the database, and
+     * calls made meanwhile wait for it and then see the restored notes.
+     */
+    public static final class Backups {
+
+        private Backups() {}
+
+        public static final String METHOD_BACKUP = "backup";
+        public static final String METHOD_RESTORE = "restore";
+
+        // 返回结果中的耗时，单位为毫秒
+        public static final String KEY_MILLIS = "millis"; // 整个操作的耗时
+        public static final String KEY_LOCK_MILLIS = "lock_millis"; // 备份时写操作需要等待的时间
+    }
+
+    /**
+     * The size of the database file and the space that deleted notes left free in it, as a
+     * single read-only row. The free pages are given back a few at a time from an alarm that
+     * fires about twice a day and waits for the screen to be off, so the fragmentation drops
+     * back to 0 some time after a mass delete.
+     */
+    public static final class Maintenance {
+
+        private Maintenance() {}
+
+        public static final Uri CONTENT_URI = Uri.parse(SCHEME + AUTHORITY + PATH_MAINTENANCE);
+
+        public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/vnd.google.note-maintenance";
+
+        public static final String COLUMN_NAME_PAGE_SIZE = "page_size"; // 每页的字节数
+        public static final String COLUMN_NAME_PAGE_COUNT = "page_count"; // 数据库文件的总页数
+        public static final String COLUMN_NAME_FREE_PAGES = "free_pages"; // 空闲页数，尚未归还给文件系统
+        public static final String COLUMN_NAME_FRAGMENTATION = "fragmentation"; // 空闲页占总页数的比例，0 到 1
+        public static final String COLUMN_NAME_INCREMENTAL_VACUUM = "incremental_vacuum"; // 是否已启用增量整理，1 或 0
+        public static final String COLUMN_NAME_LAST_VACUUM = "last_vacuum"; // 上次归还空间的时间，0 表示从未
+        public static final String COLUMN_NAME_LAST_ANALYZE = "last_analyze"; // 上次更新查询统计的时间，0 表示从未
+    }
+
+    /**
+     * The notes in the trash, most recently deleted first. A note is moved to the trash by
+     * setting {@link Notes#COLUMN_NAME_DELETED_AT} to the current time through its note URI.
+     * The note lists leave out the notes in the trash. Updating through this URI with
+     * {@link Notes#COLUMN_NAME_DELETED_AT} set to null puts notes back; that is the only
+     * update it takes. Deleting through this URI removes notes from the trash for good; notes
+     * that have been in the trash longer than {@link #RETENTION_MILLIS} are removed in the
+     * background.
+     */
+    public static final class Trash {
+
+        private Trash() {}
+
+        public static final Uri CONTENT_URI = Uri.parse(SCHEME + AUTHORITY + PATH_TRASH);
+        public static final Uri CONTENT_ID_URI_BASE = Uri.parse(SCHEME + AUTHORITY + PATH_TRASH_ID);
+
+        /**
+         * The number of notes in the trash, as a single row with the {@link Notes#_COUNT}
+         * column, like {@link Notes#COUNT_URI}. Takes a selection over the note columns.
+         * Read-only.
+         */
+        public static final Uri COUNT_URI = Uri.parse(SCHEME + AUTHORITY + PATH_TRASH_COUNT);
+
+        public static final int NOTE_ID_PATH_POSITION = 1;
+
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.google.note-trash";
+        public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/vnd.google.note-trash";
+        public static final String DEFAULT_SORT_ORDER = Notes.COLUMN_NAME_DELETED_AT + " DESC";
+
+        /**
+         * How long a note stays in the trash, in milliseconds
+         */
+        public static final long RETENTION_MILLIS = 30 * 24 * 60 * 60 * 1000L;
+    }
+
+    /**
+     * The number of notes, todos, completed todos and overdue todos in each category, one
+     * read-only row per category in the order the categories were created. The counts leave
+     * out the notes in the trash. The note, todo and completed counts are kept by the database
+     * as notes change, so reading them doesn't go through the notes. The overdue count depends
+     * on the time of the query, so it is counted each time from an index: reading the stats
+     * costs one row per category plus one index entry per overdue todo, that is
+     * O(categories + overdue todos), and should be done off the main thread. A cursor on this
+     * URI is notified when a note or a category is inserted, changed or deleted.
+     */
+    public static final class CategoryStats {
+
+        private CategoryStats() {}
+
+        public static final Uri CONTENT_URI = Uri.parse(SCHEME + AUTHORITY + PATH_CATEGORY_STATS);
+
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.google.note-category-stats";
+
+        public static final String COLUMN_NAME_CATEGORY_ID = "category_id"; // 分类的 _ID
+        public static final String COLUMN_NAME_NOTE_COUNT = "note_count"; // 笔记数
+        public static final String COLUMN_NAME_TODO_COUNT = "todo_count"; // 待办事项数，包括已完成的
+        public static final String COLUMN_NAME_COMPLETED_COUNT = "completed_count"; // 已完成的待办事项数
+        public static final String COLUMN_NAME_OVERDUE_COUNT = "overdue_count"; // 未完成且已过截止日期的待办事项数
+    }
+}
@@ -0,0 +1,618 @@
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The schema migrations of the notes database.
+ *
+ * Each step is a {@link Migration} that brings the database from the version before it to its
+ * own {@link Migration#toVersion}. The steps run in order, inside the transaction that
+ * SQLiteOpenHelper opens for onUpgrade(), so an upgrade either completes or leaves the
+ * database at its old version. Every step keeps the existing rows: columns and tables are
+ * added, never dropped and recreated.
+ *
+ * A step only changes the schema. If existing rows need new values, the step returns a
+ * {@link Backfill}, which is queued in the pending_backfills table and run after the database
+ * is open, in chunks of {@link #ROWS_PER_CHUNK} rows by _ID range. Each chunk commits together
+ * with its checkpoint, so a backfill that is interrupted resumes where it stopped. Until a
+ * backfill is done, the provider has to compute the value of rows that don't have it yet, so
+ * queries see the same data before and after.
+ *
+ * To change the schema, bump NotePadProvider.DATABASE_VERSION, make the same change in
+ * DatabaseHelper.onCreate(), and add a step here. NotePadMigrationsTest checks that every past
+ * version upgrades to the schema onCreate() builds.
+ */
+final class NotePadMigrations {
+
+    private static final String TAG = "NotePadMigrations";
+
+    /**
+     * The number of rows a backfill rewrites per transaction
+     */
+    static final int ROWS_PER_CHUNK = 2000;
+
+    /**
+     * The table of the backfills that haven't finished
+     */
+    static final String BACKFILL_TABLE_NAME = "pending_backfills";
+
+    /**
+     * The name of a pending backfill
+     * <P>Type: TEXT</P>
+     */
+    private static final String COLUMN_NAME_NAME = "name";
+
+    /**
+     * The largest note _ID the backfill has already rewritten
+     * <P>Type: INTEGER</P>
+     */
+    private static final String COLUMN_NAME_LAST_ID = "last_id";
+
+    /**
+     * The largest note _ID when the backfill was queued. Notes added later are written by the
+     * provider with their new values already set.
+     * <P>Type: INTEGER</P>
+     */
+    private static final String COLUMN_NAME_MAX_ID = "max_id";
+
+    /**
+     * One step of the schema history.
+     */
+    abstract static class Migration {
+
+        /**
+         * The version the database has after this step
+         */
+        final int toVersion;
+
+        Migration(int toVersion) {
+            this.toVersion = toVersion;
+        }
+
+        /**
+         * Changes the schema of a database at version toVersion - 1, or older if no step
+         * exists for the versions in between, to version toVersion.
+         */
+        abstract void migrate(SQLiteDatabase db);
+
+        /**
+         * Returns the rewrite of the existing notes this step needs, or null if it needs none.
+         */
+        Backfill getBackfill() {
+            return null;
+        }
+    }
+
+    /**
+     * An UPDATE of the existing notes that runs in the background after an upgrade. A rewrite
+     * that SQL can't express overrides {@link #run(SQLiteDatabase, NoteBodyStore, long, long)}.
+     */
+    static class Backfill {
+
+        /**
+         * The name the backfill is queued under. It must not change once released.
+         */
+        final String name;
+
+        private final String mSql;
+
+        /**
+         * @param assignments The SET clause of the update, without the SET keyword.
+         * @param condition The rows that still need the update. Rows the provider wrote since
+         * the upgrade don't match it, so they are left alone.
+         */
+        Backfill(String name, String assignments, String condition) {
+            this.name = name;
+            mSql = "UPDATE " + NotePad.Notes.TABLE_NAME + " SET " + assignments
+                    + " WHERE " + NotePad.Notes._ID + " > ? AND " + NotePad.Notes._ID + " <= ?"
+                    + " AND (" + condition + ")";
+        }
+
+        /**
+         * For a backfill that overrides run().
+         */
+        Backfill(String name) {
+            this.name = name;
+            mSql = null;
+        }
+
+        /**
+         * Rewrites the notes with afterId < _ID <= upToId.
+         *
+         * @param bodies The store of the note bodies kept in files.
+         */
+        void run(SQLiteDatabase db, NoteBodyStore bodies, long afterId, long upToId) {
+            db.execSQL(mSql, new Object[] { afterId, upToId });
+        }
+    }
+
+    /**
+     * All the steps, in version order. Version 5 has no step of its own: the word index it
+     * added is replaced by {@link AddTrigramIndex}.
+     */
+    static final Migration[] MIGRATIONS = {
+            new AddCategories(),
+            new AddTodos(),
+            new AddTrigramIndex(),
+            new AddListIndexes(),
+            new AddPreview(),
+            new AddBackfillQueue(),
+            new AddNoteFiles(),
+            new AddRevisions(),
+            new AddImportCheckpoints(),
+            new AddMaintenance(),
+            new AddTrash(),
+            new AddCategoryStats(),
+            new MoveLargeBodies()
+    };
+
+    private NotePadMigrations() {
+    }
+
+    /**
+     * Runs the steps that lead from oldVersion to newVersion, and queues their backfills.
+     * newVersion must be at least the version that added the backfill queue.
+     */
+    static void migrate(SQLiteDatabase db, int oldVersion, int newVersion) {
+        List<Backfill> backfills = new ArrayList<Backfill>();
+        for (Migration migration : MIGRATIONS) {
+            if (migration.toVersion > oldVersion && migration.toVersion <= newVersion) {
+                Log.i(TAG, "Migrating database to version " + migration.toVersion + " with "
+                        + migration.getClass().getSimpleName());
+                migration.migrate(db);
+
+                Backfill backfill = migration.getBackfill();
+                if (backfill != null) {
+                    backfills.add(backfill);
+                }
+            }
+        }
+
+        // The queue may have been created by the last step, so nothing is queued before all
+        // the steps have run.
+        for (Backfill backfill : backfills) {
+            ContentValues values = new ContentValues();
+            values.put(COLUMN_NAME_NAME, backfill.name);
+            values.put(COLUMN_NAME_LAST_ID, 0);
+            values.put(COLUMN_NAME_MAX_ID, DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX("
+                    + NotePad.Notes._ID + "), 0) FROM " + NotePad.Notes.TABLE_NAME, null));
+            db.insertWithOnConflict(BACKFILL_TABLE_NAME, null, values,
+                    SQLiteDatabase.CONFLICT_REPLACE);
+        }
+    }
+
+    /**
+     * Creates the table of pending backfills.
+     */
+    static void createBackfillQueue(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + BACKFILL_TABLE_NAME + " ("
+                + COLUMN_NAME_NAME + " TEXT PRIMARY KEY,"
+                + COLUMN_NAME_LAST_ID + " INTEGER NOT NULL,"
+                + COLUMN_NAME_MAX_ID + " INTEGER NOT NULL"
+                + ");");
+    }
+
+    /**
+     * Returns true if a backfill hasn't finished yet.
+     */
+    static boolean hasPendingBackfills(SQLiteDatabase db) {
+        return DatabaseUtils.queryNumEntries(db, BACKFILL_TABLE_NAME) > 0;
+    }
+
+    /**
+     * Runs every pending backfill to the end, one chunk per transaction.
+     *
+     * @param bodies The store of the note bodies kept in files.
+     */
+    static void runBackfills(SQLiteDatabase db, NoteBodyStore bodies) {
+        while (runBackfillChunk(db, bodies)) {
+            // Each chunk commits on its own, so writers from the UI wait for one chunk at most.
+        }
+    }
+
+    /**
+     * Runs the next chunk of the first pending backfill, and moves its checkpoint past the
+     * chunk in the same transaction.
+     *
+     * @return false if there was nothing left to run.
+     */
+    static boolean runBackfillChunk(SQLiteDatabase db, NoteBodyStore bodies) {
+        db.beginTransactionNonExclusive();
+        try {
+            String name;
+            long lastId;
+            long maxId;
+            Cursor c = db.query(BACKFILL_TABLE_NAME,
+                    new String[] { COLUMN_NAME_NAME, COLUMN_NAME_LAST_ID, COLUMN_NAME_MAX_ID },
+                    null, null, null, null, null, "1");
+            try {
+                if (!c.moveToFirst()) {
+                    db.setTransactionSuccessful();
+                    return false;
+                }
+                name = c.getString(0);
+                lastId = c.getLong(1);
+                maxId = c.getLong(2);
+            } finally {
+                c.close();
+            }
+
+            Backfill backfill = findBackfill(name);
+            long upToId = Math.min(lastId + ROWS_PER_CHUNK, maxId);
+            if (backfill != null) {
+                backfill.run(db, bodies, lastId, upToId);
+            } else {
+                // Left behind by a newer version of the app before a downgrade
+                Log.w(TAG, "Dropping unknown backfill " + name);
+            }
+
+            String[] whereArgs = { name };
+            if (backfill == null || upToId >= maxId) {
+                db.delete(BACKFILL_TABLE_NAME, COLUMN_NAME_NAME + " = ?", whereArgs);
+            } else {
+                ContentValues values = new ContentValues();
+                values.put(COLUMN_NAME_LAST_ID, upToId);
+                db.update(BACKFILL_TABLE_NAME, values, COLUMN_NAME_NAME + " = ?", whereArgs);
+            }
+
+            db.setTransactionSuccessful();
+            return true;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private static Backfill findBackfill(String name) {
+        for (Migration migration : MIGRATIONS) {
+            Backfill backfill = migration.getBackfill();
+            if (backfill != null && backfill.name.equals(name)) {
+                return backfill;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Version 3: notes belong to a category. Existing notes go to the default category.
+     */
+    static final class AddCategories extends Migration {
+        AddCategories() {
+            super(3);
+        }
+
+        @Override
+        void migrate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE IF NOT EXISTS " + NotePad.Categories.TABLE_NAME + " ("
+                    + NotePad.Categories._ID + " INTEGER PRIMARY KEY,"
+                    + NotePad.Categories.COLUMN_NAME_CATEGORY_NAME + " TEXT UNIQUE,"
+                    + NotePad.Categories.COLUMN_NAME_CATEGORY_COLOR + " INTEGER,"
+                    + NotePad.Categories.COLUMN_NAME_CREATE_DATE + " INTEGER"
+                    + ");");
+
+            ContentValues defaultCategory = new ContentValues();
+            defaultCategory.put(NotePad.Categories._ID, 1);
+            defaultCategory.put(NotePad.Categories.COLUMN_NAME_CATEGORY_NAME,
+                    NotePad.Categories.DEFAULT_CATEGORY_NAME);
+            defaultCategory.put(NotePad.Categories.COLUMN_NAME_CATEGORY_COLOR,
+                    NotePad.Categories.DEFAULT_CATEGORY_COLOR);
+            defaultCategory.put(NotePad.Categories.COLUMN_NAME_CREATE_DATE,
+                    System.currentTimeMillis());
+            db.insertWithOnConflict(NotePad.Categories.TABLE_NAME, null, defaultCategory,
+                    SQLiteDatabase.CONFLICT_IGNORE);
+
+            // The default value fills the column for the existing rows, so no backfill is
+            // needed. An added column can't declare a foreign key with a non-null default, and
+            // the provider doesn't turn foreign keys on, so the column is added without one.
+            db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                    + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " INTEGER DEFAULT 1");
+        }
+    }
+
+    /**
+     * Version 4: notes can be to-do items with a completed flag and a due date.
+     */
+    static final class AddTodos extends Migration {
+        AddTodos() {
+            super(4);
+        }
+
+        @Override
+        void migrate(SQLiteDatabase db) {
+            db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                    + NotePad.Notes.COLUMN_NAME_IS_TODO + " INTEGER DEFAULT 0");
+            db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                    + NotePad.Notes.COLUMN_NAME_IS_COMPLETED + " INTEGER DEFAULT 0");
+            db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                    + NotePad.Notes.COLUMN_NAME_DUE_DATE + " INTEGER DEFAULT NULL");
+
+            db.execSQL("CREATE INDEX idx_notes_is_todo ON " + NotePad.Notes.TABLE_NAME
+                    + "(" + NotePad.Notes.COLUMN_NAME_IS_TODO + ");");
+            db.execSQL("CREATE INDEX idx_notes_is_completed ON " + NotePad.Notes.TABLE_NAME
+                    + "(" + NotePad.Notes.COLUMN_NAME_IS_COMPLETED + ");");
+            db.execSQL("CREATE INDEX idx_notes_due_date ON " + NotePad.Notes.TABLE_NAME
+                    + "(" + NotePad.Notes.COLUMN_NAME_DUE_DATE + ");");
+        }
+    }
+
+    /**
+     * Version 6: substring search through the trigram index. The version 5 word index, which
+     * could not match inside Chinese text, is dropped. Existing notes are queued and indexed
+     * by the provider in the background; until then, search checks them with LIKE.
+     */
+    static final class AddTrigramIndex extends Migration {
+        AddTrigramIndex() {
+            super(6);
+        }
+
+        @Override
+        void migrate(SQLiteDatabase db) {
+            db.execSQL("DROP TRIGGER IF EXISTS notes_fts_insert");
+            db.execSQL("DROP TRIGGER IF EXISTS notes_fts_update");
+            db.execSQL("DROP TRIGGER IF EXISTS notes_fts_delete");
+            db.execSQL("DROP TABLE IF EXISTS notes_fts");
+
+            TrigramIndex.create(db);
+            TrigramIndex.queueAll(db);
+        }
+    }
+
+    /**
+     * Version 7: composite indexes that serve the notes list in sort order replace the
+     * single-column to-do indexes.
+     */
+    static final class AddListIndexes extends Migration {
+        AddListIndexes() {
+            super(7);
+        }
+
+        @Override
+        void migrate(SQLiteDatabase db) {
+            db.execSQL("DROP INDEX IF EXISTS idx_notes_is_todo");
+            db.execSQL("DROP INDEX IF EXISTS idx_notes_is_completed");
+
+            // The indexes as they were at this version. Version 14 puts the trash column in
+            // front of each.
+            db.execSQL("CREATE INDEX idx_notes_modified ON " + NotePad.Notes.TABLE_NAME + "("
+                    + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ");");
+            db.execSQL("CREATE INDEX idx_notes_category_modified ON " + NotePad.Notes.TABLE_NAME + "("
+                    + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + ", "
+                    + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ");");
+            db.execSQL("CREATE INDEX idx_notes_todo_modified ON " + NotePad.Notes.TABLE_NAME + "("
+                    + NotePad.Notes.COLUMN_NAME_IS_TODO + ", "
+                    + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ");");
+            db.execSQL("CREATE INDEX idx_notes_todo_completed_modified ON " + NotePad.Notes.TABLE_NAME + "("
+                    + NotePad.Notes.COLUMN_NAME_IS_TODO + ", "
+                    + NotePad.Notes.COLUMN_NAME_IS_COMPLETED + ", "
+                    + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ");");
+        }
+    }
+
+    /**
+     * Version 8: a preview column with the start of each note, so the list doesn't read note
+     * bodies. Existing notes are backfilled with the same rule the provider uses; until then
+     * the provider computes their preview when it reads them.
+     */
+    static final class AddPreview extends Migration {
+        AddPreview() {
+            super(8);
+        }
+
+        @Override
+        void migrate(SQLiteDatabase db) {
+            db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                    + NotePad.Notes.COLUMN_NAME_PREVIEW + " TEXT");
+        }
+
+        @Override
+        Backfill getBackfill() {
+            return new Backfill("preview",
+                    NotePad.Notes.COLUMN_NAME_PREVIEW + " = "
+                            + NotePadProvider.previewExpression(NotePad.Notes.COLUMN_NAME_NOTE),
+                    NotePad.Notes.COLUMN_NAME_PREVIEW + " IS NULL AND "
+                            + NotePad.Notes.COLUMN_NAME_NOTE + " IS NOT NULL");
+        }
+    }
+
+    /**
+     * Version 9: the queue of backfills that run after the database is open.
+     */
+    static final class AddBackfillQueue extends Migration {
+        AddBackfillQueue() {
+            super(9);
+        }
+
+        @Override
+        void migrate(SQLiteDatabase db) {
+            createBackfillQueue(db);
+        }
+    }
+
+    /**
+     * Version 10: large note bodies can be stored in files, with the file name in the row.
+     * Existing notes keep their bodies in the row.
+     */
+    static final class AddNoteFiles extends Migration {
+        AddNoteFiles() {
+            super(10);
+        }
+
+        @Override
+        void migrate(SQLiteDatabase db) {
+            db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                    + NotePadProvider.COLUMN_NAME_NOTE_FILE + " TEXT");
+            NotePadProvider.DatabaseHelper.createNoteFileIndex(db);
+        }
+    }
+
+    /**
+     * Version 11: the earlier versions of each note are kept. Existing notes start with no
+     * revisions.
+     */
+    static final class AddRevisions extends Migration {
+        AddRevisions() {
+            super(11);
+        }
+
+        @Override
+        void migrate(SQLiteDatabase db) {
+            NoteHistory.create(db);
+        }
+    }
+
+    /**
+     * Version 12: imports record how far they have got, so they can be resumed.
+     */
+    static final class AddImportCheckpoints extends Migration {
+        AddImportCheckpoints() {
+            super(12);
+        }
+
+        @Override
+        void migrate(SQLiteDatabase db) {
+            NotePadProvider.DatabaseHelper.createImportCheckpoints(db);
+        }
+    }
+
+    /**
+     * Version 13: the maintenance table, which records when the database was last vacuumed
+     * and analyzed. The switch to incremental auto-vacuum itself rewrites the whole file with
+     * VACUUM, which can't run inside the upgrade transaction; NoteMaintenance does it on its
+     * first run.
+     */
+    static final class AddMaintenance extends Migration {
+        AddMaintenance() {
+            super(13);
+        }
+
+        @Override
+        void migrate(SQLiteDatabase db) {
+            NoteMaintenance.createTable(db);
+        }
+    }
+
+    /**
+     * Version 14: a deleted note goes to the trash first. Notes in the trash have the time
+     * they were deleted; the list indexes are rebuilt with that column in front, so the lists
+     * skip the trash without reading it.
+     */
+    static final class AddTrash extends Migration {
+        AddTrash() {
+            super(14);
+        }
+
+        @Override
+        void migrate(SQLiteDatabase db) {
+            db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                    + NotePad.Notes.COLUMN_NAME_DELETED_AT + " INTEGER DEFAULT NULL");
+            for (String index : new String[] { "idx_notes_modified", "idx_notes_category_modified",
+                    "idx_notes_todo_modified", "idx_notes_todo_completed_modified" }) {
+                db.execSQL("DROP INDEX IF EXISTS " + index);
+            }
+            NotePadProvider.DatabaseHelper.createListIndexes(db);
+        }
+    }
+
+    /**
+     * Version 15: the counts of each category are kept in a table that triggers update as
+     * notes change. The existing notes are counted once here.
+     */
+    static final class AddCategoryStats extends Migration {
+        AddCategoryStats() {
+            super(15);
+        }
+
+        @Override
+        void migrate(SQLiteDatabase db) {
+            CategoryStatsTable.create(db);
+            CategoryStatsTable.rebuild(db);
+        }
+    }
+
+    /**
+     * Version 16: note bodies longer than {@link NotePadProvider#EXTERNAL_BODY_LENGTH} that
+     * were saved in their row, before bodies were stored in files, are moved to files. Their
+     * rows keep the start of the body, as for a note saved now, so every body search has to
+     * look past the row for is in a file, and a row always fits in a cursor window.
+     */
+    static final class MoveLargeBodies extends Migration {
+        MoveLargeBodies() {
+            super(16);
+        }
+
+        @Override
+        void migrate(SQLiteDatabase db) {
+            // The schema doesn't change, only the rows, in the backfill
+        }
+
+        @Override
+        Backfill getBackfill() {
+            return new Backfill("large_bodies") {
+                @Override
+                void run(SQLiteDatabase db, NoteBodyStore bodies, long afterId, long upToId) {
+                    moveLargeBodies(db, bodies, afterId, upToId);
+                }
+            };
+        }
+
+        /**
+         * Moves the bodies of the notes with afterId < _ID <= upToId that are too long for a
+         * row to files. A body that large doesn't fit in a cursor window, so it is read from
+         * its row a piece at a time.
+         */
+        private static void moveLargeBodies(SQLiteDatabase db, NoteBodyStore bodies,
+                long afterId, long upToId) {
+            List<Long> noteIds = new ArrayList<Long>();
+            Cursor c = db.query(NotePad.Notes.TABLE_NAME, new String[] { NotePad.Notes._ID },
+                    NotePad.Notes._ID + " > ? AND " + NotePad.Notes._ID + " <= ? AND "
+                            + NotePadProvider.COLUMN_NAME_NOTE_FILE + " IS NULL AND length("
+                            + NotePad.Notes.COLUMN_NAME_NOTE + ") > "
+                            + NotePadProvider.EXTERNAL_BODY_LENGTH,
+                    new String[] { String.valueOf(afterId), String.valueOf(upToId) },
+                    null, null, null);
+            try {
+                while (c.moveToNext()) {
+                    noteIds.add(c.getLong(0));
+                }
+            } finally {
+                c.close();
+            }
+
+            SQLiteStatement read = db.compileStatement("SELECT substr("
+                    + NotePad.Notes.COLUMN_NAME_NOTE + ", ?, "
+                    + NotePadProvider.EXTERNAL_BODY_LENGTH + ") FROM " + NotePad.Notes.TABLE_NAME
+                    + " WHERE " + NotePad.Notes._ID + " = ?");
+            try {
+                for (long noteId : noteIds) {
+                    // substr() counts characters from 1, and returns '' past the end
+                    StringBuilder body = new StringBuilder();
+                    for (long start = 1; ; start += NotePadProvider.EXTERNAL_BODY_LENGTH) {
+                        read.bindLong(1, start);
+                        read.bindLong(2, noteId);
+                        String piece = read.simpleQueryForString();
+                        if (TextUtils.isEmpty(piece)) {
+                            break;
+                        }
+                        body.append(piece);
+                    }
+
+                    ContentValues values = new ContentValues();
+                    values.put(NotePad.Notes.COLUMN_NAME_NOTE, body.toString());
+                    NotePadProvider.putNoteBody(values, bodies);
+                    db.update(NotePad.Notes.TABLE_NAME, values, NotePad.Notes._ID + " = ?",
+                            new String[] { String.valueOf(noteId) });
+                }
+            } finally {
+                read.close();
+            }
+        }
+    }
+}
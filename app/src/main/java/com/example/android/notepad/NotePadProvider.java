@@ -18,34 +18,64 @@ package com.example.android.notepad;
 
 import com.example.android.notepad.NotePad;
 
+import android.app.AlarmManager;
+import android.app.PendingIntent;
 import android.content.ClipDescription;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.content.ContentProvider.PipeDataWriter;
 import android.content.res.AssetFileDescriptor;
 import android.content.res.Resources;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Binder;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.os.SystemClock;
 import android.provider.LiveFolders;
 import android.text.TextUtils;
 import android.util.Log;
 
+import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
-import java.io.UnsupportedEncodingException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Provides access to a database of notes. Each note has a title, the note
@@ -63,7 +93,65 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     /**
      * The database version
      */
-    private static final int DATABASE_VERSION = 4;
+    static final int DATABASE_VERSION = 16;
+
+    /**
+     * The number of characters of a note kept in its preview
+     */
+    static final int PREVIEW_LENGTH = 40;
+
+    /**
+     * The number of characters above which a note body is stored in a file instead of its row.
+     * The row keeps this many characters of the body, so the preview still sees the start of
+     * the note. Search and the index read the rest from the file.
+     */
+    static final int EXTERNAL_BODY_LENGTH = 16 * 1024;
+
+    /**
+     * The column with the name of the file a note body is stored in, or null if the body is
+     * in the row. Clients see {@link NotePad.Notes#COLUMN_NAME_NOTE_EXTERNAL} instead.
+     * <P>Type: TEXT</P>
+     */
+    static final String COLUMN_NAME_NOTE_FILE = "note_file";
+
+    /**
+     * The suffix that makes the name of the directory of the body files from the name of the
+     * database file
+     */
+    static final String BODY_DIRECTORY_SUFFIX = "-bodies";
+
+    /**
+     * The number of WAL pages after which a commit checkpoints the log back into the database
+     */
+    private static final int WAL_AUTOCHECKPOINT_PAGES = 1000;
+
+    /**
+     * The size, in bytes, the WAL file is truncated to after a checkpoint
+     */
+    private static final long JOURNAL_SIZE_LIMIT = 512 * 1024;
+
+    /**
+     * How long, in milliseconds, change notifications are collected before listeners are told
+     */
+    private static final long NOTIFY_WINDOW_MILLIS = 100;
+
+    /**
+     * The number of notes the trash purge deletes per transaction
+     */
+    static final int TRASH_PURGE_BATCH = 100;
+
+    /**
+     * The condition that leaves the notes in the trash out of a list. It matches the leading
+     * column of the list indexes, so the trash is skipped in the index.
+     */
+    private static final String LIVE_NOTES_WHERE =
+            NotePad.Notes.TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_DELETED_AT + " IS NULL";
+
+    /**
+     * The condition that selects the notes in the trash
+     */
+    private static final String TRASH_WHERE =
+            NotePad.Notes.TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_DELETED_AT + " IS NOT NULL";
 
     /**
      * A projection map used to select columns from the database
@@ -81,15 +169,79 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     private static HashMap<String, String> sCategoriesProjectionMap;
 
     /**
-     * Standard projection for the interesting columns of a normal note.
+     * A projection map for the notes joined with their categories
+     */
+    private static HashMap<String, String> sNotesWithCategoryProjectionMap;
+
+    /**
+     * A projection map for the list of a note's revisions. The text of a revision is only
+     * returned for a single revision, since it has to be rebuilt from its deltas.
+     */
+    private static HashMap<String, String> sRevisionsProjectionMap;
+
+    /**
+     * The columns of the counts, which take the place of the caller's projection
+     */
+    private static final String[] COUNT_PROJECTION = new String[] {
+            "COUNT(*) AS " + NotePad.Notes._COUNT
+    };
+    private static final String[] COUNT_BY_CATEGORY_PROJECTION = new String[] {
+            NotePad.Notes.COLUMN_NAME_CATEGORY_ID,
+            "COUNT(*) AS " + NotePad.Notes._COUNT
+    };
+
+    /**
+     * The columns of a single revision, and its default projection
+     */
+    private static final String[] REVISION_PROJECTION = new String[] {
+            NotePad.NoteRevisions._ID,
+            NotePad.NoteRevisions.COLUMN_NAME_NOTE_ID,
+            NotePad.NoteRevisions.COLUMN_NAME_TITLE,
+            NotePad.NoteRevisions.COLUMN_NAME_MODIFICATION_DATE,
+            NotePad.NoteRevisions.COLUMN_NAME_NOTE,
+            NotePad.NoteRevisions.COLUMN_NAME_NOTE_EXTERNAL
+    };
+
+    /**
+     * The tables of a notes query joined with categories. Notes whose category is gone are kept.
+     */
+    private static final String NOTES_WITH_CATEGORY_TABLES = NotePad.Notes.TABLE_NAME
+            + " LEFT OUTER JOIN " + NotePad.Categories.TABLE_NAME
+            + " ON (" + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_CATEGORY_ID
+            + " = " + NotePad.Categories.TABLE_NAME + "." + NotePad.Categories._ID + ")";
+
+    /**
+     * The sort order of paged notes queries, qualified so that it also works on the join
+     */
+    private static final String PAGED_SORT_ORDER =
+            NotePad.Notes.TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " DESC, "
+            + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes._ID + " DESC";
+
+    /**
+     * Standard projection for the interesting columns of a normal note. The content isn't read
+     * through the cursor; it is streamed by {@link #openFile(Uri, String)}.
      */
     private static final String[] READ_NOTE_PROJECTION = new String[] {
             NotePad.Notes._ID,               // Projection position 0, the note's id
-            NotePad.Notes.COLUMN_NAME_NOTE,  // Projection position 1, the note's content
-            NotePad.Notes.COLUMN_NAME_TITLE, // Projection position 2, the note's title
+            NotePad.Notes.COLUMN_NAME_TITLE, // Projection position 1, the note's title
     };
-    private static final int READ_NOTE_NOTE_INDEX = 1;
-    private static final int READ_NOTE_TITLE_INDEX = 2;
+    private static final int READ_NOTE_TITLE_INDEX = 1;
+
+    /**
+     * The size, in bytes, of the chunks a note body is streamed in
+     */
+    private static final int STREAM_CHUNK_BYTES = 8 * 1024;
+
+    /**
+     * The number of characters of a body in its row read per chunk. A character takes at most
+     * four bytes in UTF-8, so a chunk is never more than {@link #STREAM_CHUNK_BYTES}.
+     */
+    private static final int STREAM_CHUNK_LENGTH = STREAM_CHUNK_BYTES / 4;
+
+    /**
+     * The number of characters of a body file read at a time when it is searched
+     */
+    private static final int SEARCH_CHUNK_LENGTH = 8 * 1024;
 
     /*
      * Constants used by the Uri matcher to choose an action based on the pattern
@@ -110,14 +262,152 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     // The incoming URI matches the Category ID URI pattern
     private static final int CATEGORY_ID = 5;
 
+    // The incoming URI matches the full-text search URI pattern
+    private static final int NOTES_SEARCH = 6;
+
+    // The incoming URI matches the notes joined with categories URI pattern
+    private static final int NOTES_WITH_CATEGORY = 7;
+
+    // The incoming URI matches the revisions of a note
+    private static final int NOTE_REVISIONS = 8;
+
+    // The incoming URI matches a single revision of a note
+    private static final int NOTE_REVISION_ID = 9;
+
+    // The incoming URI matches the import checkpoints
+    private static final int IMPORT_CHECKPOINTS = 10;
+
+    // The incoming URI matches the database maintenance stats
+    private static final int MAINTENANCE = 11;
+
+    // The incoming URI matches the trash
+    private static final int TRASH = 12;
+
+    // The incoming URI matches a single note in the trash
+    private static final int TRASH_ID = 13;
+
+    // The incoming URI matches the number of notes
+    private static final int NOTES_COUNT = 14;
+
+    // The incoming URI matches the number of notes in each category
+    private static final int NOTES_COUNT_BY_CATEGORY = 15;
+
+    // The incoming URI matches the counts kept for each category
+    private static final int CATEGORY_STATS = 16;
+
+    // The incoming URI matches the number of notes in the trash
+    private static final int TRASH_COUNT = 17;
+
     /**
      * A UriMatcher instance
      */
     private static final UriMatcher sUriMatcher;
 
-    // Handle to a new DatabaseHelper.
-    private DatabaseHelper mOpenHelper;
+    // Handle to a new DatabaseHelper. Replaced when a backup is restored.
+    private volatile DatabaseHelper mOpenHelper;
+
+    // Every use of mOpenHelper holds the read lock. A restore holds the write lock while it
+    // closes the database and swaps the file, so nothing can open the old file meanwhile. The
+    // read lock is reentrant, so a batch can call the other write methods.
+    private final ReentrantReadWriteLock mDatabaseLock = new ReentrantReadWriteLock();
+    private final Lock mReadLock = mDatabaseLock.readLock();
+
+    // The background threads the provider started that use the database. A restore stops
+    // them and waits for them before it closes the database; none start until it is done.
+    private final Set<Thread> mWorkers = new HashSet<Thread>();
+    private volatile boolean mWorkersStopped;
+
+    // The precompiled statements for the most common updates, created on first use.
+    private NoteStatements mStatements;
+
+    // Collapses the change notifications sent to listeners.
+    private NotificationCoalescer mNotifier;
+
+    // The files of the note bodies that don't fit in a row.
+    private NoteBodyStore mBodyStore;
+
+    // Makes and restores the backups of the database and the body files.
+    private NoteBackup mBackup;
+
+    // The number of backups being made. No body file is deleted while this isn't 0.
+    private final AtomicInteger mBackupsRunning = new AtomicInteger();
+
+    // Whether a maintenance run is going on
+    private final AtomicBoolean mMaintenanceRunning = new AtomicBoolean();
 
+    // Whether the search index is being synced, and whether notes changed since the sync began
+    private final AtomicBoolean mIndexSyncRunning = new AtomicBoolean();
+    private volatile boolean mIndexSyncRequested;
+
+    // Writes a body kept in its row into the pipe returned by openFile(), a chunk at a time.
+    private final PipeDataWriter<String> mRowBodyWriter = new PipeDataWriter<String>() {
+        @Override
+        public void writeDataToPipe(ParcelFileDescriptor output, Uri uri, String mimeType,
+                Bundle opts, String noteId) {
+            FileOutputStream out = new FileOutputStream(output.getFileDescriptor());
+            // tryLock() gets in ahead of a restore that is waiting for the write lock. The
+            // export holds the read lock while it reads this pipe, so waiting behind the
+            // restore would wait for the export, and the export for this thread.
+            if (!mReadLock.tryLock()) {
+                mReadLock.lock();
+            }
+            SQLiteStatement read = null;
+            try {
+                read = mOpenHelper.getReadableDatabase().compileStatement(
+                        "SELECT substr(" + NotePad.Notes.COLUMN_NAME_NOTE + ", ?, "
+                                + STREAM_CHUNK_LENGTH + ") FROM " + NotePad.Notes.TABLE_NAME
+                                + " WHERE " + NotePad.Notes._ID + " = ?");
+                read.bindString(2, noteId);
+                // substr() counts characters from 1, and returns '' past the end
+                for (long start = 1; ; start += STREAM_CHUNK_LENGTH) {
+                    read.bindLong(1, start);
+                    String chunk = read.simpleQueryForString();
+                    if (TextUtils.isEmpty(chunk)) {
+                        break;
+                    }
+                    out.write(chunk.getBytes("UTF-8"));
+                }
+            } catch (IOException | SQLiteDoneException e) {
+                // The reader closed the pipe, or the note was deleted since openFile()
+                Log.w(TAG, "Can't stream the body of " + uri, e);
+            } finally {
+                if (read != null) {
+                    read.close();
+                }
+                mReadLock.unlock();
+                try {
+                    out.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    };
+
+    // Writes the export of every note into the pipe returned by openTypedAssetFile().
+    private final PipeDataWriter<Void> mExportWriter = new PipeDataWriter<Void>() {
+        @Override
+        public void writeDataToPipe(ParcelFileDescriptor output, Uri uri, String mimeType,
+                Bundle opts, Void args) {
+            FileOutputStream out = new FileOutputStream(output.getFileDescriptor());
+            mReadLock.lock();
+            try {
+                Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"),
+                        STREAM_CHUNK_BYTES);
+                new NoteExporter(mOpenHelper.getReadableDatabase(), NotePadProvider.this)
+                        .export(writer);
+                writer.flush();
+            } catch (IOException e) {
+                // Usually the reader closed the pipe before the end
+                Log.w(TAG, "Export of " + uri + " stopped", e);
+            } finally {
+                mReadLock.unlock();
+                try {
+                    out.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    };
 
     /**
      * A block that instantiates and sets static objects
@@ -145,6 +435,34 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         sUriMatcher.addURI(NotePad.AUTHORITY, "categories", CATEGORIES);
         sUriMatcher.addURI(NotePad.AUTHORITY, "categories/#", CATEGORY_ID);
 
+        // Add a pattern for full-text search over notes
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/search", NOTES_SEARCH);
+
+        // Add a pattern for the notes joined with their categories
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes_with_category", NOTES_WITH_CATEGORY);
+
+        // Add patterns for the earlier versions of a note
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/#/revisions", NOTE_REVISIONS);
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/#/revisions/#", NOTE_REVISION_ID);
+
+        // Add a pattern for the positions of unfinished imports
+        sUriMatcher.addURI(NotePad.AUTHORITY, "imports", IMPORT_CHECKPOINTS);
+
+        // Add a pattern for the size and free space of the database
+        sUriMatcher.addURI(NotePad.AUTHORITY, "maintenance", MAINTENANCE);
+
+        // Add patterns for the notes in the trash
+        sUriMatcher.addURI(NotePad.AUTHORITY, "trash", TRASH);
+        sUriMatcher.addURI(NotePad.AUTHORITY, "trash/count", TRASH_COUNT);
+        sUriMatcher.addURI(NotePad.AUTHORITY, "trash/#", TRASH_ID);
+
+        // Add patterns for counting notes without reading them
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/count", NOTES_COUNT);
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/count_by_category", NOTES_COUNT_BY_CATEGORY);
+
+        // Add a pattern for the counts the triggers keep for each category
+        sUriMatcher.addURI(NotePad.AUTHORITY, "category_stats", CATEGORY_STATS);
+
         /*
          * Creates and initializes a projection map that returns all columns
          */
@@ -159,8 +477,17 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         // Maps "title" to "title"
         sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_TITLE, NotePad.Notes.COLUMN_NAME_TITLE);
 
-        // Maps "note" to "note"
-        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_NOTE, NotePad.Notes.COLUMN_NAME_NOTE);
+        // Maps "note" to the note text. A body stored in a file only has its start in the row,
+        // so it is returned as null rather than cut short.
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_NOTE,
+                "CASE WHEN " + NotePad.Notes.TABLE_NAME + "." + COLUMN_NAME_NOTE_FILE + " IS NULL"
+                        + " THEN " + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_NOTE
+                        + " END AS " + NotePad.Notes.COLUMN_NAME_NOTE);
+
+        // Maps "note_external" to whether the body is stored in a file
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_NOTE_EXTERNAL,
+                "(" + NotePad.Notes.TABLE_NAME + "." + COLUMN_NAME_NOTE_FILE + " IS NOT NULL)"
+                        + " AS " + NotePad.Notes.COLUMN_NAME_NOTE_EXTERNAL);
 
         // Maps "created" to "created"
         sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_CREATE_DATE,
@@ -187,6 +514,44 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_DUE_DATE,
                 NotePad.Notes.COLUMN_NAME_DUE_DATE);
 
+        // Maps "deleted_at" to "deleted_at"
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_DELETED_AT,
+                NotePad.Notes.COLUMN_NAME_DELETED_AT);
+
+        // Maps "preview" to the stored preview. Notes the preview backfill hasn't reached yet
+        // have none, and get theirs computed from the note text.
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_PREVIEW,
+                "IFNULL(" + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_PREVIEW + ", "
+                        + previewExpression(NotePad.Notes.TABLE_NAME + "."
+                                + NotePad.Notes.COLUMN_NAME_NOTE) + ")"
+                        + " AS " + NotePad.Notes.COLUMN_NAME_PREVIEW);
+
+        /*
+         * Creates and initializes a projection map for the notes joined with categories. Both
+         * tables have _id and created columns, so every column is qualified with its table.
+         */
+        sNotesWithCategoryProjectionMap = new HashMap<String, String>();
+        for (String column : sNotesProjectionMap.keySet()) {
+            sNotesWithCategoryProjectionMap.put(column,
+                    NotePad.Notes.TABLE_NAME + "." + column + " AS " + column);
+        }
+
+        // These columns are already qualified
+        for (String column : new String[] { NotePad.Notes.COLUMN_NAME_NOTE,
+                NotePad.Notes.COLUMN_NAME_NOTE_EXTERNAL, NotePad.Notes.COLUMN_NAME_PREVIEW }) {
+            sNotesWithCategoryProjectionMap.put(column, sNotesProjectionMap.get(column));
+        }
+
+        // Maps "category_name" to "categories.name AS category_name"
+        sNotesWithCategoryProjectionMap.put(NotePad.Notes.COLUMN_NAME_CATEGORY_NAME,
+                NotePad.Categories.TABLE_NAME + "." + NotePad.Categories.COLUMN_NAME_CATEGORY_NAME
+                        + " AS " + NotePad.Notes.COLUMN_NAME_CATEGORY_NAME);
+
+        // Maps "category_color" to "categories.color AS category_color"
+        sNotesWithCategoryProjectionMap.put(NotePad.Notes.COLUMN_NAME_CATEGORY_COLOR,
+                NotePad.Categories.TABLE_NAME + "." + NotePad.Categories.COLUMN_NAME_CATEGORY_COLOR
+                        + " AS " + NotePad.Notes.COLUMN_NAME_CATEGORY_COLOR);
+
         /*
          * Creates an initializes a projection map for handling Live Folders
          */
@@ -220,6 +585,21 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         // Maps "created" to "created"
         sCategoriesProjectionMap.put(NotePad.Categories.COLUMN_NAME_CREATE_DATE,
                 NotePad.Categories.COLUMN_NAME_CREATE_DATE);
+
+        /*
+         * Creates and initializes a projection map for the revisions of a note
+         */
+        sRevisionsProjectionMap = new HashMap<String, String>();
+        for (String column : new String[] {
+                NotePad.NoteRevisions._ID,
+                NotePad.NoteRevisions.COLUMN_NAME_NOTE_ID,
+                NotePad.NoteRevisions.COLUMN_NAME_TITLE,
+                NotePad.NoteRevisions.COLUMN_NAME_MODIFICATION_DATE }) {
+            sRevisionsProjectionMap.put(column, column);
+        }
+        sRevisionsProjectionMap.put(NotePad.NoteRevisions.COLUMN_NAME_NOTE_EXTERNAL,
+                "(" + COLUMN_NAME_NOTE_FILE + " IS NOT NULL) AS "
+                        + NotePad.NoteRevisions.COLUMN_NAME_NOTE_EXTERNAL);
     }
 
     /**
@@ -229,10 +609,101 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
      */
     static class DatabaseHelper extends SQLiteOpenHelper {
 
-        DatabaseHelper(Context context) {
+        // The store of the note bodies kept in files, which some backfills rewrite
+        private final NoteBodyStore mBodyStore;
+
+        // The thread running the backfills, and whether it should stop because the database
+        // is being closed
+        private Thread mBackfillThread;
+        private volatile boolean mClosing;
+
+        DatabaseHelper(Context context, NoteBodyStore bodies) {
 
             // calls the super constructor, requesting the default cursor factory.
             super(context, DATABASE_NAME, null, DATABASE_VERSION);
+            mBodyStore = bodies;
+
+            // In write-ahead logging mode the database keeps a pool of read-only connections
+            // next to the single write connection, so list queries can run while a note is
+            // being saved and neither side waits for the other.
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                setWriteAheadLoggingEnabled(true);
+            }
+        }
+
+        /**
+         * Applies the journal settings every time the database is opened. These are connection
+         * settings, not part of the schema, so they are not stored in the database file.
+         */
+        @Override
+        public void onOpen(SQLiteDatabase db) {
+            super.onOpen(db);
+
+            // Before Jelly Bean, WAL can only be turned on once the database is open.
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN && !db.isReadOnly()) {
+                db.enableWriteAheadLogging();
+            }
+
+            // In WAL mode, NORMAL only syncs at checkpoints. A crash can lose the last commits
+            // but never corrupts the database.
+            setPragma(db, "synchronous", "NORMAL");
+            setPragma(db, "wal_autocheckpoint", String.valueOf(WAL_AUTOCHECKPOINT_PAGES));
+            setPragma(db, "journal_size_limit", String.valueOf(JOURNAL_SIZE_LIMIT));
+
+            if (!db.isReadOnly() && NotePadMigrations.hasPendingBackfills(db)) {
+                startBackfills(db);
+            }
+        }
+
+        /**
+         * Runs the backfills left by an upgrade on a background thread, so opening the
+         * database doesn't wait for them. If the process dies or the database is closed first,
+         * they resume from their checkpoints the next time the database is opened.
+         */
+        private void startBackfills(final SQLiteDatabase db) {
+            mBackfillThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    try {
+                        while (!mClosing && NotePadMigrations.runBackfillChunk(db, mBodyStore)) {
+                            // Each chunk commits on its own, so a close waits for one at most.
+                        }
+                        Log.i(TAG, mClosing ? "Backfills paused for close" : "Backfills finished");
+                    } catch (RuntimeException e) {
+                        Log.w(TAG, "Backfills stopped, they resume on the next open", e);
+                    }
+                }
+            }, "NotePadBackfill");
+            mBackfillThread.start();
+        }
+
+        /**
+         * Stops the backfills after the chunk they are in and waits for them before closing
+         * the database, so the backfill thread never writes to a database that was closed.
+         */
+        @Override
+        public synchronized void close() {
+            mClosing = true;
+            if (mBackfillThread != null) {
+                joinUninterruptibly(mBackfillThread);
+                mBackfillThread = null;
+            }
+            super.close();
+            mClosing = false;
+        }
+
+        /**
+         * Sets a pragma on the given connection. Some pragmas return their new value as a row,
+         * which execSQL() refuses, so the statement is run as a query.
+         */
+        private static void setPragma(SQLiteDatabase db, String name, String value) {
+            Cursor c = db.rawQuery("PRAGMA " + name + " = " + value, null);
+            try {
+                c.moveToFirst();
+            } finally {
+                c.close();
+            }
         }
 
         /**
@@ -261,15 +732,38 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                     + NotePad.Notes.COLUMN_NAME_IS_TODO + " INTEGER DEFAULT 0,"
                     + NotePad.Notes.COLUMN_NAME_IS_COMPLETED + " INTEGER DEFAULT 0,"
                     + NotePad.Notes.COLUMN_NAME_DUE_DATE + " INTEGER DEFAULT NULL,"
+                    + NotePad.Notes.COLUMN_NAME_PREVIEW + " TEXT,"
+                    + COLUMN_NAME_NOTE_FILE + " TEXT,"
+                    + NotePad.Notes.COLUMN_NAME_DELETED_AT + " INTEGER DEFAULT NULL,"
                     + "FOREIGN KEY(" + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + ") REFERENCES "
                     + NotePad.Categories.TABLE_NAME + "(" + NotePad.Categories._ID + ")"
                     + ");");
             
-            // 添加待办事项索引以提高查询效率
-            db.execSQL("CREATE INDEX idx_notes_is_todo ON " + NotePad.Notes.TABLE_NAME + "(" + NotePad.Notes.COLUMN_NAME_IS_TODO + ");");
-            db.execSQL("CREATE INDEX idx_notes_is_completed ON " + NotePad.Notes.TABLE_NAME + "(" + NotePad.Notes.COLUMN_NAME_IS_COMPLETED + ");");
+            // 添加列表排序和筛选用的索引，以及截止日期索引
+            createListIndexes(db);
             db.execSQL("CREATE INDEX idx_notes_due_date ON " + NotePad.Notes.TABLE_NAME + "(" + NotePad.Notes.COLUMN_NAME_DUE_DATE + ");");
 
+            // 正文文件索引，用于判断文件是否仍被引用
+            createNoteFileIndex(db);
+
+            // 创建三元组检索索引，支持中文子串搜索
+            TrigramIndex.create(db);
+
+            // 创建升级后后台回填任务的队列
+            NotePadMigrations.createBackfillQueue(db);
+
+            // 创建笔记历史版本表
+            NoteHistory.create(db);
+
+            // 创建导入进度表，用于中断后继续导入
+            createImportCheckpoints(db);
+
+            // 创建维护任务表，记录上次整理和统计的时间
+            NoteMaintenance.createTable(db);
+
+            // 创建分类统计表，由触发器随笔记的增删改更新
+            CategoryStatsTable.create(db);
+
             // 插入默认分类
             ContentValues defaultCategory = new ContentValues();
             defaultCategory.put(NotePad.Categories._ID, 1);
@@ -283,35 +777,67 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         }
 
         /**
-         *
-         * Demonstrates that the provider must consider what happens when the
-         * underlying datastore is changed. In this sample, the database is upgraded the database
-         * by destroying the existing data.
-         * A real application should upgrade the database in place.
+         * Upgrades the database in place, keeping every note and category. The steps for each
+         * version are in {@link NotePadMigrations}.
          */
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
 
             // Logs that the database is being upgraded
-            Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
-                    + newVersion + ", which will destroy all old data");
-
-            if (oldVersion < 3) {
-                // 升级到版本3：添加分类功能
-                db.execSQL("DROP TABLE IF EXISTS categories");
-                db.execSQL("DROP TABLE IF EXISTS notes");
-                onCreate(db);
-            } else if (oldVersion < 4) {
-                // 升级到版本4：添加待办事项功能
-                db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN " + NotePad.Notes.COLUMN_NAME_IS_TODO + " INTEGER DEFAULT 0");
-                db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN " + NotePad.Notes.COLUMN_NAME_IS_COMPLETED + " INTEGER DEFAULT 0");
-                db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN " + NotePad.Notes.COLUMN_NAME_DUE_DATE + " INTEGER DEFAULT NULL");
-                
-                // 添加索引
-                db.execSQL("CREATE INDEX idx_notes_is_todo ON " + NotePad.Notes.TABLE_NAME + "(" + NotePad.Notes.COLUMN_NAME_IS_TODO + ");");
-                db.execSQL("CREATE INDEX idx_notes_is_completed ON " + NotePad.Notes.TABLE_NAME + "(" + NotePad.Notes.COLUMN_NAME_IS_COMPLETED + ");");
-                db.execSQL("CREATE INDEX idx_notes_due_date ON " + NotePad.Notes.TABLE_NAME + "(" + NotePad.Notes.COLUMN_NAME_DUE_DATE + ");");
-            }
+            Log.i(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion);
+
+            NotePadMigrations.migrate(db, oldVersion, newVersion);
+        }
+
+        /**
+         * Creates the table where imports record how far they have got.
+         */
+        static void createImportCheckpoints(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + NotePad.ImportCheckpoints.TABLE_NAME + " ("
+                    + NotePad.ImportCheckpoints._ID + " INTEGER PRIMARY KEY,"
+                    + NotePad.ImportCheckpoints.COLUMN_NAME_SOURCE + " TEXT NOT NULL UNIQUE,"
+                    + NotePad.ImportCheckpoints.COLUMN_NAME_POSITION + " INTEGER NOT NULL"
+                    + ");");
+        }
+
+        /**
+         * Creates the index on the body file names, so the provider can tell whether any note
+         * still refers to a file without reading the rows.
+         */
+        static void createNoteFileIndex(SQLiteDatabase db) {
+            db.execSQL("CREATE INDEX idx_notes_note_file ON " + NotePad.Notes.TABLE_NAME + "("
+                    + COLUMN_NAME_NOTE_FILE + ");");
+        }
+
+        /**
+         * Creates the indexes behind the notes list. The list is sorted by modification date,
+         * newest first, and may be filtered by category, by to-do flag, or by to-do and
+         * completed flags. Each filter has an index that ends with the modification date, so
+         * SQLite walks the index in order and stops after one page instead of sorting every
+         * matching row. A filter on both category and to-do flags uses one of these indexes
+         * and checks the other column row by row, which still needs no sort.
+         *
+         * Every index starts with the trash column. The lists ask for the notes where it is
+         * null, which is an equality on the first column, so the notes in the trash are never
+         * read. The same indexes serve the trash list and the purge, which ask for a range.
+         */
+        static void createListIndexes(SQLiteDatabase db) {
+            db.execSQL("CREATE INDEX idx_notes_modified ON " + NotePad.Notes.TABLE_NAME + "("
+                    + NotePad.Notes.COLUMN_NAME_DELETED_AT + ", "
+                    + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ");");
+            db.execSQL("CREATE INDEX idx_notes_category_modified ON " + NotePad.Notes.TABLE_NAME + "("
+                    + NotePad.Notes.COLUMN_NAME_DELETED_AT + ", "
+                    + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + ", "
+                    + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ");");
+            db.execSQL("CREATE INDEX idx_notes_todo_modified ON " + NotePad.Notes.TABLE_NAME + "("
+                    + NotePad.Notes.COLUMN_NAME_DELETED_AT + ", "
+                    + NotePad.Notes.COLUMN_NAME_IS_TODO + ", "
+                    + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ");");
+            db.execSQL("CREATE INDEX idx_notes_todo_completed_modified ON " + NotePad.Notes.TABLE_NAME + "("
+                    + NotePad.Notes.COLUMN_NAME_DELETED_AT + ", "
+                    + NotePad.Notes.COLUMN_NAME_IS_TODO + ", "
+                    + NotePad.Notes.COLUMN_NAME_IS_COMPLETED + ", "
+                    + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ");");
         }
     }
 
@@ -324,9 +850,31 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     @Override
     public boolean onCreate() {
 
+        // Large note bodies are kept next to the database file, so they go wherever the
+        // database goes.
+        File databaseFile = getContext().getDatabasePath(DATABASE_NAME);
+        File bodyDirectory = new File(databaseFile.getPath() + BODY_DIRECTORY_SUFFIX);
+        mBodyStore = new NoteBodyStore(bodyDirectory);
+        mBackup = new NoteBackup(databaseFile, mBodyStore);
+
         // Creates a new helper object. Note that the database itself isn't opened until
         // something tries to access it, and it's only created if it doesn't already exist.
-        mOpenHelper = new DatabaseHelper(getContext());
+        mOpenHelper = new DatabaseHelper(getContext(), mBodyStore);
+
+        // Listeners are told about changes in groups, so a run of writes causes one requery.
+        mNotifier = new NotificationCoalescer(getContext().getContentResolver(),
+                NOTIFY_WINDOW_MILLIS);
+
+        if (bodyDirectory.isDirectory()) {
+            startBodySweep();
+        }
+
+        // Indexes the notes an upgrade or the last run left waiting, off the main thread.
+        startIndexSync();
+
+        // Gives back the space that deletes left behind, from an alarm that fires about twice
+        // a day.
+        scheduleMaintenance();
 
         // Assumes that any failures will be reported by a thrown exception.
         return true;
@@ -344,6 +892,19 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
                         String sortOrder) {
+        mReadLock.lock();
+        try {
+            Cursor c = queryLocked(uri, projection, selection, selectionArgs, sortOrder);
+            // Fills the first window while a restore can't close the database under it
+            c.getCount();
+            return c;
+        } finally {
+            mReadLock.unlock();
+        }
+    }
+
+    private Cursor queryLocked(Uri uri, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder) {
 
         // Constructs a new query builder and sets its table name
         SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
@@ -356,6 +917,7 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             case NOTES:
                 qb.setTables(NotePad.Notes.TABLE_NAME);
                 qb.setProjectionMap(sNotesProjectionMap);
+                qb.appendWhere(LIVE_NOTES_WHERE);
                 break;
 
             /* If the incoming URI is for a single note identified by its ID, chooses the
@@ -376,6 +938,7 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                 // If the incoming URI is from a live folder, chooses the live folder projection.
                 qb.setTables(NotePad.Notes.TABLE_NAME);
                 qb.setProjectionMap(sLiveFolderProjectionMap);
+                qb.appendWhere(LIVE_NOTES_WHERE);
                 break;
 
             // If the incoming URI is for categories
@@ -394,6 +957,75 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                                 uri.getPathSegments().get(1));
                 break;
 
+            // If the incoming URI is a search, restricts the notes to the ones whose title or
+            // content contains the search text
+            case NOTES_SEARCH:
+                qb.setTables(NotePad.Notes.TABLE_NAME);
+                qb.setProjectionMap(sNotesProjectionMap);
+                qb.appendWhere(LIVE_NOTES_WHERE);
+                appendSearchFilter(qb, uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH));
+                break;
+
+            // If the incoming URI is for notes with their categories, joins the two tables so
+            // that a list gets the category of each note without a query per row
+            case NOTES_WITH_CATEGORY:
+                qb.setTables(NOTES_WITH_CATEGORY_TABLES);
+                qb.setProjectionMap(sNotesWithCategoryProjectionMap);
+                qb.appendWhere(LIVE_NOTES_WHERE);
+                appendSearchFilter(qb, uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH));
+                break;
+
+            // If the incoming URI is for the trash, lists the deleted notes
+            case TRASH:
+                qb.setTables(NotePad.Notes.TABLE_NAME);
+                qb.setProjectionMap(sNotesProjectionMap);
+                qb.appendWhere(TRASH_WHERE);
+                break;
+
+            // If the incoming URI is for a single note in the trash
+            case TRASH_ID:
+                qb.setTables(NotePad.Notes.TABLE_NAME);
+                qb.setProjectionMap(sNotesProjectionMap);
+                qb.appendWhere(TRASH_WHERE + " AND " + NotePad.Notes._ID + "="
+                        + uri.getPathSegments().get(NotePad.Trash.NOTE_ID_PATH_POSITION));
+                break;
+
+            // If the incoming URI is for the revisions of a note, lists them without their text
+            case NOTE_REVISIONS:
+                qb.setTables(NotePad.NoteRevisions.TABLE_NAME);
+                qb.setProjectionMap(sRevisionsProjectionMap);
+                qb.appendWhere(NotePad.NoteRevisions.COLUMN_NAME_NOTE_ID + "="
+                        + uri.getPathSegments().get(NotePad.NoteRevisions.NOTE_ID_PATH_POSITION));
+                break;
+
+            // A single revision is rebuilt from its deltas, so it isn't a plain query
+            case NOTE_REVISION_ID:
+                return queryRevision(uri, projection);
+
+            // If the incoming URI is for the import checkpoints. Their columns are all public.
+            case IMPORT_CHECKPOINTS:
+                qb.setTables(NotePad.ImportCheckpoints.TABLE_NAME);
+                break;
+
+            // The stats are read from pragmas, so they aren't a plain query either
+            case MAINTENANCE:
+                return NoteMaintenance.queryStats(mOpenHelper.getReadableDatabase());
+
+            // Counts are computed by SQLite, so no note rows come back to be counted here
+            case NOTES_COUNT:
+            case NOTES_COUNT_BY_CATEGORY:
+            case TRASH_COUNT:
+                return queryCount(uri, selection, selectionArgs);
+
+            // The stats are read from the table the triggers keep, one row per category. Which
+            // todos are overdue depends on the time, so it is passed in.
+            case CATEGORY_STATS:
+                Cursor stats = CategoryStatsTable.query(mOpenHelper.getReadableDatabase(),
+                        System.currentTimeMillis());
+                stats.setNotificationUri(getContext().getContentResolver(),
+                        NotePad.CategoryStats.CONTENT_URI);
+                return stats;
+
             default:
                 // If the URI doesn't match any of the known patterns, throw an exception.
                 throw new IllegalArgumentException("Unknown URI " + uri);
@@ -405,6 +1037,12 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         if (TextUtils.isEmpty(sortOrder)) {
             if (sUriMatcher.match(uri) == CATEGORIES || sUriMatcher.match(uri) == CATEGORY_ID) {
                 orderBy = NotePad.Categories.COLUMN_NAME_CREATE_DATE + " ASC";
+            } else if (sUriMatcher.match(uri) == NOTE_REVISIONS) {
+                orderBy = NotePad.NoteRevisions.DEFAULT_SORT_ORDER;
+            } else if (sUriMatcher.match(uri) == IMPORT_CHECKPOINTS) {
+                orderBy = NotePad.ImportCheckpoints._ID;
+            } else if (sUriMatcher.match(uri) == TRASH || sUriMatcher.match(uri) == TRASH_ID) {
+                orderBy = NotePad.Trash.DEFAULT_SORT_ORDER;
             } else {
                 orderBy = NotePad.Notes.DEFAULT_SORT_ORDER;
             }
@@ -413,6 +1051,40 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             orderBy = sortOrder;
         }
 
+        // A paged query on the notes seeks past the last row of the previous page instead of
+        // using an OFFSET, so every page costs the same no matter how deep it is.
+        String limit = null;
+        String limitParameter = uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT);
+        if (limitParameter != null) {
+            int match = sUriMatcher.match(uri);
+            if (match != NOTES && match != NOTES_SEARCH && match != NOTES_WITH_CATEGORY) {
+                throw new IllegalArgumentException("Paging is not supported for URI " + uri);
+            }
+            long pageSize = parsePageParameter(uri, NotePad.Notes.QUERY_PARAMETER_LIMIT);
+            if (pageSize < 1) {
+                throw new IllegalArgumentException("Bad page size in " + uri);
+            }
+            limit = String.valueOf(pageSize);
+            orderBy = PAGED_SORT_ORDER;
+
+            if (uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_AFTER_ID) != null) {
+                String afterModified = String.valueOf(
+                        parsePageParameter(uri, NotePad.Notes.QUERY_PARAMETER_AFTER_MODIFIED));
+                String afterId = String.valueOf(
+                        parsePageParameter(uri, NotePad.Notes.QUERY_PARAMETER_AFTER_ID));
+
+                // Rows with an older date, or the same date and a smaller _ID. The first term lets
+                // SQLite start the index scan right at the seek position.
+                String modified = NotePad.Notes.TABLE_NAME + "."
+                        + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE;
+                selection = DatabaseUtils.concatenateWhere(selection,
+                        modified + " <= ? AND (" + modified + " < ? OR "
+                                + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes._ID + " < ?)");
+                selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs,
+                        new String[] { afterModified, afterModified, afterId });
+            }
+        }
+
         // Opens the database object in "read" mode, since no writes need to be done.
         SQLiteDatabase db = mOpenHelper.getReadableDatabase();
 
@@ -428,68 +1100,349 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                 selectionArgs, // The values for the where clause
                 null,          // don't group the rows
                 null,          // don't filter by row groups
-                orderBy        // The sort order
+                orderBy,       // The sort order
+                limit          // The page size, or null for all rows
         );
 
-        // Tells the Cursor what URI to watch, so it knows when its source data changes
-        c.setNotificationUri(getContext().getContentResolver(), uri);
+        // Tells the Cursor what URI to watch, so it knows when its source data changes. Search
+        // results, joined notes and the trash change whenever any note changes, so they watch
+        // the notes URI.
+        int match = sUriMatcher.match(uri);
+        if (match == NOTES_SEARCH || match == NOTES_WITH_CATEGORY || match == TRASH
+                || match == TRASH_ID) {
+            c.setNotificationUri(getContext().getContentResolver(), NotePad.Notes.CONTENT_URI);
+        } else {
+            c.setNotificationUri(getContext().getContentResolver(), uri);
+        }
         return c;
     }
 
     /**
-     * This is called when a client calls {@link android.content.ContentResolver#getType(Uri)}.
-     * Returns the MIME data type of the URI given as a parameter.
-     *
-     * @param uri The URI whose MIME type is desired.
-     * @return The MIME type of the URI.
-     * @throws IllegalArgumentException if the incoming URI pattern is invalid.
+     * Returns the number of notes outside the trash that match the selection and the search
+     * parameter, in total or per category, or the number of notes in the trash that match the
+     * selection. The lists filter on the columns of the list indexes, so the count is read
+     * from one of them.
      */
-    @Override
-    public String getType(Uri uri) {
-
-        /**
-         * Chooses the MIME type based on the incoming URI pattern
-         */
-        switch (sUriMatcher.match(uri)) {
-
-            // If the pattern is for notes or live folders, returns the general content type.
-            case NOTES:
-            case LIVE_FOLDER_NOTES:
-                return NotePad.Notes.CONTENT_TYPE;
+    private Cursor queryCount(Uri uri, String selection, String[] selectionArgs) {
+        int match = sUriMatcher.match(uri);
+        SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+        qb.setTables(NotePad.Notes.TABLE_NAME);
+        if (match == TRASH_COUNT) {
+            qb.appendWhere(TRASH_WHERE);
+        } else {
+            qb.appendWhere(LIVE_NOTES_WHERE);
+            appendSearchFilter(qb, uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH));
+        }
 
-            // If the pattern is for note IDs, returns the note ID content type.
-            case NOTE_ID:
-                return NotePad.Notes.CONTENT_ITEM_TYPE;
+        String[] projection;
+        String groupBy;
+        if (match == NOTES_COUNT_BY_CATEGORY) {
+            projection = COUNT_BY_CATEGORY_PROJECTION;
+            groupBy = NotePad.Notes.COLUMN_NAME_CATEGORY_ID;
+        } else {
+            projection = COUNT_PROJECTION;
+            groupBy = null;
+        }
 
-            // If the pattern is for categories
-            case CATEGORIES:
-                return NotePad.Categories.CONTENT_TYPE;
+        Cursor c = qb.query(mOpenHelper.getReadableDatabase(), projection, selection,
+                selectionArgs, groupBy, null, groupBy);
 
-            // If the pattern is for a single category
-            case CATEGORY_ID:
-                return NotePad.Categories.CONTENT_ITEM_TYPE;
-            // If the URI pattern doesn't match any permitted patterns, throws an exception.
-            default:
-                throw new IllegalArgumentException("Unknown URI " + uri);
-        }
+        // A count changes whenever any note changes.
+        c.setNotificationUri(getContext().getContentResolver(), NotePad.Notes.CONTENT_URI);
+        return c;
     }
 
-//BEGIN_INCLUDE(stream)
     /**
-     * This describes the MIME types that are supported for opening a note
-     * URI as a stream.
+     * Returns a single revision of a note, with its text rebuilt from the snapshot and deltas
+     * it is stored as. A text stored in a body file is left out, as for a note.
+     *
+     * @throws IllegalArgumentException if the projection has a column revisions don't have.
      */
-    static ClipDescription NOTE_STREAM_TYPES = new ClipDescription(null,
+    private Cursor queryRevision(Uri uri, String[] projection) {
+        if (projection == null) {
+            projection = REVISION_PROJECTION;
+        }
+        String noteId = uri.getPathSegments().get(NotePad.NoteRevisions.NOTE_ID_PATH_POSITION);
+        String revisionId =
+                uri.getPathSegments().get(NotePad.NoteRevisions.REVISION_ID_PATH_POSITION);
+
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        MatrixCursor result = new MatrixCursor(projection, 1);
+        Cursor c = db.query(NotePad.NoteRevisions.TABLE_NAME,
+                new String[] {
+                        NotePad.NoteRevisions.COLUMN_NAME_TITLE,
+                        NotePad.NoteRevisions.COLUMN_NAME_MODIFICATION_DATE,
+                        COLUMN_NAME_NOTE_FILE },
+                NotePad.NoteRevisions._ID + " = ? AND "
+                        + NotePad.NoteRevisions.COLUMN_NAME_NOTE_ID + " = ?",
+                new String[] { revisionId, noteId }, null, null, null);
+        try {
+            if (c.moveToFirst()) {
+                boolean external = !c.isNull(2);
+                String note = external ? null : NoteHistory.read(db, Long.parseLong(noteId),
+                        Long.parseLong(revisionId));
+
+                MatrixCursor.RowBuilder row = result.newRow();
+                for (String column : projection) {
+                    if (NotePad.NoteRevisions._ID.equals(column)) {
+                        row.add(Long.parseLong(revisionId));
+                    } else if (NotePad.NoteRevisions.COLUMN_NAME_NOTE_ID.equals(column)) {
+                        row.add(Long.parseLong(noteId));
+                    } else if (NotePad.NoteRevisions.COLUMN_NAME_TITLE.equals(column)) {
+                        row.add(c.getString(0));
+                    } else if (NotePad.NoteRevisions.COLUMN_NAME_MODIFICATION_DATE.equals(column)) {
+                        row.add(c.getLong(1));
+                    } else if (NotePad.NoteRevisions.COLUMN_NAME_NOTE.equals(column)) {
+                        row.add(note);
+                    } else if (NotePad.NoteRevisions.COLUMN_NAME_NOTE_EXTERNAL.equals(column)) {
+                        row.add(external ? 1 : 0);
+                    } else {
+                        throw new IllegalArgumentException("Invalid column " + column);
+                    }
+                }
+            }
+        } finally {
+            c.close();
+        }
+
+        result.setNotificationUri(getContext().getContentResolver(), uri);
+        return result;
+    }
+
+    /**
+     * Reads a numeric paging parameter from a notes URI.
+     *
+     * @throws IllegalArgumentException if the parameter is missing or not a number.
+     */
+    private static long parsePageParameter(Uri uri, String name) {
+        String value = uri.getQueryParameter(name);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing query parameter " + name + " in " + uri);
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Bad query parameter " + name + " in " + uri);
+        }
+    }
+
+    /**
+     * Restricts a notes query to the notes whose title or content contains the search text,
+     * with the same meaning as {@code LIKE '%text%'}. The trigram index narrows the notes down
+     * to a few candidates, and only those are checked with LIKE. The notes that changed since
+     * the index was last synced are candidates too, so the search only reads and still finds
+     * them.
+     *
+     * The row of a body stored in a file only keeps its start, so LIKE can't see the rest. The
+     * candidates with such a body are checked against their file here instead, and the ones
+     * that contain the text are added to the filter by _ID.
+     *
+     * @param qb The query builder for a query on the notes table, or on notes joined with
+     * another table. It must already have a where clause, which the filter is added to.
+     * @param query The raw search text. Nothing is appended if it is empty.
+     */
+    private void appendSearchFilter(SQLiteQueryBuilder qb, String query) {
+        if (TextUtils.isEmpty(query)) {
+            return;
+        }
+
+        String id = NotePad.Notes.TABLE_NAME + "." + NotePad.Notes._ID;
+        String candidates = null;
+        String match = TrigramIndex.buildMatchExpression(query);
+        if (match != null) {
+            candidates = "(" + id + " IN (SELECT docid FROM " + TrigramIndex.TABLE_NAME
+                    + " WHERE " + TrigramIndex.TABLE_NAME + " MATCH "
+                    + DatabaseUtils.sqlEscapeString(match) + ") OR " + id + " IN (SELECT "
+                    + TrigramIndex.COLUMN_NAME_NOTE_ID + " FROM " + TrigramIndex.PENDING_TABLE_NAME
+                    + "))";
+        }
+
+        // Escapes the LIKE wildcards, so that the text is matched literally
+        String pattern = DatabaseUtils.sqlEscapeString("%" + query.replace("\\", "\\\\")
+                .replace("%", "\\%")
+                .replace("_", "\\_") + "%");
+        String contains = "(" + NotePad.Notes.COLUMN_NAME_TITLE + " LIKE " + pattern
+                + " ESCAPE '\\' OR " + NotePad.Notes.COLUMN_NAME_NOTE + " LIKE " + pattern
+                + " ESCAPE '\\')";
+
+        List<Long> bodyMatches = findBodyMatches(candidates, contains, query);
+
+        qb.appendWhere(" AND ");
+        if (candidates != null) {
+            qb.appendWhere(candidates + " AND ");
+        }
+        if (bodyMatches.isEmpty()) {
+            qb.appendWhere(contains);
+        } else {
+            qb.appendWhere("(" + contains + " OR " + id + " IN ("
+                    + TextUtils.join(",", bodyMatches) + "))");
+        }
+    }
+
+    /**
+     * Returns the _IDs of the notes outside the trash whose body file contains the search text,
+     * among the candidates whose title and row don't already match.
+     *
+     * @param candidates The where clause of the index candidates, or null for every note.
+     * @param contains The where clause that matches a title or row with LIKE.
+     */
+    private List<Long> findBodyMatches(String candidates, String contains, String query) {
+        List<Long> ids = new ArrayList<Long>();
+        String where = LIVE_NOTES_WHERE + " AND " + COLUMN_NAME_NOTE_FILE + " IS NOT NULL"
+                + " AND " + contains + " IS NOT 1";
+        if (candidates != null) {
+            where += " AND " + candidates;
+        }
+
+        Cursor c = mOpenHelper.getReadableDatabase().query(NotePad.Notes.TABLE_NAME,
+                new String[] { NotePad.Notes._ID, COLUMN_NAME_NOTE_FILE },
+                where, null, null, null, null);
+        try {
+            String needle = TrigramIndex.toLowerAscii(query);
+            while (c.moveToNext()) {
+                if (bodyContains(c.getString(1), needle)) {
+                    ids.add(c.getLong(0));
+                }
+            }
+        } finally {
+            c.close();
+        }
+        return ids;
+    }
+
+    /**
+     * Returns whether a body file contains the given text, ignoring the case of ASCII letters
+     * as LIKE does. The body is read a chunk at a time; only the end of the previous chunk, as
+     * long as the text less one character, is kept to find a match across two chunks.
+     *
+     * @param needle The text to find, with its ASCII letters in lower case.
+     */
+    private boolean bodyContains(String name, String needle) {
+        try {
+            Reader reader = new InputStreamReader(mBodyStore.open(name), "UTF-8");
+            try {
+                StringBuilder window = new StringBuilder();
+                char[] buffer = new char[SEARCH_CHUNK_LENGTH];
+                int count;
+                while ((count = reader.read(buffer)) != -1) {
+                    window.append(TrigramIndex.toLowerAscii(new String(buffer, 0, count)));
+                    if (window.indexOf(needle) >= 0) {
+                        return true;
+                    }
+                    window.delete(0, Math.max(0, window.length() - needle.length() + 1));
+                }
+                return false;
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Can't search body " + name, e);
+            return false;
+        }
+    }
+
+    /**
+     * This is called when a client calls {@link android.content.ContentResolver#getType(Uri)}.
+     * Returns the MIME data type of the URI given as a parameter.
+     *
+     * @param uri The URI whose MIME type is desired.
+     * @return The MIME type of the URI.
+     * @throws IllegalArgumentException if the incoming URI pattern is invalid.
+     */
+    @Override
+    public String getType(Uri uri) {
+
+        /**
+         * Chooses the MIME type based on the incoming URI pattern
+         */
+        switch (sUriMatcher.match(uri)) {
+
+            // If the pattern is for notes, search results or live folders, returns the general
+            // content type.
+            case NOTES:
+            case NOTES_SEARCH:
+            case NOTES_WITH_CATEGORY:
+            case LIVE_FOLDER_NOTES:
+                return NotePad.Notes.CONTENT_TYPE;
+
+            // If the pattern is for note IDs, returns the note ID content type.
+            case NOTE_ID:
+                return NotePad.Notes.CONTENT_ITEM_TYPE;
+
+            // If the pattern is for categories
+            case CATEGORIES:
+                return NotePad.Categories.CONTENT_TYPE;
+
+            // If the pattern is for a single category
+            case CATEGORY_ID:
+                return NotePad.Categories.CONTENT_ITEM_TYPE;
+
+            // If the pattern is for the revisions of a note
+            case NOTE_REVISIONS:
+                return NotePad.NoteRevisions.CONTENT_TYPE;
+
+            // If the pattern is for a single revision
+            case NOTE_REVISION_ID:
+                return NotePad.NoteRevisions.CONTENT_ITEM_TYPE;
+
+            // If the pattern is for the import checkpoints
+            case IMPORT_CHECKPOINTS:
+                return NotePad.ImportCheckpoints.CONTENT_TYPE;
+
+            // If the pattern is for the maintenance stats
+            case MAINTENANCE:
+                return NotePad.Maintenance.CONTENT_ITEM_TYPE;
+
+            // If the pattern is for the trash
+            case TRASH:
+                return NotePad.Trash.CONTENT_TYPE;
+
+            // If the pattern is for a single note in the trash
+            case TRASH_ID:
+                return NotePad.Trash.CONTENT_ITEM_TYPE;
+
+            // If the pattern is for the number of notes, or of notes in the trash
+            case NOTES_COUNT:
+            case TRASH_COUNT:
+                return NotePad.Notes.COUNT_ITEM_TYPE;
+
+            // If the pattern is for the number of notes in each category
+            case NOTES_COUNT_BY_CATEGORY:
+                return NotePad.Notes.COUNT_TYPE;
+
+            // If the pattern is for the counts of each category
+            case CATEGORY_STATS:
+                return NotePad.CategoryStats.CONTENT_TYPE;
+
+            // If the URI pattern doesn't match any permitted patterns, throws an exception.
+            default:
+                throw new IllegalArgumentException("Unknown URI " + uri);
+        }
+    }
+
+//BEGIN_INCLUDE(stream)
+    /**
+     * This describes the MIME types that are supported for opening a note
+     * URI as a stream.
+     */
+    static ClipDescription NOTE_STREAM_TYPES = new ClipDescription(null,
             new String[] { ClipDescription.MIMETYPE_TEXT_PLAIN });
 
+    /**
+     * The MIME types the notes URI can be opened as: an export of every note.
+     */
+    static ClipDescription NOTES_STREAM_TYPES = new ClipDescription(null,
+            new String[] { NotePad.Notes.EXPORT_MIME_TYPE });
+
     /**
      * Returns the types of available data streams.  URIs to specific notes are supported.
-     * The application can convert such a note to a plain text stream.
+     * The application can convert such a note to a plain text stream. The notes URI can be
+     * exported as {@link NotePad.Notes#EXPORT_MIME_TYPE}.
      *
      * @param uri the URI to analyze
      * @param mimeTypeFilter The MIME type to check for. This method only returns a data stream
-     * type for MIME types that match the filter. Currently, only text/plain MIME types match.
-     * @return a data stream MIME type. Currently, only text/plan is returned.
+     * type for MIME types that match the filter.
+     * @return a data stream MIME type: text/plain for a note, or the export type for the notes.
      * @throws IllegalArgumentException if the URI pattern doesn't match any supported patterns.
      */
     @Override
@@ -499,12 +1452,27 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
          */
         switch (sUriMatcher.match(uri)) {
 
-            // If the pattern is for notes or live folders, return null. Data streams are not
-            // supported for this type of URI.
+            // If the pattern is for all the notes, returns the export type
             case NOTES:
+                return NOTES_STREAM_TYPES.filterMimeTypes(mimeTypeFilter);
+
+            // If the pattern is for other lists, return null. Data streams are not
+            // supported for this type of URI.
+            case NOTES_SEARCH:
+            case NOTES_WITH_CATEGORY:
             case LIVE_FOLDER_NOTES:
             case CATEGORIES:
             case CATEGORY_ID:
+            case NOTE_REVISIONS:
+            case NOTE_REVISION_ID:
+            case IMPORT_CHECKPOINTS:
+            case MAINTENANCE:
+            case TRASH:
+            case TRASH_ID:
+            case NOTES_COUNT:
+            case NOTES_COUNT_BY_CATEGORY:
+            case CATEGORY_STATS:
+            case TRASH_COUNT:
                 return null;
 
             // If the pattern is for note IDs and the MIME filter is text/plain, then return
@@ -540,6 +1508,13 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         // Checks to see if the MIME type filter matches a supported MIME type.
         String[] mimeTypes = getStreamTypes(uri, mimeTypeFilter);
 
+        // The export of all the notes reads them itself, a page at a time.
+        if (mimeTypes != null && sUriMatcher.match(uri) == NOTES) {
+            return new AssetFileDescriptor(
+                    openPipeHelper(uri, mimeTypes[0], opts, null, mExportWriter), 0,
+                    AssetFileDescriptor.UNKNOWN_LENGTH);
+        }
+
         // If the MIME type is supported
         if (mimeTypes != null) {
 
@@ -594,146 +1569,657 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             pw = new PrintWriter(new OutputStreamWriter(fout, "UTF-8"));
             pw.println(c.getString(READ_NOTE_TITLE_INDEX));
             pw.println("");
-            pw.println(c.getString(READ_NOTE_NOTE_INDEX));
-        } catch (UnsupportedEncodingException e) {
+
+            // The body can be far larger than a cursor window, so it is never read into a
+            // String. Its bytes are copied a chunk at a time from openFile().
+            pw.flush();
+            copyBody(uri, fout);
+            pw.println();
+        } catch (IOException e) {
             Log.w(TAG, "Ooops", e);
         } finally {
             c.close();
-            if (pw != null) {
-                pw.flush();
-            }
-            try {
-                fout.close();
-            } catch (IOException e) {
-            }
+            if (pw != null) {
+                pw.flush();
+            }
+            try {
+                fout.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+//END_INCLUDE(stream)
+
+    /**
+     * Opens the body of a note for reading, as UTF-8 text. This is what
+     * {@link android.content.ContentResolver#openInputStream(Uri)} returns for a note URI. A
+     * body stored in a file is opened directly. A body in the row is written into a pipe
+     * {@link #STREAM_CHUNK_LENGTH} characters at a time with substr(), so neither the whole
+     * body nor a copy of it is held in memory, and even a body from before out-of-row storage
+     * that is larger than a cursor window can be read. Each chunk is a query of its own, so a note saved while it is being
+     * read can come out as a mix of the old and the new text.
+     *
+     * @throws FileNotFoundException if the URI isn't a note URI, the mode isn't "r", or the
+     * note doesn't exist.
+     */
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        mReadLock.lock();
+        try {
+            return openFileLocked(uri, mode);
+        } finally {
+            mReadLock.unlock();
+        }
+    }
+
+    private ParcelFileDescriptor openFileLocked(Uri uri, String mode)
+            throws FileNotFoundException {
+        if (sUriMatcher.match(uri) == NOTE_REVISION_ID && "r".equals(mode)) {
+            return openRevisionFile(uri);
+        }
+        if (sUriMatcher.match(uri) != NOTE_ID || !"r".equals(mode)) {
+            return super.openFile(uri, mode);
+        }
+
+        String noteId = uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION);
+        Cursor c = mOpenHelper.getReadableDatabase().query(NotePad.Notes.TABLE_NAME,
+                new String[] { COLUMN_NAME_NOTE_FILE },
+                NotePad.Notes._ID + " = ?", new String[] { noteId }, null, null, null);
+        try {
+            if (!c.moveToFirst()) {
+                throw new FileNotFoundException("No note at " + uri);
+            }
+            if (!c.isNull(0)) {
+                return openBodyFile(uri, c.getString(0));
+            }
+        } finally {
+            c.close();
+        }
+
+        return openPipeHelper(uri, NOTE_STREAM_TYPES.getMimeType(0), null, noteId,
+                mRowBodyWriter);
+    }
+
+    /**
+     * Opens the text of a revision that is stored in a body file. A revision whose text is in
+     * its row is read from the cursor instead.
+     *
+     * @throws FileNotFoundException if the revision doesn't exist or isn't in a file.
+     */
+    private ParcelFileDescriptor openRevisionFile(Uri uri) throws FileNotFoundException {
+        String name;
+        try {
+            name = DatabaseUtils.stringForQuery(mOpenHelper.getReadableDatabase(),
+                    "SELECT " + COLUMN_NAME_NOTE_FILE + " FROM " + NotePad.NoteRevisions.TABLE_NAME
+                            + " WHERE " + NotePad.NoteRevisions._ID + " = ? AND "
+                            + NotePad.NoteRevisions.COLUMN_NAME_NOTE_ID + " = ?",
+                    new String[] {
+                            uri.getPathSegments().get(NotePad.NoteRevisions.REVISION_ID_PATH_POSITION),
+                            uri.getPathSegments().get(NotePad.NoteRevisions.NOTE_ID_PATH_POSITION) });
+        } catch (SQLiteDoneException e) {
+            throw new FileNotFoundException("No revision at " + uri);
+        }
+        if (name == null) {
+            throw new FileNotFoundException("Revision " + uri + " isn't stored in a file");
+        }
+        return openBodyFile(uri, name);
+    }
+
+    /**
+     * Opens a body file for reading.
+     */
+    private ParcelFileDescriptor openBodyFile(Uri uri, String name) throws FileNotFoundException {
+        return ParcelFileDescriptor.open(mBodyStore.getFile(name),
+                ParcelFileDescriptor.MODE_READ_ONLY);
+    }
+
+    /**
+     * Copies the body of a note to a stream in chunks of {@link #STREAM_CHUNK_BYTES}, so the
+     * memory used doesn't grow with the size of the note.
+     */
+    private void copyBody(Uri uri, OutputStream out) throws IOException {
+        InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(openFile(uri, "r"));
+        try {
+            copy(in, out);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[STREAM_CHUNK_BYTES];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+    }
+
+    /**
+     * This is called when a client calls
+     * {@link android.content.ContentResolver#insert(Uri, ContentValues)}.
+     * Inserts a new row into the database. This method sets up default values for any
+     * columns that are not included in the incoming map.
+     * If rows were inserted, then listeners are notified of the change.
+     * @return The row ID of the inserted row.
+     * @throws SQLException if the insertion fails.
+     */
+    @Override
+    public Uri insert(Uri uri, ContentValues initialValues) {
+        mReadLock.lock();
+        try {
+            return insertLocked(uri, initialValues);
+        } finally {
+            mReadLock.unlock();
+        }
+    }
+
+    private Uri insertLocked(Uri uri, ContentValues initialValues) {
+
+        ContentValues values;
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        long rowId;
+        Uri resultUri;
+
+        switch (sUriMatcher.match(uri)) {
+            case NOTES:
+                // Validates the incoming URI. Only the full provider URI is allowed for inserts.
+                if (sUriMatcher.match(uri) != NOTES) {
+                    throw new IllegalArgumentException("Unknown URI " + uri);
+                }
+
+                // Fills in defaults for any columns the caller didn't supply.
+                values = noteValuesForInsert(initialValues);
+
+                // A large body is written to its file in the same transaction as the row.
+                db.beginTransactionNonExclusive();
+                try {
+                    putNoteBody(values, mBodyStore);
+
+                    // Performs the insert and returns the ID of the new note.
+                    rowId = db.insert(
+                            NotePad.Notes.TABLE_NAME,        // The table to insert into.
+                            NotePad.Notes.COLUMN_NAME_NOTE,  // A hack, SQLite sets this column value to null
+                            // if values is empty.
+                            values                           // A map of column names, and the values to insert
+                            // into the columns.
+                    );
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+
+                // If the insert succeeded, the row ID exists.
+                if (rowId > 0) {
+                    // Creates a URI with the note ID pattern and the new row ID appended to it.
+                    resultUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, rowId);
+
+                    // Notifies observers registered against this provider that the data changed.
+                    notifyChange(resultUri);
+                    return resultUri;
+                }
+
+                // If the insert didn't succeed, then the rowID is <= 0. Throws an exception.
+                throw new SQLException("Failed to insert row into " + uri);
+
+            case CATEGORIES:
+                // Insert into categories table
+                values = categoryValuesForInsert(initialValues);
+
+                rowId = db.insert(
+                        NotePad.Categories.TABLE_NAME,
+                        null,
+                        values
+                );
+
+                if (rowId > 0) {
+                    resultUri = ContentUris.withAppendedId(NotePad.Categories.CONTENT_URI, rowId);
+                    notifyChange(resultUri);
+                    return resultUri;
+                }
+
+                throw new SQLException("Failed to insert row into " + uri);
+
+            // An import records its position. A newer position for the same source replaces
+            // the older one.
+            case IMPORT_CHECKPOINTS:
+                if (initialValues == null || !initialValues.containsKey(
+                        NotePad.ImportCheckpoints.COLUMN_NAME_SOURCE)) {
+                    throw new IllegalArgumentException("Import source must be provided");
+                }
+                rowId = db.insertWithOnConflict(NotePad.ImportCheckpoints.TABLE_NAME, null,
+                        initialValues, SQLiteDatabase.CONFLICT_REPLACE);
+                if (rowId > 0) {
+                    return ContentUris.withAppendedId(NotePad.ImportCheckpoints.CONTENT_URI, rowId);
+                }
+
+                throw new SQLException("Failed to insert row into " + uri);
+
+            default:
+                throw new IllegalArgumentException("Unknown URI " + uri);
+        }
+    }
+
+    /**
+     * Copies the values for a new note and sets up default values for any columns that are not
+     * included in the incoming map. Shared by {@link #insert(Uri, ContentValues)} and
+     * {@link #bulkInsert(Uri, ContentValues[])}.
+     */
+    private static ContentValues noteValuesForInsert(ContentValues initialValues) {
+        // A map to hold the new record's values.
+        ContentValues values;
+
+        // If the incoming values map is not null, uses it for the new values.
+        if (initialValues != null) {
+            values = new ContentValues(initialValues);
+        } else {
+            // Otherwise, create a new value map
+            values = new ContentValues();
+        }
+
+        // Gets the current system time in milliseconds
+        Long now = Long.valueOf(System.currentTimeMillis());
+
+        // If the values map doesn't contain the creation date, sets the value to the current time.
+        if (values.containsKey(NotePad.Notes.COLUMN_NAME_CREATE_DATE) == false) {
+            values.put(NotePad.Notes.COLUMN_NAME_CREATE_DATE, now);
+        }
+
+        // If the values map doesn't contain the modification date, sets the value to the current
+        // time.
+        if (values.containsKey(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE) == false) {
+            values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, now);
+        }
+
+        // If the values map doesn't contain a title, sets the value to the default title.
+        if (values.containsKey(NotePad.Notes.COLUMN_NAME_TITLE) == false) {
+            Resources r = Resources.getSystem();
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, r.getString(android.R.string.untitled));
+        }
+
+        // If the values map doesn't contain note text, sets the value to an empty string.
+        if (values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE) == false) {
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, "");
+        }
+
+        // If the values map doesn't contain category ID, sets to default category (1)
+        if (values.containsKey(NotePad.Notes.COLUMN_NAME_CATEGORY_ID) == false) {
+            values.put(NotePad.Notes.COLUMN_NAME_CATEGORY_ID, 1);
+        }
+
+        putPreview(values);
+
+        return values;
+    }
+
+    /**
+     * Returns the precompiled statements for the given database, compiling them on first use.
+     */
+    private synchronized NoteStatements getStatements(SQLiteDatabase db) {
+        if (mStatements == null || !mStatements.isFor(db)) {
+            mStatements = new NoteStatements(db);
+        }
+        return mStatements;
+    }
+
+    /**
+     * Returns true if an update selects the notes of one category, the way CategoryManager
+     * does when it deletes a category.
+     */
+    private static boolean isCategorySelection(String where, String[] whereArgs) {
+        if (where == null || whereArgs == null || whereArgs.length != 1
+                || whereArgs[0].isEmpty() || !TextUtils.isDigitsOnly(whereArgs[0])) {
+            return false;
+        }
+        return where.replace(" ", "").equals(NotePad.Notes.COLUMN_NAME_CATEGORY_ID + "=?");
+    }
+
+    /**
+     * Returns an SQL expression for the preview of the given note column, with the same rule
+     * as {@link #putPreview(ContentValues)}. SQLite counts characters, not bytes, the same way
+     * putPreview() counts code points.
+     */
+    static String previewExpression(String noteColumn) {
+        return "CASE WHEN length(" + noteColumn + ") > " + PREVIEW_LENGTH
+                + " THEN substr(" + noteColumn + ", 1, " + PREVIEW_LENGTH + ") || '...'"
+                + " ELSE " + noteColumn + " END";
+    }
+
+    /**
+     * Sets the preview column from the note text, if the values change the note text. The
+     * preview is the first PREVIEW_LENGTH characters of the note, followed by "..." if the note
+     * is longer.
+     */
+    private static void putPreview(ContentValues values) {
+        if (values == null || !values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE)) {
+            return;
+        }
+
+        String note = values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE);
+        String preview = note;
+        if (note != null && note.codePointCount(0, note.length()) > PREVIEW_LENGTH) {
+            preview = note.substring(0, note.offsetByCodePoints(0, PREVIEW_LENGTH)) + "...";
+        }
+        values.put(NotePad.Notes.COLUMN_NAME_PREVIEW, preview);
+    }
+
+    /**
+     * Moves a note body longer than {@link #EXTERNAL_BODY_LENGTH} out of the values into a
+     * file, and keeps its start in the note column. Sets the file column whenever the values
+     * change the note, and removes any file name the caller supplied. Must be called inside
+     * the transaction that writes the values, so the file can't be released before the row
+     * refers to it.
+     *
+     * @param bodies The store the file is written to.
+     * @throws SQLException if the body can't be written.
+     */
+    static void putNoteBody(ContentValues values, NoteBodyStore bodies) {
+        if (values == null) {
+            return;
+        }
+        values.remove(COLUMN_NAME_NOTE_FILE);
+        if (!values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE)) {
+            return;
+        }
+
+        String note = values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE);
+        if (note == null || note.length() <= EXTERNAL_BODY_LENGTH) {
+            values.putNull(COLUMN_NAME_NOTE_FILE);
+            return;
+        }
+
+        try {
+            values.put(COLUMN_NAME_NOTE_FILE, bodies.write(note));
+        } catch (IOException e) {
+            throw new SQLException("Failed to store a note body: " + e.getMessage());
+        }
+
+        // Doesn't split a surrogate pair
+        int headLength = EXTERNAL_BODY_LENGTH;
+        if (Character.isHighSurrogate(note.charAt(headLength - 1))) {
+            headLength--;
+        }
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, note.substring(0, headLength));
+    }
+
+    /**
+     * Returns the body files of the notes a write is about to replace or delete. A delete
+     * also takes the revisions of the notes, so their files are returned as well.
+     *
+     * @param values The values of an update, which only replaces the bodies if it changes the
+     * note, or null for a delete.
+     */
+    private static List<String> findBodies(SQLiteDatabase db, ContentValues values,
+            String where, String[] whereArgs) {
+        List<String> names = new ArrayList<String>();
+        if (values != null && !values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE)) {
+            return names;
+        }
+
+        Cursor c = db.query(true, NotePad.Notes.TABLE_NAME, new String[] { COLUMN_NAME_NOTE_FILE },
+                DatabaseUtils.concatenateWhere(COLUMN_NAME_NOTE_FILE + " IS NOT NULL", where),
+                whereArgs, null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                names.add(c.getString(0));
+            }
+        } finally {
+            c.close();
+        }
+        if (values == null) {
+            names.addAll(NoteHistory.findFiles(db, where, whereArgs));
+        }
+        return names;
+    }
+
+    /**
+     * Deletes the body files that no note refers to any more. Runs in a write transaction of
+     * its own, so no other write can start using a file between the check and the delete.
+     * Inside an outer transaction, which could still be rolled back, the files are left for
+     * the sweep when the provider next starts.
+     */
+    private void releaseBodies(SQLiteDatabase db, List<String> names) {
+        if (names == null || names.isEmpty() || db.inTransaction()) {
+            return;
+        }
+
+        db.beginTransactionNonExclusive();
+        try {
+            deleteUnreferenced(db, names);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Deletes, on a background thread, the body files no note refers to. These are left behind
+     * when a batch that replaced or deleted notes is rolled back or the process dies before
+     * the files are released.
+     */
+    private void startBodySweep() {
+        startWorker(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                mReadLock.lock();
+                try {
+                    SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+                    db.beginTransactionNonExclusive();
+                    try {
+                        deleteUnreferenced(db, Arrays.asList(mBodyStore.list()));
+                        db.setTransactionSuccessful();
+                    } finally {
+                        db.endTransaction();
+                    }
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Body sweep stopped", e);
+                } finally {
+                    mReadLock.unlock();
+                }
+            }
+        }, "NotePadBodySweep");
+    }
+
+    /**
+     * Deletes the given body files that no note or revision refers to. Called inside a write
+     * transaction.
+     */
+    private void deleteUnreferenced(SQLiteDatabase db, List<String> names) {
+        // A backup copies the files its snapshot refers to after letting go of the write lock,
+        // so they have to stay until it is done. The sweep deletes them the next time.
+        if (mBackupsRunning.get() > 0) {
+            return;
+        }
+        for (String name : names) {
+            if (DatabaseUtils.queryNumEntries(db, NotePad.Notes.TABLE_NAME,
+                    COLUMN_NAME_NOTE_FILE + " = ?", new String[] { name }) == 0
+                    && !NoteHistory.refersTo(db, name)) {
+                mBodyStore.delete(name);
+            }
+        }
+    }
+
+    /**
+     * Sets the modification date of an update of notes to now. Moving notes to the trash or
+     * back doesn't change them, so it keeps their place in the list.
+     */
+    private static void putModificationDate(ContentValues values) {
+        if (values == null || (values.size() == 1
+                && values.containsKey(NotePad.Notes.COLUMN_NAME_DELETED_AT))) {
+            return;
+        }
+        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, System.currentTimeMillis());
+    }
+
+    /**
+     * Deletes for good the notes that have been in the trash longer than
+     * {@link NotePad.Trash#RETENTION_MILLIS}, {@link #TRASH_PURGE_BATCH} at a time, so each
+     * transaction stays short.
+     *
+     * @return The number of notes deleted.
+     */
+    int purgeTrash() {
+        String where = NotePad.Notes._ID + " IN (SELECT " + NotePad.Notes._ID
+                + " FROM " + NotePad.Notes.TABLE_NAME
+                + " WHERE " + NotePad.Notes.COLUMN_NAME_DELETED_AT + " < ?"
+                + " LIMIT " + TRASH_PURGE_BATCH + ")";
+        String[] whereArgs = {
+                String.valueOf(System.currentTimeMillis() - NotePad.Trash.RETENTION_MILLIS) };
+        int total = 0;
+        int count;
+        do {
+            count = delete(NotePad.Trash.CONTENT_URI, where, whereArgs);
+            total += count;
+        } while (count == TRASH_PURGE_BATCH);
+        if (total > 0) {
+            Log.i(TAG, "Purged " + total + " notes from the trash");
+        }
+        return total;
+    }
+
+    /**
+     * Returns the names of all the body files that a note or a revision refers to.
+     */
+    static List<String> findAllBodies(SQLiteDatabase db) {
+        List<String> names = new ArrayList<String>();
+        Cursor c = db.rawQuery("SELECT " + COLUMN_NAME_NOTE_FILE
+                + " FROM " + NotePad.Notes.TABLE_NAME
+                + " WHERE " + COLUMN_NAME_NOTE_FILE + " IS NOT NULL"
+                + " UNION SELECT " + COLUMN_NAME_NOTE_FILE
+                + " FROM " + NotePad.NoteRevisions.TABLE_NAME
+                + " WHERE " + COLUMN_NAME_NOTE_FILE + " IS NOT NULL", null);
+        try {
+            while (c.moveToNext()) {
+                names.add(c.getString(0));
+            }
+        } finally {
+            c.close();
         }
+        return names;
     }
-//END_INCLUDE(stream)
 
     /**
-     * This is called when a client calls
-     * {@link android.content.ContentResolver#insert(Uri, ContentValues)}.
-     * Inserts a new row into the database. This method sets up default values for any
-     * columns that are not included in the incoming map.
-     * If rows were inserted, then listeners are notified of the change.
-     * @return The row ID of the inserted row.
-     * @throws SQLException if the insertion fails.
+     * Copies the values for a new category and sets up default values for any columns that are
+     * not included in the incoming map.
+     *
+     * @throws IllegalArgumentException if the category name is missing.
      */
-    @Override
-    public Uri insert(Uri uri, ContentValues initialValues) {
-
-        ContentValues values;
-        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-        long rowId;
-        Uri resultUri;
-
-        switch (sUriMatcher.match(uri)) {
-            case NOTES:
-                // Validates the incoming URI. Only the full provider URI is allowed for inserts.
-                if (sUriMatcher.match(uri) != NOTES) {
-                    throw new IllegalArgumentException("Unknown URI " + uri);
-                }
-
-                // A map to hold the new record's values.
-                values = new ContentValues();
-
-                // If the incoming values map is not null, uses it for the new values.
-                if (initialValues != null) {
-                    values = new ContentValues(initialValues);
-                } else {
-                    // Otherwise, create a new value map
-                    values = new ContentValues();
-                }
+    private static ContentValues categoryValuesForInsert(ContentValues initialValues) {
+        ContentValues values = initialValues != null ? new ContentValues(initialValues) : new ContentValues();
 
-                // Gets the current system time in milliseconds
-                Long now = Long.valueOf(System.currentTimeMillis());
+        // Set creation date if not provided
+        if (!values.containsKey(NotePad.Categories.COLUMN_NAME_CREATE_DATE)) {
+            values.put(NotePad.Categories.COLUMN_NAME_CREATE_DATE, System.currentTimeMillis());
+        }
 
-                // If the values map doesn't contain the creation date, sets the value to the current time.
-                if (values.containsKey(NotePad.Notes.COLUMN_NAME_CREATE_DATE) == false) {
-                    values.put(NotePad.Notes.COLUMN_NAME_CREATE_DATE, now);
-                }
+        // Ensure category name is provided
+        if (!values.containsKey(NotePad.Categories.COLUMN_NAME_CATEGORY_NAME)) {
+            throw new IllegalArgumentException("Category name must be provided");
+        }
 
-                // If the values map doesn't contain the modification date, sets the value to the current
-                // time.
-                if (values.containsKey(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE) == false) {
-                    values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, now);
-                }
+        // Set default color if not provided
+        if (!values.containsKey(NotePad.Categories.COLUMN_NAME_CATEGORY_COLOR)) {
+            values.put(NotePad.Categories.COLUMN_NAME_CATEGORY_COLOR,
+                    NotePad.Categories.DEFAULT_CATEGORY_COLOR);
+        }
 
-                // If the values map doesn't contain a title, sets the value to the default title.
-                if (values.containsKey(NotePad.Notes.COLUMN_NAME_TITLE) == false) {
-                    Resources r = Resources.getSystem();
-                    values.put(NotePad.Notes.COLUMN_NAME_TITLE, r.getString(android.R.string.untitled));
-                }
+        return values;
+    }
 
-                // If the values map doesn't contain note text, sets the value to an empty string.
-                if (values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE) == false) {
-                    values.put(NotePad.Notes.COLUMN_NAME_NOTE, "");
-                }
+    /**
+     * This is called when a client calls
+     * {@link android.content.ContentResolver#bulkInsert(Uri, ContentValues[])}.
+     * Inserts all the rows in a single transaction, filling in defaults the same way
+     * {@link #insert(Uri, ContentValues)} does. Rows with the same set of columns share one
+     * compiled statement. Listeners are notified once, after the transaction commits.
+     *
+     * @return The number of rows inserted.
+     * @throws SQLException if any insertion fails. No rows are inserted in that case.
+     * @throws IllegalArgumentException if the incoming URI pattern is invalid.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] initialValues) {
+        mReadLock.lock();
+        try {
+            return bulkInsertLocked(uri, initialValues);
+        } finally {
+            mReadLock.unlock();
+        }
+    }
 
-                // If the values map doesn't contain category ID, sets to default category (1)
-                if (values.containsKey(NotePad.Notes.COLUMN_NAME_CATEGORY_ID) == false) {
-                    values.put(NotePad.Notes.COLUMN_NAME_CATEGORY_ID, 1);
-                }
+    private int bulkInsertLocked(Uri uri, ContentValues[] initialValues) {
 
-                // Performs the insert and returns the ID of the new note.
-                rowId = db.insert(
-                        NotePad.Notes.TABLE_NAME,        // The table to insert into.
-                        NotePad.Notes.COLUMN_NAME_NOTE,  // A hack, SQLite sets this column value to null
-                        // if values is empty.
-                        values                           // A map of column names, and the values to insert
-                        // into the columns.
-                );
+        String table;
+        int match = sUriMatcher.match(uri);
+        switch (match) {
+            case NOTES:
+                table = NotePad.Notes.TABLE_NAME;
+                break;
 
-                // If the insert succeeded, the row ID exists.
-                if (rowId > 0) {
-                    // Creates a URI with the note ID pattern and the new row ID appended to it.
-                    resultUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, rowId);
+            case CATEGORIES:
+                table = NotePad.Categories.TABLE_NAME;
+                break;
 
-                    // Notifies observers registered against this provider that the data changed.
-                    getContext().getContentResolver().notifyChange(resultUri, null);
-                    return resultUri;
-                }
+            default:
+                throw new IllegalArgumentException("Unknown URI " + uri);
+        }
 
-                // If the insert didn't succeed, then the rowID is <= 0. Throws an exception.
-                throw new SQLException("Failed to insert row into " + uri);
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
 
-            case CATEGORIES:
-                // Insert into categories table
-                values = initialValues != null ? new ContentValues(initialValues) : new ContentValues();
+        // Compiled INSERT statements, keyed by their sorted, comma-separated column names
+        HashMap<String, SQLiteStatement> statements = new HashMap<String, SQLiteStatement>();
+        int count = 0;
 
-                // Set creation date if not provided
-                if (!values.containsKey(NotePad.Categories.COLUMN_NAME_CREATE_DATE)) {
-                    values.put(NotePad.Categories.COLUMN_NAME_CREATE_DATE, System.currentTimeMillis());
+        db.beginTransactionNonExclusive();
+        try {
+            for (ContentValues rowValues : initialValues) {
+                ContentValues values;
+                if (match == NOTES) {
+                    values = noteValuesForInsert(rowValues);
+                    putNoteBody(values, mBodyStore);
+                } else {
+                    values = categoryValuesForInsert(rowValues);
                 }
 
-                // Ensure category name is provided
-                if (!values.containsKey(NotePad.Categories.COLUMN_NAME_CATEGORY_NAME)) {
-                    throw new IllegalArgumentException("Category name must be provided");
+                TreeSet<String> columns = new TreeSet<String>(values.keySet());
+                String key = TextUtils.join(",", columns);
+                SQLiteStatement statement = statements.get(key);
+                if (statement == null) {
+                    StringBuilder sql = new StringBuilder();
+                    sql.append("INSERT INTO ").append(table).append(" (").append(key)
+                            .append(") VALUES (");
+                    for (int i = 0; i < columns.size(); i++) {
+                        sql.append(i == 0 ? "?" : ",?");
+                    }
+                    sql.append(")");
+                    statement = db.compileStatement(sql.toString());
+                    statements.put(key, statement);
                 }
 
-                // Set default color if not provided
-                if (!values.containsKey(NotePad.Categories.COLUMN_NAME_CATEGORY_COLOR)) {
-                    values.put(NotePad.Categories.COLUMN_NAME_CATEGORY_COLOR,
-                            NotePad.Categories.DEFAULT_CATEGORY_COLOR);
+                statement.clearBindings();
+                int index = 1;
+                for (String column : columns) {
+                    DatabaseUtils.bindObjectToProgram(statement, index++, values.get(column));
                 }
 
-                rowId = db.insert(
-                        NotePad.Categories.TABLE_NAME,
-                        null,
-                        values
-                );
-
-                if (rowId > 0) {
-                    resultUri = ContentUris.withAppendedId(NotePad.Categories.CONTENT_URI, rowId);
-                    getContext().getContentResolver().notifyChange(resultUri, null);
-                    return resultUri;
+                if (statement.executeInsert() <= 0) {
+                    throw new SQLException("Failed to insert row into " + uri);
                 }
+                count++;
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            for (SQLiteStatement statement : statements.values()) {
+                statement.close();
+            }
+        }
 
-                throw new SQLException("Failed to insert row into " + uri);
-
-            default:
-                throw new IllegalArgumentException("Unknown URI " + uri);
+        // Notifies observers once for the whole batch.
+        if (count > 0) {
+            notifyChange(uri);
         }
+        return count;
     }
 
     /**
@@ -751,18 +2237,31 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
      */
     @Override
     public int delete(Uri uri, String where, String[] whereArgs) {
+        mReadLock.lock();
+        try {
+            return deleteLocked(uri, where, whereArgs);
+        } finally {
+            mReadLock.unlock();
+        }
+    }
+
+    private int deleteLocked(Uri uri, String where, String[] whereArgs) {
 
         // Opens the database object in "write" mode.
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         String finalWhere;
         int count;
 
+        // The body files referred to by the deleted notes
+        List<String> oldBodies = null;
+
         // Does the delete based on the incoming URI pattern.
         switch (sUriMatcher.match(uri)) {
 
             // If the incoming pattern matches the general pattern for notes, does a delete
             // based on the incoming "where" columns and arguments.
             case NOTES:
+                oldBodies = findBodies(db, null, where, whereArgs);
                 count = db.delete(
                         NotePad.Notes.TABLE_NAME,  // The database table name
                         where,                     // The incoming where clause column names
@@ -792,6 +2291,7 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                 }
 
                 // Performs the delete.
+                oldBodies = findBodies(db, null, finalWhere, whereArgs);
                 count = db.delete(
                         NotePad.Notes.TABLE_NAME,  // The database table name.
                         finalWhere,                // The final WHERE clause
@@ -834,6 +2334,26 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                 );
                 break;
 
+            // An import is done, or is given up
+            case IMPORT_CHECKPOINTS:
+                count = db.delete(NotePad.ImportCheckpoints.TABLE_NAME, where, whereArgs);
+                break;
+
+            // Empties the trash, or removes some notes from it, for good. Notes that aren't in
+            // the trash are left alone.
+            case TRASH:
+            case TRASH_ID:
+                finalWhere = TRASH_WHERE;
+                if (sUriMatcher.match(uri) == TRASH_ID) {
+                    finalWhere = finalWhere + " AND " + NotePad.Notes._ID + " = "
+                            + uri.getPathSegments().get(NotePad.Trash.NOTE_ID_PATH_POSITION);
+                }
+                finalWhere = DatabaseUtils.concatenateWhere(finalWhere, where);
+
+                oldBodies = findBodies(db, null, finalWhere, whereArgs);
+                count = db.delete(NotePad.Notes.TABLE_NAME, finalWhere, whereArgs);
+                break;
+
             // If the incoming pattern is invalid, throws an exception.
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
@@ -843,7 +2363,16 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
          * that the incoming URI changed. The object passes this along to the resolver framework,
          * and observers that have registered themselves for the provider are notified.
          */
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
+
+        // Lists of notes show their category, so they are refreshed as well. The trash is a
+        // view of the notes, so their listeners hear about it too.
+        int match = sUriMatcher.match(uri);
+        if (match == CATEGORIES || match == CATEGORY_ID || match == TRASH || match == TRASH_ID) {
+            notifyChange(NotePad.Notes.CONTENT_URI);
+        }
+
+        releaseBodies(db, oldBodies);
 
         // Returns the number of rows deleted.
         return count;
@@ -871,31 +2400,68 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
      */
     @Override
     public int update(Uri uri, ContentValues values, String where, String[] whereArgs) {
+        mReadLock.lock();
+        try {
+            return updateLocked(uri, values, where, whereArgs);
+        } finally {
+            mReadLock.unlock();
+        }
+    }
+
+    private int updateLocked(Uri uri, ContentValues values, String where, String[] whereArgs) {
 
         // Opens the database object in "write" mode.
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         int count;
         String finalWhere;
 
+        // The body files referred to by the notes before the update, and by the revisions
+        // dropped to make room for new ones
+        List<String> oldBodies = null;
+
         // Does the update based on the incoming URI pattern
-        switch (sUriMatcher.match(uri)) {
+        int match = sUriMatcher.match(uri);
+        switch (match) {
 
             // If the incoming URI matches the general notes pattern, does the update based on
             // the incoming data.
             case NOTES:
 
                 // Always update modification date for notes
-                if (values != null) {
-                    values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, System.currentTimeMillis());
+                putModificationDate(values);
+
+                // Keeps the preview in step with the note text
+                putPreview(values);
+
+                // A large body is written to its file in the same transaction as the rows. The
+                // files of the bodies it replaces are released afterwards.
+                db.beginTransactionNonExclusive();
+                try {
+                    oldBodies = findBodies(db, values, where, whereArgs);
+                    putNoteBody(values, mBodyStore);
+
+                    // The text each note had before is kept as a revision.
+                    oldBodies.addAll(NoteHistory.record(db, values, where, whereArgs));
+
+                    // Moving the notes of a category to another category uses a precompiled
+                    // statement. Any other update is built from the values.
+                    if (NoteStatements.hasColumns(values, NoteStatements.CATEGORY_UPDATE_COLUMNS)
+                            && isCategorySelection(where, whereArgs)) {
+                        count = getStatements(db).reassignCategory(Long.parseLong(whereArgs[0]),
+                                values);
+                    } else {
+                        // Does the update and returns the number of rows updated.
+                        count = db.update(
+                                NotePad.Notes.TABLE_NAME, // The database table name.
+                                values,                   // A map of column names and new values to use.
+                                where,                    // The where clause column names.
+                                whereArgs                 // The where clause column values to select on.
+                        );
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
                 }
-
-                // Does the update and returns the number of rows updated.
-                count = db.update(
-                        NotePad.Notes.TABLE_NAME, // The database table name.
-                        values,                   // A map of column names and new values to use.
-                        where,                    // The where clause column names.
-                        whereArgs                 // The where clause column values to select on.
-                );
                 break;
 
             // If the incoming URI matches a single note ID, does the update based on the incoming
@@ -922,19 +2488,44 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                 }
 
                 // Always update modification date for notes
-                if (values != null) {
-                    values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, System.currentTimeMillis());
+                putModificationDate(values);
+
+                // Keeps the preview in step with the note text
+                putPreview(values);
+
+                // A large body is written to its file in the same transaction as the row. The
+                // file of the body it replaces is released afterwards.
+                db.beginTransactionNonExclusive();
+                try {
+                    oldBodies = findBodies(db, values, finalWhere, whereArgs);
+                    putNoteBody(values, mBodyStore);
+
+                    // The text the note had before is kept as a revision.
+                    oldBodies.addAll(NoteHistory.record(db, values, finalWhere, whereArgs));
+
+                    // The editor's saves use precompiled statements. Any other update is built
+                    // from the values.
+                    if (where == null
+                            && NoteStatements.hasColumns(values, NoteStatements.NOTE_UPDATE_COLUMNS)) {
+                        count = getStatements(db).updateNote(Long.parseLong(noteId), values);
+                    } else if (where == null
+                            && NoteStatements.hasColumns(values, NoteStatements.TODO_UPDATE_COLUMNS)) {
+                        count = getStatements(db).updateTodo(Long.parseLong(noteId), values);
+                    } else {
+                        // Does the update and returns the number of rows updated.
+                        count = db.update(
+                                NotePad.Notes.TABLE_NAME, // The database table name.
+                                values,                   // A map of column names and new values to use.
+                                finalWhere,               // The final WHERE clause to use
+                                // placeholders for whereArgs
+                                whereArgs                 // The where clause column values to select on, or
+                                // null if the values are in the where argument.
+                        );
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
                 }
-
-                // Does the update and returns the number of rows updated.
-                count = db.update(
-                        NotePad.Notes.TABLE_NAME, // The database table name.
-                        values,                   // A map of column names and new values to use.
-                        finalWhere,               // The final WHERE clause to use
-                        // placeholders for whereArgs
-                        whereArgs                 // The where clause column values to select on, or
-                        // null if the values are in the where argument.
-                );
                 break;
 
             // Update categories
@@ -971,6 +2562,26 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                 );
                 break;
 
+            // Puts notes back from the trash. That is the only update the trash takes, and
+            // notes that aren't in the trash are left alone.
+            case TRASH:
+            case TRASH_ID:
+                if (values == null || values.size() != 1
+                        || !values.containsKey(NotePad.Notes.COLUMN_NAME_DELETED_AT)
+                        || values.get(NotePad.Notes.COLUMN_NAME_DELETED_AT) != null) {
+                    throw new IllegalArgumentException("The trash only takes "
+                            + NotePad.Notes.COLUMN_NAME_DELETED_AT + " = null");
+                }
+                finalWhere = TRASH_WHERE;
+                if (match == TRASH_ID) {
+                    finalWhere = finalWhere + " AND " + NotePad.Notes._ID + " = "
+                            + uri.getPathSegments().get(NotePad.Trash.NOTE_ID_PATH_POSITION);
+                }
+                finalWhere = DatabaseUtils.concatenateWhere(finalWhere, where);
+
+                count = db.update(NotePad.Notes.TABLE_NAME, values, finalWhere, whereArgs);
+                break;
+
             // If the incoming pattern is invalid, throws an exception.
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
@@ -980,12 +2591,360 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
          * that the incoming URI changed. The object passes this along to the resolver framework,
          * and observers that have registered themselves for the provider are notified.
          */
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
+
+        // Lists of notes show their category, so they are refreshed as well. The notes put
+        // back from the trash appear in the lists again.
+        if (match == CATEGORIES || match == CATEGORY_ID || match == TRASH || match == TRASH_ID) {
+            notifyChange(NotePad.Notes.CONTENT_URI);
+        }
+
+        releaseBodies(db, oldBodies);
 
         // Returns the number of rows updated.
         return count;
     }
 
+    /**
+     * This is called when a client calls
+     * {@link android.content.ContentResolver#applyBatch(String, ArrayList)}.
+     * Applies all the operations in a single transaction, so the batch either succeeds as a
+     * whole or has no effect. An operation built with
+     * {@link ContentProviderOperation.Builder#withYieldAllowed(boolean)} marks a point where the
+     * transaction may be committed and restarted if other threads are waiting for the database,
+     * so that long batches don't starve readers. Listeners are notified after the batch.
+     *
+     * @throws OperationApplicationException if any operation fails.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        mReadLock.lock();
+        try {
+            return applyBatchLocked(operations);
+        } finally {
+            mReadLock.unlock();
+        }
+    }
+
+    private ContentProviderResult[] applyBatchLocked(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+
+        // Holds the batch's notifications until it is done. A nested batch reports its changes
+        // to the outermost one.
+        mNotifier.beginBatch();
+
+        ContentProviderResult[] results = new ContentProviderResult[operations.size()];
+        db.beginTransactionNonExclusive();
+        try {
+            for (int i = 0; i < operations.size(); i++) {
+                ContentProviderOperation operation = operations.get(i);
+                if (i > 0 && operation.isYieldAllowed()) {
+                    db.yieldIfContendedSafely();
+                }
+                results[i] = operation.apply(this, results, i);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            mNotifier.endBatch();
+        }
+        return results;
+    }
+
+    /**
+     * This is called when a client calls
+     * {@link android.content.ContentResolver#call(Uri, String, String, Bundle)}. Makes or
+     * restores a backup, as described in {@link NotePad.Backups}, and returns how long it
+     * took. Other methods are passed on to the superclass.
+     *
+     * @throws SecurityException if the caller is another app.
+     * @throws IllegalArgumentException if the directory is not given.
+     * @throws IllegalStateException if the backup can't be made or restored.
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        boolean backup = NotePad.Backups.METHOD_BACKUP.equals(method);
+        if (!backup && !NotePad.Backups.METHOD_RESTORE.equals(method)) {
+            return super.call(method, arg, extras);
+        }
+
+        // The provider is exported, but a backup holds every note and a restore replaces them,
+        // so only the app itself may ask for either.
+        if (Binder.getCallingUid() != Process.myUid()) {
+            throw new SecurityException("Only the app can back up or restore its notes");
+        }
+        if (TextUtils.isEmpty(arg)) {
+            throw new IllegalArgumentException("The backup directory must be given");
+        }
+
+        File directory = new File(arg);
+        Bundle result = new Bundle();
+        long start = SystemClock.elapsedRealtime();
+        try {
+            if (backup) {
+                backup(directory);
+                result.putLong(NotePad.Backups.KEY_LOCK_MILLIS, mBackup.getLockMillis());
+            } else {
+                restore(directory);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't " + method + " " + directory, e);
+        }
+        result.putLong(NotePad.Backups.KEY_MILLIS, SystemClock.elapsedRealtime() - start);
+        return result;
+    }
+
+    /**
+     * Writes a backup of the database and the body files it refers to into a new directory.
+     */
+    private void backup(File directory) throws IOException {
+        mBackupsRunning.incrementAndGet();
+        mReadLock.lock();
+        try {
+            mBackup.snapshot(mOpenHelper.getWritableDatabase(), directory);
+        } finally {
+            mReadLock.unlock();
+            mBackupsRunning.decrementAndGet();
+        }
+        Log.i(TAG, "Backed up to " + directory + ", writes waited "
+                + mBackup.getLockMillis() + " ms");
+    }
+
+    /**
+     * Replaces the database with a backup. The backup is checked and copied next to the
+     * database first. Then the background threads are stopped and waited for, and under the
+     * write lock, once every call that was using the database has returned, the database is
+     * closed, the copy renamed over it, and a new helper opens it, upgrading it if the backup
+     * is older. Calls that come meanwhile wait for the lock and then use the restored
+     * database. Writes made before the restore are lost with the rest of the old database.
+     * A cursor returned before the restore that needs another window fails to fill it.
+     */
+    private void restore(File directory) throws IOException {
+        File staged = mBackup.stage(directory, DATABASE_VERSION);
+        File databaseFile = getContext().getDatabasePath(DATABASE_NAME);
+        stopWorkers();
+        mDatabaseLock.writeLock().lock();
+        try {
+            // Also waits for the backfills of the old database
+            mOpenHelper.close();
+            for (String suffix : new String[] { "-wal", "-shm", "-journal" }) {
+                File file = new File(databaseFile.getPath() + suffix);
+                if (file.exists() && !file.delete()) {
+                    throw new IOException("Can't delete " + file);
+                }
+            }
+            // A rename within a directory is atomic: the database is either the old one or
+            // the backup, never a mix.
+            if (!staged.renameTo(databaseFile)) {
+                throw new IOException("Can't rename " + staged + " to " + databaseFile);
+            }
+            mOpenHelper = new DatabaseHelper(getContext(), mBodyStore);
+            mOpenHelper.getWritableDatabase();
+        } finally {
+            mDatabaseLock.writeLock().unlock();
+            resumeWorkers();
+        }
+        Log.i(TAG, "Restored " + directory);
+
+        // The bodies only the replaced notes used are now unreferenced.
+        startBodySweep();
+        notifyChange(NotePad.Notes.CONTENT_URI);
+        notifyChange(NotePad.Categories.CONTENT_URI);
+    }
+
+    /**
+     * Notifies listeners that the data at the given URI changed. The notification is held back
+     * while the current thread is applying a batch, and is sent together with the other
+     * changes of the same short window.
+     */
+    private void notifyChange(Uri uri) {
+        mNotifier.notifyChange(uri);
+
+        // The stats follow the notes, and have a row for every category, so a write to
+        // either changes them.
+        switch (sUriMatcher.match(uri)) {
+            case NOTES:
+            case NOTE_ID:
+            case CATEGORIES:
+            case CATEGORY_ID:
+            case TRASH:
+            case TRASH_ID:
+                mNotifier.notifyChange(NotePad.CategoryStats.CONTENT_URI);
+                break;
+        }
+        startIndexSync();
+    }
+
+    /**
+     * Brings the search index up to date on a background thread. A write while a sync is
+     * running makes it go round once more, so only one thread tokenizes notes at a time. A
+     * restore stops the sync between two batches, and it goes on once the restore is done.
+     */
+    private void startIndexSync() {
+        mIndexSyncRequested = true;
+        if (!mIndexSyncRunning.compareAndSet(false, true)) {
+            return;
+        }
+
+        boolean started = startWorker(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                try {
+                    while (mIndexSyncRequested && !mWorkersStopped) {
+                        mIndexSyncRequested = false;
+                        boolean more = true;
+                        while (more && !mWorkersStopped) {
+                            mReadLock.lock();
+                            try {
+                                SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+                                more = TrigramIndex.syncNextBatch(db, mBodyStore);
+                            } finally {
+                                mReadLock.unlock();
+                            }
+                        }
+                        if (more) {
+                            // Stopped for a restore before the end
+                            mIndexSyncRequested = true;
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Index sync stopped, it resumes after the next write", e);
+                } finally {
+                    mIndexSyncRunning.set(false);
+                }
+
+                // A write that came after the last check but before the flag was cleared
+                if (mIndexSyncRequested && !mWorkersStopped) {
+                    startIndexSync();
+                }
+            }
+        }, "NotePadIndex");
+        if (!started) {
+            mIndexSyncRunning.set(false);
+        }
+    }
+
+    /**
+     * Starts a background thread that uses the database, unless a restore has stopped them.
+     *
+     * @return false if the thread wasn't started.
+     */
+    private boolean startWorker(final Runnable work, String name) {
+        synchronized (mWorkers) {
+            if (mWorkersStopped) {
+                return false;
+            }
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        work.run();
+                    } finally {
+                        synchronized (mWorkers) {
+                            mWorkers.remove(Thread.currentThread());
+                        }
+                    }
+                }
+            }, name);
+            mWorkers.add(thread);
+            thread.start();
+            return true;
+        }
+    }
+
+    /**
+     * Tells the background threads to stop after the step they are in, and waits for them.
+     * No new ones start until {@link #resumeWorkers()}.
+     */
+    private void stopWorkers() {
+        List<Thread> running;
+        synchronized (mWorkers) {
+            mWorkersStopped = true;
+            running = new ArrayList<Thread>(mWorkers);
+        }
+        for (Thread thread : running) {
+            joinUninterruptibly(thread);
+        }
+    }
+
+    /**
+     * Lets background threads start again, and restarts the index sync, which may have been
+     * stopped before it was done.
+     */
+    private void resumeWorkers() {
+        synchronized (mWorkers) {
+            mWorkersStopped = false;
+        }
+        startIndexSync();
+    }
+
+    /**
+     * Waits for a thread to end. An interrupt doesn't cut the wait short, but is kept for the
+     * caller to see.
+     */
+    static void joinUninterruptibly(Thread thread) {
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Sets the repeating alarm that starts {@link NoteMaintenanceReceiver}, unless it is set
+     * already, so starting the process again doesn't push the next run back. The alarm is
+     * inexact, so the system fires it together with the alarms of other apps and the device
+     * wakes up once for all of them; elapsed real time keeps counting while the device sleeps.
+     */
+    private void scheduleMaintenance() {
+        Context context = getContext();
+        AlarmManager alarms = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        if (alarms == null) {
+            // The isolated context of the provider tests has no alarms.
+            return;
+        }
+        Intent intent = new Intent(context, NoteMaintenanceReceiver.class);
+        if (PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_NO_CREATE) != null) {
+            return;
+        }
+
+        alarms.setInexactRepeating(AlarmManager.ELAPSED_REALTIME_WAKEUP,
+                SystemClock.elapsedRealtime() + AlarmManager.INTERVAL_HALF_DAY,
+                AlarmManager.INTERVAL_HALF_DAY,
+                PendingIntent.getBroadcast(context, 0, intent, 0));
+    }
+
+    /**
+     * Purges the trash and runs {@link NoteMaintenance} on the calling thread, which must not
+     * be the main thread. Does nothing if a run is already going on; a restore waits for it.
+     *
+     * @param idle Whether the device is idle, so the VACUUM that rewrites the whole file may run.
+     */
+    void runMaintenance(boolean idle) {
+        if (!mMaintenanceRunning.compareAndSet(false, true)) {
+            return;
+        }
+        mReadLock.lock();
+        try {
+            // The purge goes first, so the vacuum gives back the pages it frees.
+            purgeTrash();
+            NoteMaintenance.run(mOpenHelper.getWritableDatabase(), idle);
+        } finally {
+            mReadLock.unlock();
+            mMaintenanceRunning.set(false);
+        }
+    }
+
     /**
      * A test package can call this to get a handle to the database underlying NotePadProvider,
      * so it can insert test data into the database. The test case class is responsible for
@@ -997,4 +2956,11 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     DatabaseHelper getOpenHelperForTest() {
         return mOpenHelper;
     }
+
+    /**
+     * A test package can call this to find the files of the note bodies stored out of row.
+     */
+    NoteBodyStore getBodyStoreForTest() {
+        return mBodyStore;
+    }
 }
\ No newline at end of file
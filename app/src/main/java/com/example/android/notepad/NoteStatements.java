@@ -0,0 +1,148 @@
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Precompiled statements for the writes the editor and the category screen make most often.
+ *
+ * SQLiteDatabase.update() builds the SQL text from the ContentValues and compiles a new
+ * statement on every call. For the shapes below the statement is compiled once and only the
+ * arguments are bound on each write. The provider decides whether an update has one of these
+ * shapes; anything else goes through SQLiteDatabase.update() as before.
+ *
+ * A statement holds its bound arguments until it is executed, so each one is used by one
+ * thread at a time.
+ */
+final class NoteStatements {
+
+    /**
+     * The columns of a full note update, as sent by NoteEditor, plus the columns the provider
+     * adds to every note update
+     */
+    static final String[] NOTE_UPDATE_COLUMNS = {
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_NOTE,
+            NotePad.Notes.COLUMN_NAME_PREVIEW,
+            NotePadProvider.COLUMN_NAME_NOTE_FILE,
+            NotePad.Notes.COLUMN_NAME_IS_TODO,
+            NotePad.Notes.COLUMN_NAME_IS_COMPLETED,
+            NotePad.Notes.COLUMN_NAME_DUE_DATE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+    };
+
+    /**
+     * The columns of a to-do state update, plus the modification date
+     */
+    static final String[] TODO_UPDATE_COLUMNS = {
+            NotePad.Notes.COLUMN_NAME_IS_TODO,
+            NotePad.Notes.COLUMN_NAME_IS_COMPLETED,
+            NotePad.Notes.COLUMN_NAME_DUE_DATE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+    };
+
+    /**
+     * The columns of a category reassignment, plus the modification date
+     */
+    static final String[] CATEGORY_UPDATE_COLUMNS = {
+            NotePad.Notes.COLUMN_NAME_CATEGORY_ID,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+    };
+
+    private final SQLiteDatabase mDb;
+
+    private final SQLiteStatement mUpdateNote;
+    private final SQLiteStatement mUpdateTodo;
+    private final SQLiteStatement mReassignCategory;
+
+    NoteStatements(SQLiteDatabase db) {
+        mDb = db;
+        mUpdateNote = db.compileStatement(buildUpdate(NOTE_UPDATE_COLUMNS,
+                NotePad.Notes._ID));
+        mUpdateTodo = db.compileStatement(buildUpdate(TODO_UPDATE_COLUMNS,
+                NotePad.Notes._ID));
+        mReassignCategory = db.compileStatement(buildUpdate(CATEGORY_UPDATE_COLUMNS,
+                NotePad.Notes.COLUMN_NAME_CATEGORY_ID));
+    }
+
+    /**
+     * Returns true if these statements were compiled for the given database.
+     */
+    boolean isFor(SQLiteDatabase db) {
+        return mDb == db;
+    }
+
+    /**
+     * Returns true if the values set exactly the given columns.
+     */
+    static boolean hasColumns(ContentValues values, String[] columns) {
+        if (values == null || values.size() != columns.length) {
+            return false;
+        }
+        for (String column : columns) {
+            if (!values.containsKey(column)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Updates a note with values that have exactly the {@link #NOTE_UPDATE_COLUMNS}.
+     *
+     * @return The number of rows updated.
+     */
+    int updateNote(long noteId, ContentValues values) {
+        synchronized (mUpdateNote) {
+            return execute(mUpdateNote, NOTE_UPDATE_COLUMNS, values, noteId);
+        }
+    }
+
+    /**
+     * Updates the to-do state of a note with values that have exactly the
+     * {@link #TODO_UPDATE_COLUMNS}.
+     *
+     * @return The number of rows updated.
+     */
+    int updateTodo(long noteId, ContentValues values) {
+        synchronized (mUpdateTodo) {
+            return execute(mUpdateTodo, TODO_UPDATE_COLUMNS, values, noteId);
+        }
+    }
+
+    /**
+     * Moves every note of one category to another, with values that have exactly the
+     * {@link #CATEGORY_UPDATE_COLUMNS}.
+     *
+     * @return The number of rows updated.
+     */
+    int reassignCategory(long fromCategoryId, ContentValues values) {
+        synchronized (mReassignCategory) {
+            return execute(mReassignCategory, CATEGORY_UPDATE_COLUMNS, values, fromCategoryId);
+        }
+    }
+
+    private static int execute(SQLiteStatement statement, String[] columns, ContentValues values,
+            long key) {
+        statement.clearBindings();
+        for (int i = 0; i < columns.length; i++) {
+            DatabaseUtils.bindObjectToProgram(statement, i + 1, values.get(columns[i]));
+        }
+        statement.bindLong(columns.length + 1, key);
+        return statement.executeUpdateDelete();
+    }
+
+    private static String buildUpdate(String[] columns, String keyColumn) {
+        StringBuilder sql = new StringBuilder("UPDATE " + NotePad.Notes.TABLE_NAME + " SET ");
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0) {
+                sql.append(", ");
+            }
+            sql.append(columns[i]).append(" = ?");
+        }
+        sql.append(" WHERE ").append(keyColumn).append(" = ?");
+        return sql.toString();
+    }
+}
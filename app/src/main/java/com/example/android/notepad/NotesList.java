@@ -18,14 +18,18 @@ package com.example.android.notepad;
 
 import com.example.android.notepad.NotePad;
 
+import android.app.AlertDialog;
 import android.app.ListActivity;
+import android.app.ProgressDialog;
 import android.content.ClipboardManager;
 import android.content.ClipData;
 import android.content.ComponentName;
 import android.content.ContentUris;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.database.Cursor;
+import android.database.DataSetObserver;
 import android.net.Uri;
 import android.os.Bundle;
 import android.text.TextUtils;
@@ -46,14 +50,18 @@ import android.widget.LinearLayout;
 import android.widget.ListView;
 import android.widget.SimpleCursorAdapter;
 import android.widget.TextView;
+import android.widget.Toast;
 import android.graphics.Paint;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import android.content.ContentValues;
 /**
  * Displays a list of notes. Will display notes from the {@link Uri}
@@ -76,7 +84,7 @@ public class NotesList extends ListActivity {
     private static final String[] PROJECTION = new String[] {
             NotePad.Notes._ID, // 0
             NotePad.Notes.COLUMN_NAME_TITLE, // 1
-            NotePad.Notes.COLUMN_NAME_NOTE, // 2 - 新增内容列用于搜索
+            NotePad.Notes.COLUMN_NAME_PREVIEW, // 2 - 内容预览，不读取完整的笔记内容
             NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, // 3
             NotePad.Notes.COLUMN_NAME_CATEGORY_ID, // 4 - 新增分类ID
             NotePad.Notes.COLUMN_NAME_IS_TODO, // 5 - 新增待办标记
@@ -87,8 +95,8 @@ public class NotesList extends ListActivity {
     /** The index of the title column */
     private static final int COLUMN_INDEX_TITLE = 1;
 
-    /** The index of the note content column */
-    private static final int COLUMN_INDEX_NOTE = 2;
+    /** The index of the note preview column */
+    private static final int COLUMN_INDEX_PREVIEW = 2;
 
     /** The index of the modification date column */
     private static final int COLUMN_INDEX_MODIFICATION_DATE = 3;
@@ -105,19 +113,27 @@ public class NotesList extends ListActivity {
     /** The index of the due date column */
     private static final int COLUMN_INDEX_DUE_DATE = 7;
 
-    private SimpleCursorAdapter mAdapter;
+    private PagedNotesAdapter mAdapter;
     private LinearLayout mSearchLayout;
     private EditText mSearchEditText;
     private Button mSearchButton;
     private Button mClearButton;
     private String mCurrentSearchQuery = "";
     private long currentFilterCategoryId = -1; // -1 表示显示所有分类
-    private String currentFilterCategoryName = "";
     private String currentTodoFilter = "";
+
+    // 分类筛选子菜单，菜单项标题中的统计数字在每次打开子菜单时更新
+    private SubMenu mCategoryFilterMenu;
     private static final String FILTER_ALL = "all";
     private static final String FILTER_TODO_ONLY = "todo_only";
     private static final String FILTER_COMPLETED_ONLY = "completed_only";
 
+    // 选择导入文件的请求码
+    private static final int REQUEST_IMPORT = 1;
+
+    // 导入进度对话框，导入时不为 null
+    private ProgressDialog mImportDialog;
+
     /**
      * onCreate is called when Android starts this Activity from scratch.
      */
@@ -151,10 +167,92 @@ public class NotesList extends ListActivity {
         // 初始化搜索界面
         initSearchView();
 
+        // 创建分页适配器
+        setupAdapter();
+
         // 执行初始查询（显示所有笔记）
         performQuery("");
     }
 
+    @Override
+    protected void onDestroy() {
+        // 分页适配器自己管理游标，需要手动释放
+        mAdapter.close();
+        if (mImportDialog != null) {
+            mImportDialog.dismiss();
+            mImportDialog = null;
+        }
+        super.onDestroy();
+    }
+
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        if (requestCode == REQUEST_IMPORT && resultCode == RESULT_OK && data != null
+                && data.getData() != null) {
+            importNotes(data.getData());
+            return;
+        }
+        super.onActivityResult(requestCode, resultCode, data);
+    }
+
+    /**
+     * 在后台线程导入导出的笔记文件（每行一条 JSON），并显示进度。
+     * 导入中断后再次选择同一个文件，会从上次的位置继续
+     */
+    private void importNotes(final Uri source) {
+        mImportDialog = new ProgressDialog(this);
+        mImportDialog.setMessage("正在导入笔记…");
+        mImportDialog.setCancelable(false);
+        mImportDialog.show();
+
+        final NoteImporter.ProgressListener listener = new NoteImporter.ProgressListener() {
+            @Override
+            public void onProgress(long position, final int imported) {
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mImportDialog != null) {
+                            mImportDialog.setMessage("已导入 " + imported + " 条笔记…");
+                        }
+                    }
+                });
+            }
+        };
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                int imported = -1;
+                try {
+                    InputStream in = getContentResolver().openInputStream(source);
+                    try {
+                        imported = new NoteImporter(getContentResolver(), source.toString(),
+                                listener).importJson(in);
+                    } finally {
+                        in.close();
+                    }
+                } catch (IOException | RuntimeException e) {
+                    Log.w(TAG, "Import of " + source + " failed", e);
+                }
+
+                final int result = imported;
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mImportDialog == null) {
+                            return;
+                        }
+                        mImportDialog.dismiss();
+                        mImportDialog = null;
+                        String message = result >= 0 ? "已导入 " + result + " 条笔记"
+                                : "导入失败，可以重新选择文件继续导入";
+                        Toast.makeText(NotesList.this, message, Toast.LENGTH_LONG).show();
+                    }
+                });
+            }
+        }, "NoteImport").start();
+    }
+
     /**
      * 初始化搜索界面
      */
@@ -231,13 +329,19 @@ public class NotesList extends ListActivity {
         List<String> selectionParts = new ArrayList<>();
         List<String> argsList = new ArrayList<>();
 
-        // 搜索条件
+        // 只查询笔记本身，分类名称在绑定时按 id 从分类缓存中取，不需要联表或逐行查询
+        Uri queryUri = NotePad.Notes.CONTENT_URI;
+        // 标题中的总条数由 provider 用同样的条件统计
+        Uri countUri = NotePad.Notes.COUNT_URI;
+
+        // 搜索条件：交给全文检索索引处理，避免 LIKE '%q%' 全表扫描
         if (!TextUtils.isEmpty(query)) {
-            selectionParts.add("(" + NotePad.Notes.COLUMN_NAME_TITLE + " LIKE ? OR " +
-                    NotePad.Notes.COLUMN_NAME_NOTE + " LIKE ?)");
-            String searchPattern = "%" + query + "%";
-            argsList.add(searchPattern);
-            argsList.add(searchPattern);
+            queryUri = NotePad.Notes.SEARCH_URI.buildUpon()
+                    .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH, query)
+                    .build();
+            countUri = countUri.buildUpon()
+                    .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH, query)
+                    .build();
         }
 
         // 分类筛选条件
@@ -263,24 +367,17 @@ public class NotesList extends ListActivity {
             selectionArgs = argsList.toArray(new String[0]);
         }
 
-        Cursor cursor = managedQuery(
-                getIntent().getData(),
-                PROJECTION,
-                selection,
-                selectionArgs,
-                NotePad.Notes.DEFAULT_SORT_ORDER
-        );
-
-        setupAdapter(cursor);
+        // 按 (modified, _id) 分页加载，只查询首屏需要的数据
+        mAdapter.setQuery(queryUri, countUri, selection, selectionArgs);
     }
 
     /**
      * 设置适配器
      */
-    private void setupAdapter(Cursor cursor) {
+    private void setupAdapter() {
         String[] dataColumns = {
                 NotePad.Notes.COLUMN_NAME_TITLE,
-                NotePad.Notes.COLUMN_NAME_NOTE,
+                NotePad.Notes.COLUMN_NAME_PREVIEW,
                 NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
         };
 
@@ -290,10 +387,10 @@ public class NotesList extends ListActivity {
                 R.id.timestamp         // 时间戳
         };
 
-        mAdapter = new SimpleCursorAdapter(
+        mAdapter = new PagedNotesAdapter(
                 this,
                 R.layout.noteslist_item,
-                cursor,
+                PROJECTION,
                 dataColumns,
                 viewIDs
         );
@@ -327,15 +424,15 @@ public class NotesList extends ListActivity {
                 } else if (view.getId() == android.R.id.text2) {
                     // 处理内容预览显示
                     TextView textView = (TextView) view;
-                    String noteContent = cursor.getString(columnIndex);
-                    // 获取分类信息并显示
-                    long categoryId = cursor.getLong(COLUMN_INDEX_CATEGORY_ID);
-                    String categoryInfo = getCategoryInfo(categoryId);
-
-                    String preview = "";
-                    if (!TextUtils.isEmpty(noteContent)) {
-                        preview = noteContent.length() > 40 ?
-                                noteContent.substring(0, 40) + "..." : noteContent;
+                    // 预览由 provider 截取好，这里直接显示
+                    String preview = cursor.getString(columnIndex);
+                    // 按分类 id 在缓存中查找，只在缓存失效后的第一行重新读取一次分类表
+                    CategoryCache.Category category = CategoryCache.getInstance(NotesList.this)
+                            .get(cursor.getLong(COLUMN_INDEX_CATEGORY_ID));
+                    String categoryInfo = category != null ? category.name : "未知分类";
+
+                    if (preview == null) {
+                        preview = "";
                     }
 
                     textView.setText(categoryInfo + " | " + preview);
@@ -369,8 +466,15 @@ public class NotesList extends ListActivity {
             }
         });
 
+        // 加载更多页或数据变化后更新标题中的条数
+        mAdapter.registerDataSetObserver(new DataSetObserver() {
+            @Override
+            public void onChanged() {
+                updateTitle();
+            }
+        });
+
         setListAdapter(mAdapter);
-        updateTitle();
     }
 
     /**
@@ -395,26 +499,6 @@ public class NotesList extends ListActivity {
         return sdf.format(date);
     }
 
-    /**
-     * 获取分类信息
-     */
-    private String getCategoryInfo(long categoryId) {
-        Cursor cursor = getContentResolver().query(
-                NotePad.Categories.CONTENT_URI,
-                new String[]{NotePad.Categories.COLUMN_NAME_CATEGORY_NAME},
-                NotePad.Categories._ID + "=?",
-                new String[]{String.valueOf(categoryId)},
-                null
-        );
-
-        String categoryName = "未知分类";
-        if (cursor != null && cursor.moveToFirst()) {
-            categoryName = cursor.getString(0);
-            cursor.close();
-        }
-        return categoryName;
-    }
-
     /**
      * 更新标题显示搜索状态
      */
@@ -429,9 +513,13 @@ public class NotesList extends ListActivity {
             titleBuilder.append(" - 搜索: \"").append(mCurrentSearchQuery).append("\"");
         }
         
-        // 如果有分类过滤，添加到标题中
-        if (currentFilterCategoryId != -1 && !currentFilterCategoryName.isEmpty()) {
-            titleBuilder.append(" - 分类: \"").append(currentFilterCategoryName).append("\"");
+        // 如果有分类过滤，添加到标题中。名称按 id 从缓存中取，分类改名后标题也随之更新
+        if (currentFilterCategoryId != -1) {
+            CategoryCache.Category category =
+                    CategoryCache.getInstance(this).get(currentFilterCategoryId);
+            if (category != null) {
+                titleBuilder.append(" - 分类: \"").append(category.name).append("\"");
+            }
         }
         
         // 如果有待办筛选，添加到标题中
@@ -443,7 +531,9 @@ public class NotesList extends ListActivity {
             }
         }
         
-        titleBuilder.append(" (").append(mAdapter.getCount()).append(" 条");
+        // 总条数由 provider 统计，不需要把所有页都加载进来
+        titleBuilder.append(" (").append(mAdapter.getTotalCount());
+        titleBuilder.append(" 条");
         if (!FILTER_ALL.equals(currentTodoFilter)) {
             titleBuilder.append("事项");
         } else {
@@ -478,9 +568,26 @@ public class NotesList extends ListActivity {
                 .setIcon(android.R.drawable.ic_menu_sort_by_size)
                 .setShowAsAction(MenuItem.SHOW_AS_ACTION_NEVER);
 
+        // 添加导入笔记菜单项
+        menu.add(Menu.NONE, 101, Menu.NONE, "导入笔记")
+                .setShowAsAction(MenuItem.SHOW_AS_ACTION_NEVER);
+
+        // 添加回收站菜单项
+        menu.add(Menu.NONE, 102, Menu.NONE, "回收站")
+                .setShowAsAction(MenuItem.SHOW_AS_ACTION_NEVER);
+
         // 添加分类筛选菜单项
         SubMenu filterSubMenu = menu.addSubMenu("按分类筛选");
         setupCategoryFilterMenu(filterSubMenu);
+        mCategoryFilterMenu = filterSubMenu;
+        // 打开子菜单时才读取统计，返回 false 让子菜单照常打开
+        filterSubMenu.getItem().setOnMenuItemClickListener(new MenuItem.OnMenuItemClickListener() {
+            @Override
+            public boolean onMenuItemClick(MenuItem item) {
+                loadCategoryFilterCounts();
+                return false;
+            }
+        });
         
         // 添加待办事项筛选菜单项
         SubMenu todoFilterSubMenu = menu.addSubMenu("待办事项筛选");
@@ -530,40 +637,131 @@ public class NotesList extends ListActivity {
                     @Override
                     public boolean onMenuItemClick(MenuItem item) {
                         currentFilterCategoryId = -1;
-                        currentFilterCategoryName = "";
                         performQuery(mCurrentSearchQuery);
                         return true;
                     }
                 });
 
-        // 从数据库加载分类
-        Cursor cursor = getContentResolver().query(
-                NotePad.Categories.CONTENT_URI,
-                new String[]{
-                        NotePad.Categories._ID,
-                        NotePad.Categories.COLUMN_NAME_CATEGORY_NAME
-                },
-                null, null, NotePad.Categories.COLUMN_NAME_CREATE_DATE + " ASC"
-        );
+        // 从分类缓存加载分类，统计数字在 loadCategoryFilterCounts() 中填入
+        for (CategoryCache.Category category : CategoryCache.getInstance(this).getAll()) {
+            final long categoryId = category.id;
+
+            subMenu.add(Menu.NONE, (int)categoryId, (int)categoryId, category.name)
+                    .setOnMenuItemClickListener(new MenuItem.OnMenuItemClickListener() {
+                        @Override
+                        public boolean onMenuItemClick(MenuItem item) {
+                            currentFilterCategoryId = categoryId;
+                            performQuery(mCurrentSearchQuery);
+                            return true;
+                        }
+                    });
+        }
+    }
+
+    /**
+     * 在后台线程读取各分类的笔记数、待办数和逾期数，读完后在分类筛选菜单项的标题中显示。
+     * 统计由触发器维护，每个分类一行，逾期数还要数一遍该分类已经逾期的待办
+     */
+    private void loadCategoryFilterCounts() {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final List<CategoryCache.Category> categories;
+                final Map<Long, CategoryCounts> counts;
+                try {
+                    categories = CategoryCache.getInstance(NotesList.this).getAll();
+                    counts = CategoryCounts.query(getContentResolver());
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Can't read the category counts", e);
+                    return;
+                }
 
-        if (cursor != null) {
-            while (cursor.moveToNext()) {
-                final long categoryId = cursor.getLong(0);
-                final String categoryName = cursor.getString(1);
-
-                subMenu.add(Menu.NONE, (int)categoryId, (int)categoryId, categoryName)
-                        .setOnMenuItemClickListener(new MenuItem.OnMenuItemClickListener() {
-                            @Override
-                            public boolean onMenuItemClick(MenuItem item) {
-                                currentFilterCategoryId = categoryId;
-                                currentFilterCategoryName = categoryName;
-                                performQuery(mCurrentSearchQuery);
-                                return true;
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mCategoryFilterMenu == null || isFinishing()) {
+                            return;
+                        }
+                        for (CategoryCache.Category category : categories) {
+                            MenuItem item = mCategoryFilterMenu.findItem((int) category.id);
+                            if (item != null) {
+                                item.setTitle(category.name + " ("
+                                        + CategoryCounts.get(counts, category.id).getSummary()
+                                        + ")");
                             }
-                        });
+                        }
+                    }
+                });
             }
-            cursor.close();
-        }
+        }, "CategoryCounts").start();
+    }
+
+    /**
+     * 在后台线程读取回收站中的笔记，读完后列出标题，点击一篇即将它恢复
+     */
+    private void showTrash() {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final long[] ids;
+                final String[] titles;
+                Cursor cursor = null;
+                try {
+                    cursor = getContentResolver().query(NotePad.Trash.CONTENT_URI,
+                            new String[] { NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_TITLE },
+                            null, null, NotePad.Trash.DEFAULT_SORT_ORDER);
+                    ids = new long[cursor.getCount()];
+                    titles = new String[ids.length];
+                    for (int i = 0; cursor.moveToNext(); i++) {
+                        ids[i] = cursor.getLong(0);
+                        titles[i] = cursor.getString(1);
+                    }
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Can't read the trash", e);
+                    return;
+                } finally {
+                    if (cursor != null) {
+                        cursor.close();
+                    }
+                }
+
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (isFinishing()) {
+                            return;
+                        }
+                        if (ids.length == 0) {
+                            Toast.makeText(NotesList.this, "回收站是空的", Toast.LENGTH_SHORT).show();
+                            return;
+                        }
+                        new AlertDialog.Builder(NotesList.this)
+                                .setTitle("回收站（点击恢复）")
+                                .setItems(titles, new DialogInterface.OnClickListener() {
+                                    @Override
+                                    public void onClick(DialogInterface dialog, int which) {
+                                        restoreNote(ids[which]);
+                                    }
+                                })
+                                .setNegativeButton("关闭", null)
+                                .show();
+                    }
+                });
+            }
+        }, "Trash").start();
+    }
+
+    /**
+     * 把回收站中的笔记恢复到列表中。只清除删除时间，和移入回收站一样开销很小
+     */
+    private void restoreNote(long noteId) {
+        ContentValues values = new ContentValues();
+        values.putNull(NotePad.Notes.COLUMN_NAME_DELETED_AT);
+        int count = getContentResolver().update(
+                ContentUris.withAppendedId(NotePad.Trash.CONTENT_ID_URI_BASE, noteId),
+                values, null, null);
+        Toast.makeText(this, count > 0 ? "已恢复" : "笔记已不在回收站中",
+                Toast.LENGTH_SHORT).show();
     }
 
     @Override
@@ -683,6 +881,17 @@ public class NotesList extends ListActivity {
             // 打开分类管理界面
             startActivity(new Intent(this, CategoryManager.class));
             return true;
+        } else if (item.getItemId() == 101) {
+            // 选择要导入的文件
+            Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
+            intent.setType("*/*");
+            intent.addCategory(Intent.CATEGORY_OPENABLE);
+            startActivityForResult(intent, REQUEST_IMPORT);
+            return true;
+        } else if (item.getItemId() == 102) {
+            // 打开回收站
+            showTrash();
+            return true;
         }
         return super.onOptionsItemSelected(item);
     }
@@ -849,15 +1058,13 @@ public class NotesList extends ListActivity {
             return true;
             //END_INCLUDE(copy)
         } else if (id == R.id.context_delete) {
-            // Deletes the note from the provider by passing in a URI in note ID format.
-            // Please see the introductory note about performing provider operations on the
-            // UI thread.
-            getContentResolver().delete(
-                    noteUri,  // The URI of the provider
-                    null,     // No where clause is needed, since only a single note ID is being
-                    // passed in.
-                    null      // No where clause is used, so no where arguments are needed.
-            );
+            // Moves the note to the trash. This only sets the time it was deleted, so it is
+            // cheap enough for the UI thread; the note is removed for good later, in the
+            // background.
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_DELETED_AT, System.currentTimeMillis());
+            getContentResolver().update(noteUri, values, null, null);
+            Toast.makeText(this, "已移至回收站", Toast.LENGTH_SHORT).show();
 
             // Returns to the caller and skips further processing.
             return true;
@@ -0,0 +1,169 @@
+package com.example.android.notepad;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Collapses the provider's change notifications, so that many changes in a row cause one
+ * requery in each listener instead of one per change.
+ *
+ * Changes made while a thread is inside {@link #beginBatch()} and {@link #endBatch()} are held
+ * until the outermost batch ends, so listeners never see a half-applied batch. After that, and
+ * for changes made outside a batch, each URI is notified at most once per window: the first
+ * change starts the window, and every URI changed before it closes is notified together when
+ * it does. A URI is left out if one of its ancestors is notified too, since listeners on the
+ * ancestor and on the URI itself hear about the ancestor anyway.
+ */
+final class NotificationCoalescer {
+
+    private final ContentResolver mResolver;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // The URIs changed by the batch the current thread is running, or null outside a batch
+    private final ThreadLocal<HashSet<Uri>> mBatchChanges = new ThreadLocal<HashSet<Uri>>();
+
+    // The number of batches the current thread has begun and not ended
+    private final ThreadLocal<int[]> mBatchDepth = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[1];
+        }
+    };
+
+    // The URIs waiting for the current window to close. Guarded by this.
+    private final HashSet<Uri> mPending = new HashSet<Uri>();
+
+    // The length of a window in milliseconds. Guarded by this.
+    private long mWindowMillis;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * @param windowMillis How long to collect changes before notifying. 0 notifies right away,
+     * except inside a batch.
+     */
+    NotificationCoalescer(ContentResolver resolver, long windowMillis) {
+        mResolver = resolver;
+        mWindowMillis = windowMillis;
+    }
+
+    /**
+     * Changes the window length. Changes already waiting keep their schedule.
+     */
+    synchronized void setWindowMillis(long windowMillis) {
+        mWindowMillis = windowMillis;
+    }
+
+    /**
+     * Starts holding back the current thread's notifications. Batches can nest; the changes
+     * are released when the outermost batch ends.
+     */
+    void beginBatch() {
+        if (mBatchDepth.get()[0]++ == 0) {
+            mBatchChanges.set(new HashSet<Uri>());
+        }
+    }
+
+    /**
+     * Ends a batch started with {@link #beginBatch()}. Call it whether or not the batch
+     * succeeded: changes committed before a failure still have to be reported.
+     */
+    void endBatch() {
+        int[] depth = mBatchDepth.get();
+        if (--depth[0] == 0) {
+            HashSet<Uri> changes = mBatchChanges.get();
+            mBatchChanges.remove();
+            post(changes);
+        }
+    }
+
+    /**
+     * Reports that the data at the given URI changed.
+     */
+    void notifyChange(Uri uri) {
+        HashSet<Uri> batchChanges = mBatchChanges.get();
+        if (batchChanges != null) {
+            batchChanges.add(uri);
+            return;
+        }
+
+        HashSet<Uri> changes = new HashSet<Uri>();
+        changes.add(uri);
+        post(changes);
+    }
+
+    /**
+     * Sends every waiting notification now.
+     */
+    void flush() {
+        List<Uri> uris;
+        synchronized (this) {
+            mHandler.removeCallbacks(mFlush);
+            uris = withoutDescendants(mPending);
+            mPending.clear();
+        }
+        for (Uri uri : uris) {
+            mResolver.notifyChange(uri, null);
+        }
+    }
+
+    private void post(HashSet<Uri> changes) {
+        if (changes.isEmpty()) {
+            return;
+        }
+
+        boolean flushNow;
+        synchronized (this) {
+            boolean scheduled = !mPending.isEmpty();
+            mPending.addAll(changes);
+            flushNow = mWindowMillis <= 0;
+            if (!flushNow && !scheduled) {
+                mHandler.postDelayed(mFlush, mWindowMillis);
+            }
+        }
+        if (flushNow) {
+            flush();
+        }
+    }
+
+    /**
+     * Returns the URIs that have no ancestor in the set.
+     */
+    private static List<Uri> withoutDescendants(HashSet<Uri> uris) {
+        List<Uri> result = new ArrayList<Uri>(uris.size());
+        for (Uri uri : uris) {
+            boolean covered = false;
+            for (Uri other : uris) {
+                if (other != uri && isAncestor(other, uri)) {
+                    covered = true;
+                    break;
+                }
+            }
+            if (!covered) {
+                result.add(uri);
+            }
+        }
+        return result;
+    }
+
+    private static boolean isAncestor(Uri ancestor, Uri uri) {
+        if (!ancestor.getAuthority().equals(uri.getAuthority())) {
+            return false;
+        }
+        List<String> ancestorPath = ancestor.getPathSegments();
+        List<String> path = uri.getPathSegments();
+        return ancestorPath.size() < path.size()
+                && path.subList(0, ancestorPath.size()).equals(ancestorPath);
+    }
+}
@@ -0,0 +1,226 @@
+package com.example.android.notepad;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.MergeCursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.SimpleCursorAdapter;
+
+import java.util.ArrayList;
+
+/**
+ * 分页加载的笔记列表适配器
+ *
+ * 每次只向 provider 请求一页笔记（按 modified、_id 做键集分页），列表滚动到接近末尾时再加载下一页，
+ * 所以首屏的查询耗时和内存占用与笔记总数无关。
+ * 查询结果中必须包含 _id 和 modified 两列，用来定位下一页的起点。
+ */
+public class PagedNotesAdapter extends SimpleCursorAdapter {
+
+    // 每页的笔记条数
+    private static final int PAGE_SIZE = 50;
+
+    // 距离已加载数据末尾还剩多少条时开始加载下一页
+    private static final int PREFETCH_DISTANCE = 10;
+
+    private final ContentResolver mResolver;
+    private final String[] mProjection;
+    private final Handler mHandler = new Handler();
+
+    // 已加载的各页，合并后交给列表显示
+    private final ArrayList<Cursor> mPages = new ArrayList<>();
+
+    private Uri mUri;
+    private Uri mCountUri;
+    private String mSelection;
+    private String[] mSelectionArgs;
+    private boolean mHasMore;
+    private int mTotalCount;
+    private boolean mLoadPending;
+    private boolean mObserverRegistered;
+
+    private final Runnable mLoadNextPage = new Runnable() {
+        @Override
+        public void run() {
+            mLoadPending = false;
+            loadNextPage();
+        }
+    };
+
+    // 笔记变化时重新加载已显示的范围，保持滚动位置不变
+    private final ContentObserver mObserver = new ContentObserver(mHandler) {
+        @Override
+        public void onChange(boolean selfChange) {
+            reload(Math.max(getCount(), PAGE_SIZE));
+        }
+    };
+
+    public PagedNotesAdapter(Context context, int layout, String[] projection,
+                             String[] from, int[] to) {
+        super(context, layout, null, from, to, 0);
+        mResolver = context.getContentResolver();
+        mProjection = projection;
+    }
+
+    /**
+     * 设置查询条件并从第一页重新加载
+     *
+     * @param uri 笔记列表或搜索的 URI
+     * @param countUri 用同样的条件统计总条数的 URI
+     */
+    public void setQuery(Uri uri, Uri countUri, String selection, String[] selectionArgs) {
+        mUri = uri;
+        mCountUri = countUri;
+        mSelection = selection;
+        mSelectionArgs = selectionArgs;
+
+        if (!mObserverRegistered) {
+            mResolver.registerContentObserver(NotePad.Notes.CONTENT_URI, true, mObserver);
+            mObserverRegistered = true;
+        }
+
+        reload(PAGE_SIZE);
+    }
+
+    /**
+     * 是否还有未加载的笔记
+     */
+    public boolean hasMore() {
+        return mHasMore;
+    }
+
+    /**
+     * 符合查询条件的笔记总数，包括还没有加载的页
+     */
+    public int getTotalCount() {
+        return mTotalCount;
+    }
+
+    /**
+     * 释放所有游标并停止监听数据变化，在 Activity 销毁时调用
+     */
+    public void close() {
+        mHandler.removeCallbacks(mLoadNextPage);
+        if (mObserverRegistered) {
+            mResolver.unregisterContentObserver(mObserver);
+            mObserverRegistered = false;
+        }
+        swapCursor(null);
+        closePages();
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        // 不能在绘制列表的过程中修改数据，所以把加载下一页推迟到下一轮消息循环
+        if (mHasMore && !mLoadPending && position >= getCount() - PREFETCH_DISTANCE) {
+            mLoadPending = true;
+            mHandler.post(mLoadNextPage);
+        }
+        return super.getView(position, convertView, parent);
+    }
+
+    /**
+     * 丢弃已加载的页，从头查询 limit 条笔记
+     */
+    private void reload(int limit) {
+        mHandler.removeCallbacks(mLoadNextPage);
+        mLoadPending = false;
+
+        Cursor page = queryPage(limit, null);
+        ArrayList<Cursor> oldPages = new ArrayList<>(mPages);
+        mPages.clear();
+        if (page != null) {
+            mPages.add(page);
+        }
+        mHasMore = page != null && page.getCount() == limit;
+        // 总条数由 provider 统计，只在重新加载时查询一次，加载后续页时不变
+        mTotalCount = mHasMore ? queryTotalCount() : (page != null ? page.getCount() : 0);
+        showPages();
+
+        for (Cursor cursor : oldPages) {
+            cursor.close();
+        }
+    }
+
+    /**
+     * 从最后一页的最后一条笔记之后加载一页
+     */
+    private void loadNextPage() {
+        if (!mHasMore || mPages.isEmpty()) {
+            return;
+        }
+
+        Cursor last = mPages.get(mPages.size() - 1);
+        Cursor page = queryPage(PAGE_SIZE, last);
+        mHasMore = page != null && page.getCount() == PAGE_SIZE;
+        if (page != null && page.getCount() > 0) {
+            mPages.add(page);
+            showPages();
+        } else {
+            if (page != null) {
+                page.close();
+            }
+            // 没有更多数据，通知列表以便更新标题中的条数
+            notifyDataSetChanged();
+        }
+    }
+
+    /**
+     * 查询一页笔记
+     *
+     * @param after 上一页的游标，为 null 时查询第一页
+     */
+    private Cursor queryPage(int limit, Cursor after) {
+        Uri.Builder builder = mUri.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT, String.valueOf(limit));
+
+        if (after != null && after.moveToLast()) {
+            long modified = after.getLong(
+                    after.getColumnIndexOrThrow(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE));
+            long id = after.getLong(after.getColumnIndexOrThrow(NotePad.Notes._ID));
+            builder.appendQueryParameter(
+                    NotePad.Notes.QUERY_PARAMETER_AFTER_MODIFIED, String.valueOf(modified));
+            builder.appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_AFTER_ID, String.valueOf(id));
+        }
+
+        return mResolver.query(builder.build(), mProjection, mSelection, mSelectionArgs, null);
+    }
+
+    /**
+     * 查询符合条件的笔记总数
+     */
+    private int queryTotalCount() {
+        Cursor cursor = mResolver.query(mCountUri, null, mSelection, mSelectionArgs, null);
+        if (cursor == null) {
+            return 0;
+        }
+        try {
+            return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * 把已加载的各页合并成一个游标交给列表。各页游标由本类自己关闭，所以这里不关闭旧的合并游标
+     */
+    private void showPages() {
+        if (mPages.isEmpty()) {
+            swapCursor(null);
+        } else {
+            swapCursor(new MergeCursor(mPages.toArray(new Cursor[mPages.size()])));
+        }
+    }
+
+    private void closePages() {
+        for (Cursor cursor : mPages) {
+            cursor.close();
+        }
+        mPages.clear();
+    }
+}
@@ -0,0 +1,390 @@
+package com.example.android.notepad;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * An n-gram index over note titles and contents, used for substring search.
+ *
+ * The platform FTS tokenizer splits text on ASCII punctuation and whitespace only, so a run of
+ * Chinese text becomes one huge token and a word inside it can never be matched. Instead, every
+ * token run is broken into overlapping trigrams here, and the grams are stored in an FTS4
+ * table whose docid is the note's _ID. A substring of three or more characters then matches
+ * every trigram it contains, and a shorter one is a prefix of some gram.
+ *
+ * Tokenizing has to happen in Java, so triggers on the notes table only record which notes
+ * changed, and the provider runs {@link #syncPending(SQLiteDatabase, NoteBodyStore)} on a
+ * background thread after each write. A search never writes: it also takes the notes still
+ * waiting to be indexed as candidates, so it finds them before the index has caught up.
+ *
+ * A body stored in a file is indexed whole, so search finds text past the start that the row
+ * keeps. It is read from the file a chunk at a time, and never held as one String.
+ */
+final class TrigramIndex {
+
+    private static final String TAG = "TrigramIndex";
+
+    /**
+     * The FTS table holding the grams of each note
+     */
+    static final String TABLE_NAME = "notes_trigram";
+
+    /**
+     * The notes whose grams are out of date
+     */
+    static final String PENDING_TABLE_NAME = "notes_trigram_pending";
+
+    /**
+     * The _ID of a note in {@link #PENDING_TABLE_NAME}
+     */
+    static final String COLUMN_NAME_NOTE_ID = "note_id";
+
+    private static final String COLUMN_NAME_GRAMS = "grams";
+
+    // The length of the grams in the index
+    private static final int GRAM_LENGTH = 3;
+
+    // The number of pending notes re-indexed per transaction
+    private static final int SYNC_BATCH_SIZE = 200;
+
+    private TrigramIndex() {
+    }
+
+    /**
+     * Creates the index tables and the triggers that queue changed notes for re-indexing.
+     */
+    static void create(SQLiteDatabase db) {
+        db.execSQL("CREATE VIRTUAL TABLE " + TABLE_NAME + " USING fts4(" + COLUMN_NAME_GRAMS + ");");
+        db.execSQL("CREATE TABLE " + PENDING_TABLE_NAME + " ("
+                + COLUMN_NAME_NOTE_ID + " INTEGER PRIMARY KEY"
+                + ");");
+
+        db.execSQL("CREATE TRIGGER notes_trigram_insert AFTER INSERT ON " + NotePad.Notes.TABLE_NAME
+                + " BEGIN"
+                + " INSERT OR REPLACE INTO " + PENDING_TABLE_NAME + "(" + COLUMN_NAME_NOTE_ID + ")"
+                + " VALUES (new." + NotePad.Notes._ID + ");"
+                + " END;");
+
+        db.execSQL("CREATE TRIGGER notes_trigram_update AFTER UPDATE OF "
+                + NotePad.Notes.COLUMN_NAME_TITLE + ", " + NotePad.Notes.COLUMN_NAME_NOTE
+                + " ON " + NotePad.Notes.TABLE_NAME
+                + " BEGIN"
+                + " INSERT OR REPLACE INTO " + PENDING_TABLE_NAME + "(" + COLUMN_NAME_NOTE_ID + ")"
+                + " VALUES (new." + NotePad.Notes._ID + ");"
+                + " END;");
+
+        // Deleting grams needs no tokenizing, so it is done right away
+        db.execSQL("CREATE TRIGGER notes_trigram_delete AFTER DELETE ON " + NotePad.Notes.TABLE_NAME
+                + " BEGIN"
+                + " DELETE FROM " + TABLE_NAME + " WHERE docid = old." + NotePad.Notes._ID + ";"
+                + " DELETE FROM " + PENDING_TABLE_NAME
+                + " WHERE " + COLUMN_NAME_NOTE_ID + " = old." + NotePad.Notes._ID + ";"
+                + " END;");
+    }
+
+    /**
+     * Queues every existing note for indexing. Used when the index is added to an existing
+     * database.
+     */
+    static void queueAll(SQLiteDatabase db) {
+        db.execSQL("INSERT OR REPLACE INTO " + PENDING_TABLE_NAME + "(" + COLUMN_NAME_NOTE_ID + ")"
+                + " SELECT " + NotePad.Notes._ID + " FROM " + NotePad.Notes.TABLE_NAME);
+    }
+
+    /**
+     * Re-indexes the notes that changed since the last sync. Each batch runs in its own write
+     * transaction, so no note can change between reading it and clearing its pending flag,
+     * while readers on other connections keep going. Stops after the first batch that isn't
+     * full, so the pending table is read once per batch and not counted as well.
+     *
+     * @param bodies The store the bodies that are kept in files are read from, so the whole
+     * body is indexed and not just the start the row keeps.
+     */
+    static void syncPending(SQLiteDatabase db, NoteBodyStore bodies) {
+        while (syncNextBatch(db, bodies)) {
+            // Each batch commits on its own.
+        }
+    }
+
+    /**
+     * Re-indexes one batch of the notes that changed, in a write transaction of its own.
+     *
+     * @return true if the batch was full, so there may be more pending notes.
+     */
+    static boolean syncNextBatch(SQLiteDatabase db, NoteBodyStore bodies) {
+        int count;
+        db.beginTransactionNonExclusive();
+        try {
+            count = syncBatch(db, bodies);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return count == SYNC_BATCH_SIZE;
+    }
+
+    /**
+     * Re-indexes up to {@link #SYNC_BATCH_SIZE} pending notes.
+     *
+     * @return The number of pending notes handled.
+     */
+    private static int syncBatch(SQLiteDatabase db, NoteBodyStore bodies) {
+        SQLiteStatement deleteGrams = db.compileStatement(
+                "DELETE FROM " + TABLE_NAME + " WHERE docid = ?");
+        SQLiteStatement insertGrams = db.compileStatement(
+                "INSERT INTO " + TABLE_NAME + "(docid, " + COLUMN_NAME_GRAMS + ") VALUES (?, ?)");
+        SQLiteStatement deletePending = db.compileStatement(
+                "DELETE FROM " + PENDING_TABLE_NAME + " WHERE " + COLUMN_NAME_NOTE_ID + " = ?");
+
+        // A body in the row is read up to the length a row keeps, so the cursor window holds
+        // it. A longer one is from before bodies were moved to files; the backfill that moves
+        // it queues the note again, and then it is indexed from its file.
+        Cursor c = db.rawQuery("SELECT p." + COLUMN_NAME_NOTE_ID
+                + ", n." + NotePad.Notes.COLUMN_NAME_TITLE
+                + ", substr(n." + NotePad.Notes.COLUMN_NAME_NOTE
+                + ", 1, " + NotePadProvider.EXTERNAL_BODY_LENGTH + ")"
+                + ", n." + NotePadProvider.COLUMN_NAME_NOTE_FILE
+                + " FROM " + PENDING_TABLE_NAME + " p LEFT JOIN " + NotePad.Notes.TABLE_NAME + " n"
+                + " ON n." + NotePad.Notes._ID + " = p." + COLUMN_NAME_NOTE_ID
+                + " LIMIT " + SYNC_BATCH_SIZE, null);
+        try {
+            while (c.moveToNext()) {
+                long noteId = c.getLong(0);
+
+                deleteGrams.bindLong(1, noteId);
+                deleteGrams.execute();
+
+                // A pending note that no longer exists just loses its grams
+                if (!c.isNull(1) || !c.isNull(2)) {
+                    StringBuilder grams = new StringBuilder();
+                    appendGrams(grams, c.getString(1));
+                    appendBodyGrams(grams, bodies, c.getString(3), c.getString(2));
+                    insertGrams.bindLong(1, noteId);
+                    insertGrams.bindString(2, grams.toString());
+                    insertGrams.executeInsert();
+                }
+
+                deletePending.bindLong(1, noteId);
+                deletePending.execute();
+            }
+            return c.getCount();
+        } finally {
+            c.close();
+            deleteGrams.close();
+            insertGrams.close();
+            deletePending.close();
+        }
+    }
+
+    /**
+     * Appends the grams of the whole body of a note: the file it is stored in, or the row if it
+     * has none. A file that can't be read leaves the start kept in the row to be indexed.
+     */
+    private static void appendBodyGrams(StringBuilder out, NoteBodyStore bodies, String name,
+            String note) {
+        if (name == null) {
+            appendGrams(out, note);
+            return;
+        }
+        int mark = out.length();
+        try {
+            Reader reader = new InputStreamReader(bodies.open(name), "UTF-8");
+            try {
+                appendGrams(out, reader);
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Can't read body " + name + ", indexing the start of it", e);
+            out.setLength(mark);
+            appendGrams(out, note);
+        }
+    }
+
+    /**
+     * Appends the grams of the text read from the given reader, the same ones
+     * {@link #appendGrams(StringBuilder, String)} appends for the whole text. The text is read
+     * {@link NoteBodyStore#CHUNK_LENGTH} characters at a time. A gram can't be told until the
+     * two characters after its start are read, so the grams starting in the last two
+     * characters of a chunk are carried over to the next one.
+     */
+    static void appendGrams(StringBuilder out, Reader reader) throws IOException {
+        char[] buffer = new char[NoteBodyStore.CHUNK_LENGTH];
+        String carry = "";
+        int count;
+        while ((count = reader.read(buffer)) != -1) {
+            String text = carry.concat(new String(buffer, 0, count));
+            int limit = findCarryStart(text);
+            appendGrams(out, text, limit);
+            carry = text.substring(limit);
+        }
+        appendGrams(out, carry, carry.length());
+    }
+
+    /**
+     * Returns where the characters to carry over to the next chunk start: the last
+     * {@link #GRAM_LENGTH} - 1 code points, and the first half of a surrogate pair that the
+     * chunk splits.
+     */
+    private static int findCarryStart(String text) {
+        int limit = text.length();
+        if (limit > 0 && Character.isHighSurrogate(text.charAt(limit - 1))) {
+            limit--;
+        }
+        for (int k = 0; k < GRAM_LENGTH - 1 && limit > 0; k++) {
+            limit -= Character.charCount(text.codePointBefore(limit));
+        }
+        return limit;
+    }
+
+    /**
+     * Builds the MATCH expression that finds the notes that may contain the query as a
+     * substring. Runs of three or more characters must contain all of their trigrams; shorter
+     * runs must start some gram. The result can contain false positives (all trigrams present,
+     * but not next to each other), so callers still check the candidates with LIKE. Notes in
+     * {@link #PENDING_TABLE_NAME} may not match it yet, so callers check those as well.
+     *
+     * @return The MATCH expression, or null if the query has no indexable characters.
+     */
+    static String buildMatchExpression(String query) {
+        if (query == null) {
+            return null;
+        }
+
+        Set<String> terms = new LinkedHashSet<String>();
+        int length = query.length();
+        int i = 0;
+        while (i < length) {
+            int start = skipSeparators(query, i);
+            int end = findRunEnd(query, start);
+            if (start < end) {
+                String run = toLowerAscii(query.substring(start, end));
+                int count = run.codePointCount(0, run.length());
+                if (count < GRAM_LENGTH) {
+                    terms.add('"' + run + "*\"");
+                } else {
+                    int begin = 0;
+                    for (int k = 0; k + GRAM_LENGTH <= count; k++) {
+                        int gramEnd = run.offsetByCodePoints(begin, GRAM_LENGTH);
+                        terms.add('"' + run.substring(begin, gramEnd) + '"');
+                        begin = run.offsetByCodePoints(begin, 1);
+                    }
+                }
+            }
+            i = end;
+        }
+
+        if (terms.isEmpty()) {
+            return null;
+        }
+
+        StringBuilder match = new StringBuilder();
+        for (String term : terms) {
+            if (match.length() > 0) {
+                match.append(' ');
+            }
+            match.append(term);
+        }
+        return match.toString();
+    }
+
+    /**
+     * Appends the space-separated grams of the given text. Each token run contributes one
+     * gram starting at every character: a full trigram where possible, and the shorter tail
+     * grams at the end of the run, so that any substring is a prefix of some gram.
+     */
+    static void appendGrams(StringBuilder out, String text) {
+        if (text == null) {
+            return;
+        }
+        appendGrams(out, text, text.length());
+    }
+
+    /**
+     * Appends the grams that start before {@code limit}. The text after it is only read as the
+     * rest of those grams.
+     */
+    private static void appendGrams(StringBuilder out, String text, int limit) {
+        int i = 0;
+        while (i < limit) {
+            int start = skipSeparators(text, i);
+            int end = findRunEnd(text, start);
+            if (start < end) {
+                String run = toLowerAscii(text.substring(start, end));
+                int begin = 0;
+                int runLength = run.length();
+                int runLimit = Math.min(limit, end) - start;
+                while (begin < runLimit) {
+                    int gramEnd = begin;
+                    for (int k = 0; k < GRAM_LENGTH && gramEnd < runLength; k++) {
+                        gramEnd += Character.charCount(run.codePointAt(gramEnd));
+                    }
+                    out.append(run, begin, gramEnd).append(' ');
+                    begin += Character.charCount(run.codePointAt(begin));
+                }
+            }
+            i = end;
+        }
+    }
+
+    private static int skipSeparators(String text, int i) {
+        int length = text.length();
+        while (i < length) {
+            int cp = text.codePointAt(i);
+            if (isTokenChar(cp)) {
+                break;
+            }
+            i += Character.charCount(cp);
+        }
+        return i;
+    }
+
+    private static int findRunEnd(String text, int i) {
+        int length = text.length();
+        while (i < length) {
+            int cp = text.codePointAt(i);
+            if (!isTokenChar(cp)) {
+                break;
+            }
+            i += Character.charCount(cp);
+        }
+        return i;
+    }
+
+    /**
+     * Mirrors the FTS "simple" tokenizer: ASCII letters and digits, and every non-ASCII
+     * character, are part of a token; everything else separates tokens.
+     */
+    private static boolean isTokenChar(int cp) {
+        return cp >= 128
+                || (cp >= 'a' && cp <= 'z')
+                || (cp >= 'A' && cp <= 'Z')
+                || (cp >= '0' && cp <= '9');
+    }
+
+    /**
+     * The simple tokenizer folds ASCII letters only, so the grams must be folded the same way.
+     * LIKE folds the same letters, so this also serves to compare text the way LIKE does.
+     */
+    static String toLowerAscii(String text) {
+        StringBuilder out = null;
+        for (int i = 0; i < text.length(); i++) {
+            char ch = text.charAt(i);
+            if (ch >= 'A' && ch <= 'Z') {
+                if (out == null) {
+                    out = new StringBuilder(text);
+                }
+                out.setCharAt(i, (char) (ch + ('a' - 'A')));
+            }
+        }
+        return out == null ? text : out.toString();
+    }
+}